@@ -0,0 +1,100 @@
+package hr.fer.zemris.java.custom.scripting.visitors;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.nodes.EchoNode;
+import hr.fer.zemris.java.custom.scripting.nodes.EndNode;
+import hr.fer.zemris.java.custom.scripting.nodes.ForLoopNode;
+import hr.fer.zemris.java.custom.scripting.nodes.INodeVisitor;
+import hr.fer.zemris.java.custom.scripting.nodes.Node;
+import hr.fer.zemris.java.custom.scripting.nodes.TextNode;
+import hr.fer.zemris.java.custom.scripting.tokens.Token;
+import hr.fer.zemris.java.custom.scripting.tokens.TokenFunction;
+
+/**
+ * PersistentParameterFinder checks if script changes persistent parameters,
+ * so server can start session before script is executed. Script which only
+ * reads parameters does not need session, it reads no parameters if client
+ * has no session.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class PersistentParameterFinder implements INodeVisitor {
+
+	/**
+	 * Flag that signals if persistent parameters are changed
+	 */
+	private boolean found;
+
+	/**
+	 * Checks if script changes persistent parameters.
+	 *
+	 * @param document
+	 *            parsed script
+	 * @return true if script calls function pparamSet or pparamDel
+	 */
+	public static boolean changesPersistentParameters(DocumentNode document) {
+		final PersistentParameterFinder finder = new PersistentParameterFinder();
+		document.accept(finder);
+		return finder.found;
+	}
+
+	/**
+	 * Text node does not use parameters.
+	 */
+	@Override
+	public void visitTextNode(TextNode node) {
+	}
+
+	/**
+	 * Visits body of loop.
+	 */
+	@Override
+	public void visitForLoopNode(ForLoopNode node) {
+		this.visitChildren(node);
+	}
+
+	/**
+	 * Checks functions in echo node.
+	 */
+	@Override
+	public void visitEchoNode(EchoNode node) {
+		for (final Token token : node.getTokens()) {
+			if (!(token instanceof TokenFunction)) {
+				continue;
+			}
+			final String name = ((TokenFunction) token).getName();
+			if (name.equalsIgnoreCase("pparamset")
+					|| name.equalsIgnoreCase("pparamdel")) {
+				this.found = true;
+			}
+		}
+	}
+
+	/**
+	 * Visits all nodes of document.
+	 */
+	@Override
+	public void visitDocumentNode(DocumentNode node) {
+		this.visitChildren(node);
+	}
+
+	/**
+	 * End node does not use parameters.
+	 */
+	@Override
+	public void visitEndNode(EndNode node) {
+	}
+
+	/**
+	 * Visits children of node until parameters are found.
+	 *
+	 * @param node
+	 *            node with children
+	 */
+	private void visitChildren(Node node) {
+		for (int i = 0; i < node.numberOfChildren() && !this.found; i++) {
+			node.getChild(i).accept(this);
+		}
+	}
+}
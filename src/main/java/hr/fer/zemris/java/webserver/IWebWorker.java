@@ -2,12 +2,38 @@ package hr.fer.zemris.java.webserver;
 
 /**
  * Interface defines request generator for HTTP response.
+ * <p>
+ * Worker can be executed for several requests of same client at the same
+ * time. Persistent parameters changed by worker are stored after
+ * {@link #processRequest(RequestContext)} returns. If other request changed
+ * parameter which worker read, changes are discarded, because they are based
+ * on old value; parameters which worker only set are stored, and last stored
+ * value wins. Worker which returns true from
+ * {@link #changesPersistentParameters()} is not executed concurrently for
+ * same client, so its changes are not discarded. See
+ * {@link RequestContext#setPersistentParameter(String, String)}.
+ * </p>
  * 
  * @author Nikola Sekulić
  * 
  */
 public interface IWebWorker {
 
+	/**
+	 * Checks if worker changes persistent parameters. Session of such worker
+	 * is created before worker is executed, so worker can set parameters
+	 * after it writes output, and requests of same client which execute it
+	 * run one after another, so their changes are not discarded. Other
+	 * workers get session only when they set parameter before output is
+	 * written.
+	 * 
+	 * @return true if worker sets or removes persistent parameters; false by
+	 *         default
+	 */
+	default boolean changesPersistentParameters() {
+		return false;
+	}
+
 	/**
 	 * Writes worker's result to provided context's output stream.
 	 * 
@@ -0,0 +1,200 @@
+package hr.fer.zemris.java.webserver;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor that limits number of tasks which run at the same time. Tasks are
+ * run by another executor, which does not limit them itself, like executor
+ * that starts new virtual thread for each task. Thread that submits task
+ * waits while limit is reached, so server stops accepting connections
+ * instead of starting unlimited number of requests.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class LimitedExecutor extends AbstractExecutorService {
+
+	/**
+	 * Executor that runs tasks
+	 */
+	private final ExecutorService delegate;
+
+	/**
+	 * Permits for running tasks
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * Maximal number of running tasks
+	 */
+	private final int maxConcurrency;
+
+	/**
+	 * Constructor
+	 *
+	 * @param delegate
+	 *            executor that runs tasks
+	 * @param maxConcurrency
+	 *            maximal number of running tasks
+	 * @throws IllegalArgumentException
+	 *             if executor is null or limit is not positive
+	 */
+	public LimitedExecutor(ExecutorService delegate, int maxConcurrency) {
+		if (delegate == null) {
+			throw new IllegalArgumentException("Executor cannot be null!");
+		}
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException(
+					"Maximal number of running tasks must be positive!");
+		}
+		this.delegate = delegate;
+		this.maxConcurrency = maxConcurrency;
+		this.permits = new Semaphore(maxConcurrency);
+	}
+
+	/**
+	 * Checks if current Java runtime supports virtual threads.
+	 *
+	 * @return true if virtual threads are supported
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		} catch (final NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates executor that runs each task in new virtual thread, with limit
+	 * of running tasks. Virtual threads exist since Java 21, so executor is
+	 * created through reflection and server can still be built and run on
+	 * older runtimes with platform threads.
+	 *
+	 * @param maxConcurrency
+	 *            maximal number of running tasks
+	 * @return new executor
+	 * @throws RuntimeException
+	 *             if runtime does not support virtual threads
+	 */
+	public static LimitedExecutor newVirtualThreadExecutor(int maxConcurrency) {
+		final ExecutorService virtual;
+		try {
+			final Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			virtual = (ExecutorService) factory.invoke(null);
+		} catch (final NoSuchMethodException e) {
+			throw new RuntimeException(
+					"Virtual threads require Java 21 or newer!");
+		} catch (final ReflectiveOperationException e) {
+			throw new RuntimeException("Cannot create virtual thread executor!",
+					e);
+		}
+		return new LimitedExecutor(virtual, maxConcurrency);
+	}
+
+	/**
+	 * Runs task when number of running tasks is below limit. Calling thread
+	 * waits for free permit.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if executor is shut down or calling thread is interrupted
+	 *             while it waits
+	 */
+	@Override
+	public void execute(Runnable command) {
+		if (command == null) {
+			throw new NullPointerException("Task cannot be null!");
+		}
+		if (this.delegate.isShutdown()) {
+			throw new RejectedExecutionException("Executor is shut down!");
+		}
+
+		try {
+			this.permits.acquire();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(
+					"Interrupted while waiting for free permit!", e);
+		}
+
+		try {
+			this.delegate.execute(() -> {
+				try {
+					command.run();
+				} finally {
+					this.permits.release();
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			this.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns number of tasks which are running now.
+	 *
+	 * @return number of running tasks
+	 */
+	public int getActiveCount() {
+		return this.maxConcurrency - this.permits.availablePermits();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void shutdown() {
+		this.delegate.shutdown();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+		return this.delegate.shutdownNow();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isShutdown() {
+		return this.delegate.isShutdown();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean isTerminated() {
+		return this.delegate.isTerminated();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return this.delegate.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Returns short description of executor.
+	 */
+	@Override
+	public String toString() {
+		return "active=" + getActiveCount() + ", max=" + this.maxConcurrency;
+	}
+}
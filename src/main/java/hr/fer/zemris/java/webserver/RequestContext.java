@@ -1,15 +1,31 @@
 package hr.fer.zemris.java.webserver;
 
+import hr.fer.zemris.java.webserver.http.ChunkedOutputStream;
+import hr.fer.zemris.java.webserver.http.Compression;
+import hr.fer.zemris.java.webserver.http.HeaderEncoder;
+import hr.fer.zemris.java.webserver.http.TextEncoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
 
 /**
  * Class RequestContext represents tool for generating response on HTTP request.
@@ -17,13 +33,19 @@ import java.util.Set;
  * @author Nikola Sekulić
  * 
  */
-public class RequestContext {
+public class RequestContext implements Appendable {
 
 	/**
 	 * Output stream
 	 */
 	private final OutputStream outputStream;
 
+	/**
+	 * Channel of output stream, used for zero-copy transfer of files. Can be
+	 * null.
+	 */
+	private WritableByteChannel outputChannel;
+
 	/**
 	 * Charset for output stream
 	 */
@@ -65,10 +87,28 @@ public class RequestContext {
 	private Map<String, String> temporaryParameters;
 
 	/**
-	 * Persistent parameters of context
+	 * Persistent parameters of context, as they were when request started.
+	 * Map is not changed by context.
 	 */
 	private Map<String, String> persistentParameters;
 
+	/**
+	 * Persistent parameters changed by request, null value means removed
+	 * parameter. It is null until first change.
+	 */
+	private Map<String, String> persistentChanges;
+
+	/**
+	 * Names of persistent parameters read from session, null until first
+	 * read
+	 */
+	private Set<String> persistentReads;
+
+	/**
+	 * Flag that signals if names of all persistent parameters were read
+	 */
+	private boolean persistentNamesRead;
+
 	/**
 	 * List of cookies
 	 */
@@ -79,6 +119,118 @@ public class RequestContext {
 	 */
 	private boolean headerGenerated = false;
 
+	/**
+	 * Flag that signals if connection should stay open after response. If
+	 * null, Connection header is not sent.
+	 */
+	private Boolean keepAlive;
+
+	/**
+	 * Flag that signals if client accepts chunked transfer encoding
+	 */
+	private boolean chunkedAllowed = false;
+
+	/**
+	 * Size of buffer for one chunk of chunked response
+	 */
+	private int chunkBufferSize = DEFAULT_CHUNK_BUFFER_SIZE;
+
+	/**
+	 * Default size of buffer for one chunk
+	 */
+	public static final int DEFAULT_CHUNK_BUFFER_SIZE = 8192;
+
+	/**
+	 * Stream to which body of response is written. It is created when header
+	 * is generated.
+	 */
+	private OutputStream body;
+
+	/**
+	 * Stream that sends chunks of body, or null if body is not chunked
+	 */
+	private ChunkedOutputStream chunked;
+
+	/**
+	 * Settings of response compression, or null if responses are not
+	 * compressed
+	 */
+	private Compression compression;
+
+	/**
+	 * Content coding accepted by client, or null if body is not compressed
+	 */
+	private String contentCoding;
+
+	/**
+	 * Stream that compresses body, or null if body is not compressed
+	 */
+	private DeflaterOutputStream compressor;
+
+	/**
+	 * Beginning of body which could be compressed. Header is sent when body
+	 * reaches minimal size for compression, or when response is finished.
+	 */
+	private ByteArrayOutputStream pending;
+
+	/**
+	 * Additional header fields, in order in which they are added
+	 */
+	private final List<String> headers = new ArrayList<>();
+
+	/**
+	 * Pre-rendered status line and header fields that describe body. If set,
+	 * it replaces status line, Content-Type and Content-Length in generated
+	 * header.
+	 */
+	private byte[] headerPrefix;
+
+	/**
+	 * Encoder into which header is written, or null if it is not created yet
+	 */
+	private HeaderEncoder headerEncoder;
+
+	/**
+	 * Encoder of text written to body, or null if it is not created yet
+	 */
+	private TextEncoder textEncoder;
+
+	/**
+	 * Destination of encoded text, which writes it to body
+	 */
+	private final TextEncoder.Sink textSink = this::write;
+
+	/**
+	 * Flag that signals if Date and Server fields are added to header
+	 */
+	private boolean serverHeaders = false;
+
+	/**
+	 * Empty array used instead of missing header prefix
+	 */
+	private static final byte[] NO_BYTES = new byte[0];
+
+	/**
+	 * Method of request
+	 */
+	private String method = "GET";
+
+	/**
+	 * Body of request, or null if request has no body
+	 */
+	private InputStream requestBody;
+
+	/**
+	 * Length of request body, or -1 if it is not known
+	 */
+	private long requestBodyLength;
+
+	/**
+	 * Action which creates session on first change of persistent parameters,
+	 * or null if session exists or it is not needed
+	 */
+	private Runnable sessionStarter;
+
 	/**
 	 * Constructor. Input collections are copied.
 	 * 
@@ -127,6 +279,83 @@ public class RequestContext {
 
 	}
 
+	/**
+	 * Sets channel which writes to same destination as output stream. If it is
+	 * set, files are transferred to it directly, without copying them through
+	 * user space.
+	 * 
+	 * @param outputChannel
+	 *            channel of output stream, can be null
+	 * @return this RequestContext
+	 */
+	public RequestContext setOutputChannel(WritableByteChannel outputChannel) {
+		this.outputChannel = outputChannel;
+		return this;
+	}
+
+	/**
+	 * Sets encoder into which header is written. Encoder can be reused by
+	 * next responses on same connection, after this response is finished.
+	 * 
+	 * @param headerEncoder
+	 *            encoder of header, if null, new encoder is created
+	 * @return this RequestContext
+	 */
+	public RequestContext setHeaderEncoder(HeaderEncoder headerEncoder) {
+		this.headerEncoder = headerEncoder;
+		return this;
+	}
+
+	/**
+	 * Sets encoder of text written to body. Encoder can be reused by next
+	 * responses on same connection, after this response is finished.
+	 * 
+	 * @param textEncoder
+	 *            encoder of text, if null, new encoder is created
+	 * @return this RequestContext
+	 */
+	public RequestContext setTextEncoder(TextEncoder textEncoder) {
+		this.textEncoder = textEncoder;
+		return this;
+	}
+
+	/**
+	 * Sets if Date and Server fields are added to header.
+	 * 
+	 * @param serverHeaders
+	 *            true if fields are added
+	 * @return this RequestContext
+	 */
+	public RequestContext setServerHeaders(boolean serverHeaders) {
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot change header after header is generated");
+		}
+		this.serverHeaders = serverHeaders;
+		return this;
+	}
+
+	/**
+	 * Sets pre-rendered beginning of header: status line, Content-Type and
+	 * Content-Length fields, each ended with CRLF. It is used instead of
+	 * rendering them for every response of cached content. Caller must also
+	 * set status, mime type and content length which match prefix, because
+	 * they are used for other decisions about response.
+	 * 
+	 * @param headerPrefix
+	 *            bytes of status line and header fields, or null to generate
+	 *            them
+	 * @return this RequestContext
+	 */
+	public RequestContext setHeaderPrefix(byte[] headerPrefix) {
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot change header after header is generated");
+		}
+		this.headerPrefix = headerPrefix;
+		return this;
+	}
+
 	/**
 	 * Sets content length in header.
 	 * 
@@ -200,6 +429,230 @@ public class RequestContext {
 		this.mimeType = mimeType;
 	}
 
+	/**
+	 * Adds header field to response.
+	 * 
+	 * @param name
+	 *            name of field
+	 * @param value
+	 *            value of field
+	 * @return this RequestContext
+	 */
+	public RequestContext addHeader(String name, String value) {
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot add header field after header is generated");
+		}
+		if (name == null || value == null) {
+			throw new IllegalArgumentException(
+					"Name and value of header field cannot be null!");
+		}
+		headers.add(name + ": " + value);
+		return this;
+	}
+
+	/**
+	 * Sets if connection should stay open after this response. Connection is
+	 * kept open only if client can find end of response, so if content length
+	 * is not known when header is generated, "Connection: close" is sent
+	 * instead.
+	 * 
+	 * @param keepAlive
+	 *            true if connection should be kept open, false if it should be
+	 *            closed
+	 */
+	public void setKeepAlive(boolean keepAlive) {
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot change connection after header is generated");
+		}
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Checks if connection can be used for next request after this response is
+	 * finished.
+	 * 
+	 * @return true if keep alive is requested and response has known length
+	 */
+	public boolean isKeepAlive() {
+		return Boolean.TRUE.equals(keepAlive) && hasKnownLength();
+	}
+
+	/**
+	 * Sets if response can be sent with chunked transfer encoding. If it is
+	 * allowed and content length is not set when header is generated, header
+	 * "Transfer-Encoding: chunked" is sent and body is sent in chunks.
+	 * Chunked encoding should be allowed only for HTTP/1.1 clients.
+	 * 
+	 * @param chunkedAllowed
+	 *            true if chunked encoding is allowed
+	 */
+	public void setChunkedAllowed(boolean chunkedAllowed) {
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot change transfer encoding after header is generated");
+		}
+		this.chunkedAllowed = chunkedAllowed;
+	}
+
+	/**
+	 * Sets compression of body. Body is compressed only if its length is not
+	 * set, its mime type is compressible and it reaches minimal size for
+	 * compression. Until then, body is kept in memory, so short responses are
+	 * sent uncompressed and with Content-Length.
+	 * 
+	 * @param compression
+	 *            settings of compression, or null to disable compression
+	 * @param contentCoding
+	 *            content coding accepted by client, or null if client does
+	 *            not accept compressed body
+	 * @return this RequestContext
+	 */
+	public RequestContext setCompression(Compression compression,
+			String contentCoding) {
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot change compression after header is generated");
+		}
+		this.compression = compression;
+		this.contentCoding = contentCoding;
+		return this;
+	}
+
+	/**
+	 * Sets size of buffer in which data is collected before it is sent as one
+	 * chunk.
+	 * 
+	 * @param chunkBufferSize
+	 *            size of chunk buffer in bytes
+	 */
+	public void setChunkBufferSize(int chunkBufferSize) {
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot change chunk size after header is generated");
+		}
+		if (chunkBufferSize < 1) {
+			throw new IllegalArgumentException(
+					"Size of chunk buffer must be positive!");
+		}
+		this.chunkBufferSize = chunkBufferSize;
+	}
+
+	/**
+	 * Sets method of request.
+	 * 
+	 * @param method
+	 *            method of request, like GET or POST
+	 * @return this RequestContext
+	 */
+	public RequestContext setMethod(String method) {
+		if (method == null) {
+			throw new IllegalArgumentException("Method cannot be null!");
+		}
+		this.method = method;
+		return this;
+	}
+
+	/**
+	 * Returns method of request.
+	 * 
+	 * @return method of request, GET if it is not set
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * Sets body of request. Body is read from connection while worker reads
+	 * stream, so it is never kept in memory as whole.
+	 * 
+	 * @param requestBody
+	 *            stream of request body, or null if request has no body
+	 * @param requestBodyLength
+	 *            length of body, or -1 if it is not known
+	 * @return this RequestContext
+	 */
+	public RequestContext setBody(InputStream requestBody,
+			long requestBodyLength) {
+		this.requestBody = requestBody;
+		this.requestBodyLength = requestBody == null ? 0 : requestBodyLength;
+		return this;
+	}
+
+	/**
+	 * Returns stream of request body. Body can be read only once. Part of
+	 * body which is not read by worker is discarded after response.
+	 * 
+	 * @return stream of body, empty stream if request has no body
+	 */
+	public InputStream getBody() {
+		if (requestBody == null) {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+		return requestBody;
+	}
+
+	/**
+	 * Returns request body as channel. Channel reads from same stream as
+	 * {@link #getBody()}.
+	 * 
+	 * @return channel of body
+	 */
+	public ReadableByteChannel getBodyChannel() {
+		return Channels.newChannel(getBody());
+	}
+
+	/**
+	 * Returns length of request body.
+	 * 
+	 * @return length of body in bytes, 0 if request has no body, or -1 if
+	 *         length is not known because body is chunked
+	 */
+	public long getBodyLength() {
+		return requestBodyLength;
+	}
+
+	/**
+	 * Checks if body of response is sent with chunked transfer encoding.
+	 * 
+	 * @return true if body is chunked
+	 */
+	private boolean isChunked() {
+		return chunkedAllowed && contentLength == null && hasBody();
+	}
+
+	/**
+	 * Checks if body can be compressed, because client accepts compressed
+	 * body, mime type is compressible and length of body is not fixed.
+	 * 
+	 * @return true if body can be compressed
+	 */
+	private boolean isCompressible() {
+		return contentCoding != null && compression != null
+				&& contentLength == null && headerPrefix == null && hasBody()
+				&& compression.isCompressible(mimeType);
+	}
+
+	/**
+	 * Checks if response with current status code can have body. Responses
+	 * 1xx, 204 No Content and 304 Not Modified never have body.
+	 * 
+	 * @return true if response has body
+	 */
+	private boolean hasBody() {
+		return statusCode / 100 != 1 && statusCode != 204 && statusCode != 304;
+	}
+
+	/**
+	 * Checks if client can find end of response without closing connection.
+	 * 
+	 * @return true if length of response body is known or body is chunked
+	 */
+	private boolean hasKnownLength() {
+		return contentLength != null || chunkedAllowed || !hasBody();
+	}
+
 	/**
 	 * Sets flag parameter generated
 	 * 
@@ -241,6 +694,13 @@ public class RequestContext {
 	 * @return parameter for provided name.
 	 */
 	public String getPersistentParameter(String name) {
+		if (persistentChanges != null && persistentChanges.containsKey(name)) {
+			return persistentChanges.get(name);
+		}
+		if (persistentReads == null) {
+			persistentReads = new HashSet<>();
+		}
+		persistentReads.add(name);
 		return persistentParameters.get(name);
 	}
 
@@ -250,19 +710,144 @@ public class RequestContext {
 	 * @return names of all persistent parameters as unmodifiable {@link Set}
 	 */
 	public Set<String> getPersistentParameterNames() {
-		return Collections.unmodifiableSet(persistentParameters.keySet());
+		persistentNamesRead = true;
+		if (persistentChanges == null) {
+			return Collections.unmodifiableSet(persistentParameters.keySet());
+		}
+		final Set<String> names = new HashSet<>(persistentParameters.keySet());
+		for (final Map.Entry<String, String> change : persistentChanges
+				.entrySet()) {
+			if (change.getValue() == null) {
+				names.remove(change.getKey());
+			} else {
+				names.add(change.getKey());
+			}
+		}
+		return Collections.unmodifiableSet(names);
 	}
 
 	/**
-	 * Adds or replaces persistent parameter.
+	 * Sets persistent parameters as they are stored in session. Map is not
+	 * copied, so it must not be changed while context is used. Changes made
+	 * before are discarded.
+	 * 
+	 * @param persistentParameters
+	 *            unmodifiable parameters of session, if null, treat as empty
+	 * @return this RequestContext
+	 */
+	public RequestContext setPersistentParameters(
+			Map<String, String> persistentParameters) {
+		this.persistentParameters = persistentParameters == null ? Collections
+				.<String, String> emptyMap() : persistentParameters;
+		this.persistentChanges = null;
+		this.persistentReads = null;
+		this.persistentNamesRead = false;
+		return this;
+	}
+
+	/**
+	 * Returns names of persistent parameters which this request read from
+	 * session. Parameters read after they were changed by this request are
+	 * not included.
+	 * 
+	 * @return unmodifiable set of names, or null if request read names of all
+	 *         parameters
+	 */
+	public Set<String> getPersistentParameterReads() {
+		if (persistentNamesRead) {
+			return null;
+		}
+		if (persistentReads == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(persistentReads);
+	}
+
+	/**
+	 * Returns persistent parameters changed by this request. Removed
+	 * parameter has null value.
+	 * 
+	 * @return unmodifiable map of changes, empty if nothing is changed
+	 */
+	public Map<String, String> getPersistentParameterChanges() {
+		if (persistentChanges == null) {
+			return Collections.emptyMap();
+		}
+		return Collections.unmodifiableMap(persistentChanges);
+	}
+
+	/**
+	 * Adds or replaces persistent parameter. Change is stored in session
+	 * when request is finished. If other request of same client changed
+	 * parameter which this request read, by
+	 * {@link #getPersistentParameter(String)} or
+	 * {@link #getPersistentParameterNames()}, all changes of this request
+	 * are discarded, because they could be based on old value. Parameter
+	 * which is set without being read is stored, and last stored value wins.
+	 * <p>
+	 * If client has no session yet, it is created by first set parameter, and
+	 * its cookie is added to header. Then parameter cannot be set after
+	 * header is generated, so worker which writes output before it sets
+	 * parameters must declare it by
+	 * {@link IWebWorker#changesPersistentParameters()}.
+	 * </p>
 	 * 
 	 * @param name
 	 *            name of parameter
 	 * @param value
 	 *            parameter
+	 * @throws RuntimeException
+	 *             if session must be created after header is generated
 	 */
 	public void setPersistentParameter(String name, String value) {
-		persistentParameters.put(name, value);
+		startSession();
+		if (persistentChanges == null) {
+			persistentChanges = new HashMap<>();
+		}
+		persistentChanges.put(name, value);
+	}
+
+	/**
+	 * Checks if header of response is already generated, so status, headers
+	 * and cookies cannot be changed.
+	 * 
+	 * @return true if header is generated
+	 */
+	public boolean isHeaderGenerated() {
+		return headerGenerated;
+	}
+
+	/**
+	 * Sets action which creates session when persistent parameter is set for
+	 * the first time. Action must add session cookie to this context.
+	 * 
+	 * @param sessionStarter
+	 *            action which creates session, or null
+	 * @return this RequestContext
+	 */
+	public RequestContext setSessionStarter(Runnable sessionStarter) {
+		this.sessionStarter = sessionStarter;
+		return this;
+	}
+
+	/**
+	 * Creates session if it does not exist yet.
+	 * 
+	 * @throws RuntimeException
+	 *             if session must be created after header is generated,
+	 *             because its cookie cannot be sent anymore
+	 */
+	private void startSession() {
+		if (sessionStarter == null) {
+			return;
+		}
+		if (headerGenerated) {
+			throw new RuntimeException(
+					"Cannot start session after header is generated");
+		}
+		final Runnable starter = sessionStarter;
+		sessionStarter = null;
+		starter.run();
 	}
 
 	/**
@@ -272,7 +857,17 @@ public class RequestContext {
 	 *            name of parameter to be removed
 	 */
 	public void removePersistentParameter(String name) {
-		persistentParameters.remove(name);
+		if (!persistentParameters.containsKey(name)) {
+			// parameter was only set by this request
+			if (persistentChanges != null) {
+				persistentChanges.remove(name);
+			}
+			return;
+		}
+		if (persistentChanges == null) {
+			persistentChanges = new HashMap<>();
+		}
+		persistentChanges.put(name, null);
 	}
 
 	/**
@@ -320,44 +915,72 @@ public class RequestContext {
 	/**
 	 * Creates header. Sets version of HTTP to 1.1
 	 * 
-	 * @return byte representation of header.
+	 * @return encoder with byte representation of header.
 	 */
-	private byte[] createHeader() {
+	private HeaderEncoder createHeader() {
 
-		StringBuilder sb = new StringBuilder();
+		if (headerEncoder == null) {
+			headerEncoder = new HeaderEncoder();
+		}
+		final HeaderEncoder header = headerEncoder.reset();
+
+		// if header prefix is set, these fields are already in it
+		if (headerPrefix == null) {
+			header.statusLine(statusCode, statusText);
+			header.contentType(mimeType, encoding);
+
+			if (contentLength != null) {
+				header.append(HeaderEncoder.CONTENT_LENGTH)
+						.append(contentLength.longValue())
+						.append(HeaderEncoder.CRLF);
+			} else if (isChunked()) {
+				header.append(HeaderEncoder.TRANSFER_ENCODING_CHUNKED);
+			}
 
-		sb.append("HTTP/1.1 ").append(statusCode).append(' ')
-				.append(statusText).append("\r\n");
+			if (contentCoding != null && isCompressible()) {
+				header.append(HeaderEncoder.CONTENT_ENCODING)
+						.append(contentCoding).append(HeaderEncoder.CRLF);
+			}
+		}
 
-		sb.append("Content-Type: ").append(this.mimeType);
+		if (serverHeaders) {
+			header.date().append(HeaderEncoder.SERVER);
+		}
 
-		if (mimeType.startsWith("text/")) {
-			sb.append("; ").append("charset=").append(encoding);
+		// response depends on Accept-Encoding even if it is not compressed
+		if (compression != null && hasBody()
+				&& compression.isCompressible(mimeType)) {
+			header.append(HeaderEncoder.VARY_ACCEPT_ENCODING);
 		}
 
-		sb.append("\r\n");
+		for (String field : headers) {
+			header.append(field).append(HeaderEncoder.CRLF);
+		}
 
-		if (contentLength != null) {
-			sb.append("Content-Length: ").append(this.contentLength)
-					.append("\r\n");
+		if (keepAlive != null) {
+			if (isKeepAlive()) {
+				header.append(HeaderEncoder.CONNECTION_KEEP_ALIVE);
+			} else {
+				header.append(HeaderEncoder.CONNECTION_CLOSE);
+			}
 		}
 
 		for (RCCookie cookie : outputCookies) {
-			sb.append("Set-Cookie: ").append(cookie.toString()).append("\r\n");
+			header.append(HeaderEncoder.SET_COOKIE);
+			cookie.encode(header);
+			header.append(HeaderEncoder.CRLF);
 		}
 
-		sb.append("\r\n");
+		header.append(HeaderEncoder.CRLF);
 
-		String header = sb.toString();
-
-		return header.getBytes(StandardCharsets.US_ASCII);
+		return header;
 
 	}
 
 	/**
 	 * Number of bytes written to output stream.
 	 */
-	private int writenSize = 0;
+	private long writenSize = 0;
 
 	/**
 	 * Writes provided data to output stream. If flag headerGenerated is not
@@ -370,27 +993,311 @@ public class RequestContext {
 	 *             if IO error occurs
 	 */
 	public RequestContext write(byte[] data) throws IOException {
+		return write(data, 0, data.length);
+	}
+
+	/**
+	 * Writes part of provided array to output stream. If flag headerGenerated
+	 * is not set, sets that flag and writes header before provided data.
+	 * 
+	 * @param data
+	 *            array with bytes to write
+	 * @param offset
+	 *            offset of first byte
+	 * @param length
+	 *            number of bytes
+	 * @return this {@link RequestContext}
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public RequestContext write(byte[] data, int offset, int length)
+			throws IOException {
 
 		if (contentLength != null) {
-			if (writenSize + data.length > contentLength) {
+			if (writenSize + length > contentLength) {
 				throw new RuntimeException("Cannot wite to output stream!\r\n"
 						+ "Content length is limited to " + contentLength
 						+ ".\r\n" + writenSize
 						+ " bytes is already written, and size of new data is "
-						+ data.length + " bytes.");
+						+ length + " bytes.");
+			}
+		}
+
+		if (!headerGenerated) {
+			writeHeader();
+		}
+		this.body.write(data, offset, length);
+		writenSize += length;
+		sendPending();
+		return this;
+	}
+
+	/**
+	 * Writes part of file to output. If output channel is set and body is not
+	 * chunked, bytes are transferred from file to channel by operating system,
+	 * without copying them to user space. Otherwise, file is copied through
+	 * buffer. If flag headerGenerated is not set, sets that flag and writes
+	 * header before file.
+	 * 
+	 * @param file
+	 *            channel of file
+	 * @param position
+	 *            position in file of first byte to write
+	 * @param count
+	 *            number of bytes to write
+	 * @return this {@link RequestContext}
+	 * @throws IOException
+	 *             if IO error occurs or file ends before all bytes are written
+	 */
+	public RequestContext write(FileChannel file, long position, long count)
+			throws IOException {
+
+		if (contentLength != null) {
+			if (writenSize + count > contentLength) {
+				throw new RuntimeException("Cannot wite to output stream!\r\n"
+						+ "Content length is limited to " + contentLength
+						+ ".\r\n" + writenSize
+						+ " bytes is already written, and size of file is "
+						+ count + " bytes.");
 			}
 		}
 
 		if (!headerGenerated) {
+			writeHeader();
+		}
+
+		long written = 0;
+		if (this.outputChannel != null && this.body == this.outputStream) {
+			this.outputStream.flush();
+			while (written < count) {
+				final long bytes = file.transferTo(position + written, count
+						- written, this.outputChannel);
+				if (bytes <= 0) {
+					break;
+				}
+				written += bytes;
+				writenSize += bytes;
+			}
+		}
+
+		if (written < count) {
+			final byte[] buffer = new byte[(int) Math.min(FILE_BUFFER_SIZE,
+					count - written)];
+			final ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+			while (written < count) {
+				wrapper.clear();
+				wrapper.limit((int) Math.min(buffer.length, count - written));
+				final int bytes = file.read(wrapper, position + written);
+				if (bytes == -1) {
+					break;
+				}
+				this.body.write(buffer, 0, bytes);
+				written += bytes;
+				writenSize += bytes;
+				sendPending();
+			}
+		}
+
+		if (written < count) {
+			throw new IOException("File ended after " + written + " of "
+					+ count + " bytes!");
+		}
+
+		return this;
+	}
+
+	/**
+	 * Writes content of buffer to output, from its position to its limit.
+	 * Position of provided buffer is not changed, so same buffer can be
+	 * written by many threads. If header is not generated yet, output channel
+	 * supports gathering writes and body is not chunked, header and data are
+	 * sent with one write operation.
+	 * 
+	 * @param data
+	 *            buffer with data
+	 * @return this {@link RequestContext}
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public RequestContext write(ByteBuffer data) throws IOException {
+		final ByteBuffer source = data.duplicate();
+		final int length = source.remaining();
+
+		if (contentLength != null) {
+			if (writenSize + length > contentLength) {
+				throw new RuntimeException("Cannot wite to output stream!\r\n"
+						+ "Content length is limited to " + contentLength
+						+ ".\r\n" + writenSize
+						+ " bytes is already written, and size of new data is "
+						+ length + " bytes.");
+			}
+		}
+
+		if (!headerGenerated && this.outputChannel instanceof GatheringByteChannel
+				&& !isChunked() && !isCompressible()) {
 			this.setHeaderGenerated(true);
-			// System.out.println(new String(createHeader(),
-			// StandardCharsets.US_ASCII));
-			this.outputStream.write(createHeader());
+			this.body = this.outputStream;
+
+			final ByteBuffer[] buffers = new ByteBuffer[] {
+					ByteBuffer.wrap(headerPrefix == null ? NO_BYTES
+							: headerPrefix), createHeader().toByteBuffer(),
+					source };
+			final GatheringByteChannel channel = (GatheringByteChannel) this.outputChannel;
+			long remaining = 0;
+			for (final ByteBuffer buffer : buffers) {
+				remaining += buffer.remaining();
+			}
+			this.outputStream.flush();
+			while (remaining > 0) {
+				remaining -= channel.write(buffers);
+			}
+			writenSize += length;
+			return this;
+		}
+
+		if (!headerGenerated) {
+			writeHeader();
 		}
-		this.outputStream.write(data);
+
+		if (source.hasArray()) {
+			this.body.write(source.array(),
+					source.arrayOffset() + source.position(), length);
+		} else if (this.outputChannel != null && this.body == this.outputStream) {
+			this.outputStream.flush();
+			while (source.hasRemaining()) {
+				this.outputChannel.write(source);
+			}
+		} else {
+			final byte[] buffer = new byte[Math.min(FILE_BUFFER_SIZE, length)];
+			while (source.hasRemaining()) {
+				final int bytes = Math.min(buffer.length, source.remaining());
+				source.get(buffer, 0, bytes);
+				this.body.write(buffer, 0, bytes);
+			}
+		}
+		writenSize += length;
+		sendPending();
 		return this;
 	}
 
+	/**
+	 * Size of buffer used when file cannot be transferred directly
+	 */
+	private static final int FILE_BUFFER_SIZE = 8192;
+
+	/**
+	 * Generates header, writes it to output stream and prepares stream for
+	 * body of response. If body can be compressed, header is not sent yet,
+	 * and body is collected in memory until it reaches minimal size for
+	 * compression.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void writeHeader() throws IOException {
+		this.setHeaderGenerated(true);
+		if (!isCompressible()) {
+			contentCoding = null;
+			sendHeader();
+			return;
+		}
+
+		this.pending = new ByteArrayOutputStream();
+		this.body = this.pending;
+		sendPending();
+	}
+
+	/**
+	 * Writes header to output stream and prepares stream for body of
+	 * response.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void sendHeader() throws IOException {
+		if (headerPrefix != null) {
+			this.outputStream.write(headerPrefix);
+		}
+		createHeader().writeTo(this.outputStream);
+
+		if (isChunked()) {
+			this.chunked = new ChunkedOutputStream(this.outputStream,
+					this.chunkBufferSize);
+			this.body = this.chunked;
+		} else {
+			this.body = this.outputStream;
+		}
+
+		if (contentCoding != null) {
+			this.compressor = Compression.wrap(this.body, contentCoding);
+			this.body = this.compressor;
+		}
+	}
+
+	/**
+	 * Sends header and collected beginning of body, if body has reached
+	 * minimal size for compression. Rest of body is compressed as it is
+	 * written.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void sendPending() throws IOException {
+		if (this.pending == null
+				|| this.pending.size() < compression.getMinSize()) {
+			return;
+		}
+
+		final ByteArrayOutputStream data = this.pending;
+		this.pending = null;
+		sendHeader();
+		data.writeTo(this.body);
+	}
+
+	/**
+	 * Finishes response. If nothing is written, header with content length 0
+	 * is sent. Body that was too short for compression is sent uncompressed,
+	 * with its content length. Compressed body is completed, and chunked
+	 * body is terminated with last chunk. If less bytes than
+	 * announced content length is written, connection cannot be kept alive
+	 * because client still waits for rest of response.
+	 * 
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public void finish() throws IOException {
+		if (!headerGenerated) {
+			if (contentLength == null && hasBody()) {
+				contentLength = 0L;
+			}
+			writeHeader();
+		}
+
+		if (this.pending != null) {
+			// body is too short for compression
+			final ByteArrayOutputStream data = this.pending;
+			this.pending = null;
+			contentCoding = null;
+			contentLength = (long) data.size();
+			sendHeader();
+			data.writeTo(this.body);
+		}
+
+		if (this.compressor != null) {
+			this.compressor.finish();
+		}
+
+		if (this.chunked != null) {
+			this.chunked.finish();
+		}
+
+		if (contentLength != null && writenSize < contentLength) {
+			keepAlive = false;
+		}
+
+		this.outputStream.flush();
+	}
+
 	/**
 	 * Converts provided string to bytes using encoding parameter from this
 	 * RequestContext and writes that bytes to output stream. If flag
@@ -404,8 +1311,74 @@ public class RequestContext {
 	 *             if IO error occurs
 	 */
 	public RequestContext write(String text) throws IOException {
-		byte[] data = text.getBytes(this.charset);
-		return write(data);
+		return write((CharSequence) text);
+	}
+
+	/**
+	 * Encodes provided text using encoding parameter from this RequestContext
+	 * and writes it to output stream. Text is encoded into reusable buffer of
+	 * text encoder, so no byte array is created for it. Long text is written
+	 * in several parts, so if content length is set and text exceeds it, part
+	 * of text can be written before exception is thrown.
+	 * 
+	 * @param text
+	 *            text to write
+	 * @return this RequestContext
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public RequestContext write(CharSequence text) throws IOException {
+		return write(text, 0, text.length());
+	}
+
+	/**
+	 * Encodes part of provided text and writes it to output stream.
+	 * 
+	 * @param text
+	 *            text to write
+	 * @param start
+	 *            index of first character
+	 * @param end
+	 *            index after last character
+	 * @return this RequestContext
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @see #write(CharSequence)
+	 */
+	public RequestContext write(CharSequence text, int start, int end)
+			throws IOException {
+		if (textEncoder == null) {
+			textEncoder = new TextEncoder();
+		}
+		textEncoder.encode(text, start, end, this.charset, this.textSink);
+		return this;
+	}
+
+	/**
+	 * Writes text to output stream, as {@link #write(CharSequence)}. Null is
+	 * written as "null".
+	 */
+	@Override
+	public RequestContext append(CharSequence text) throws IOException {
+		return write(text == null ? "null" : text);
+	}
+
+	/**
+	 * Writes part of text to output stream, as
+	 * {@link #write(CharSequence, int, int)}. Null is written as "null".
+	 */
+	@Override
+	public RequestContext append(CharSequence text, int start, int end)
+			throws IOException {
+		return write(text == null ? "null" : text, start, end);
+	}
+
+	/**
+	 * Writes one character to output stream.
+	 */
+	@Override
+	public RequestContext append(char c) throws IOException {
+		return write(String.valueOf(c));
 	}
 
 	/**
@@ -554,6 +1527,32 @@ public class RequestContext {
 
 			return sb.toString();
 		}
+
+		/**
+		 * Writes cookie, as it should be in HTTP response, to encoder of
+		 * header.
+		 * 
+		 * @param header
+		 *            encoder of header
+		 */
+		private void encode(HeaderEncoder header) {
+			header.append(this.name).append('=').append('"')
+					.append(this.value).append('"');
+
+			if (this.domain != null) {
+				header.append("; Domain=").append(this.domain);
+			}
+
+			if (this.path != null) {
+				header.append("; Path=").append(this.path);
+			}
+
+			if (this.maxAge != null) {
+				header.append("; Max-Age=").append(this.maxAge.longValue());
+			}
+
+			header.append("; HttpOnly");
+		}
 	}
 
 }
@@ -1,38 +1,79 @@
 package hr.fer.zemris.java.webserver;
 
 import hr.fer.zemris.java.custom.scripting.exec.SmartScriptEngine;
-import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
 import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserException;
 import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+import hr.fer.zemris.java.webserver.cache.ScriptCache;
+import hr.fer.zemris.java.webserver.cache.ScriptCache.CachedScript;
+import hr.fer.zemris.java.webserver.cache.StaticContentCache;
+import hr.fer.zemris.java.webserver.cache.StaticContentCache.StaticContent;
+import hr.fer.zemris.java.webserver.cache.ValidatorCache;
+import hr.fer.zemris.java.webserver.http.BodyInputStream;
+import hr.fer.zemris.java.webserver.http.BufferPool;
+import hr.fer.zemris.java.webserver.http.ByteRange;
+import hr.fer.zemris.java.webserver.http.Compression;
+import hr.fer.zemris.java.webserver.http.HeaderEncoder;
+import hr.fer.zemris.java.webserver.http.HttpParseException;
+import hr.fer.zemris.java.webserver.http.HttpRequestParser;
+import hr.fer.zemris.java.webserver.http.ResponseBuffer;
+import hr.fer.zemris.java.webserver.http.TextEncoder;
+import hr.fer.zemris.java.webserver.http.Validators;
+import hr.fer.zemris.java.webserver.session.SessionAttributes;
+import hr.fer.zemris.java.webserver.session.SessionConflictException;
+import hr.fer.zemris.java.webserver.session.SessionIdGenerator;
+import hr.fer.zemris.java.webserver.session.SessionLog;
+import hr.fer.zemris.java.webserver.session.SessionMapEntry;
+import hr.fer.zemris.java.webserver.session.SessionPersistence;
+import hr.fer.zemris.java.webserver.session.SessionStore;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Random;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class SmartHttpServer is simple HTTP server. Except of sending documents, it
@@ -59,11 +100,124 @@ public class SmartHttpServer {
 	 */
 	private int workerThreads;
 
+	/**
+	 * Flag that signals if each request is served in new virtual thread
+	 * instead of in fixed pool of platform threads
+	 */
+	private final boolean virtualThreads;
+
+	/**
+	 * Maximal number of connections served at the same time by virtual
+	 * threads
+	 */
+	private final int maxConcurrentRequests;
+
+	/**
+	 * Maximal number of connections waiting for free worker thread. If 0,
+	 * connection is accepted only when some worker is free.
+	 */
+	private final int queueSize;
+
+	/**
+	 * Time in milliseconds which connection can wait for worker. Connection
+	 * that waited longer gets "503 Service Unavailable" instead of response,
+	 * because client probably gave up already. If 0, time is not limited.
+	 */
+	private final int queueTimeout;
+
+	/**
+	 * Pre-rendered "503 Service Unavailable" response sent to connections
+	 * which are rejected or shed because server is overloaded
+	 */
+	private final byte[] serviceUnavailable;
+
+	/**
+	 * Number of connections rejected because queue was full
+	 */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Number of connections shed because they waited too long in queue
+	 */
+	private final AtomicLong shed = new AtomicLong();
+
 	/**
 	 * Lifetime of session in seconds
 	 */
 	private int sessionTimeout;
 
+	/**
+	 * Flag that signals if session is created only when persistent
+	 * parameters are used. If false, session is created for every client
+	 * without session.
+	 */
+	private final boolean lazySessions;
+
+	/**
+	 * Number of created sessions
+	 */
+	private final AtomicLong sessionsCreated = new AtomicLong();
+
+	/**
+	 * Number of requests which continued existing session
+	 */
+	private final AtomicLong sessionsResumed = new AtomicLong();
+
+	/**
+	 * Number of requests served without session
+	 */
+	private final AtomicLong sessionsAvoided = new AtomicLong();
+
+	/**
+	 * Number of requests whose session changes were discarded because of
+	 * concurrent change
+	 */
+	private final AtomicLong sessionConflicts = new AtomicLong();
+
+	/**
+	 * Time in seconds for which idle persistent connection is kept open. If 0,
+	 * connection is closed after each response.
+	 */
+	private final int keepAliveTimeout;
+
+	/**
+	 * Maximal number of requests served on one connection
+	 */
+	private final int keepAliveMaxRequests;
+
+	/**
+	 * Size of buffer for one chunk of response with unknown length
+	 */
+	private final int chunkBufferSize;
+
+	/**
+	 * Size of buffer in which response is collected before it is written to
+	 * connection. If 0, response is written directly.
+	 */
+	private final int responseBufferSize;
+
+	/**
+	 * Pool of direct buffers in which responses are collected
+	 */
+	private final BufferPool directBuffers;
+
+	/**
+	 * Pool of buffers into which requests are received
+	 */
+	private final BufferPool heapBuffers;
+
+	/**
+	 * Maximal length of request body in bytes. Longer requests are rejected
+	 * with status 413.
+	 */
+	private final int maxBodySize;
+
+	/**
+	 * Maximal length of url encoded form in request body. Form is read into
+	 * memory, so its limit is smaller than limit of body.
+	 */
+	private final int maxFormSize;
+
 	/**
 	 * Mime types of request. Key of map is file extension, and value is mime
 	 * type. Example key=png, value = "image/png"
@@ -71,9 +225,33 @@ public class SmartHttpServer {
 	private final Map<String, String> mimeTypes = new HashMap<String, String>();
 
 	/**
-	 * Thread that accepts TCP connections, and forwards request to workers.
+	 * Threads that accept TCP connections, and forward requests to workers.
+	 * Depending on property server.ioModel they are {@link ServerThread} or
+	 * {@link NioServerThread}. They are created when server is started.
+	 */
+	private final List<Thread> serverThreads = new ArrayList<>();
+
+	/**
+	 * Flag that signals if connections are accepted with non-blocking IO
+	 */
+	private final boolean nio;
+
+	/**
+	 * Number of threads that accept connections
+	 */
+	private final int acceptors;
+
+	/**
+	 * Maximal number of connections which wait in operating system until
+	 * they are accepted
+	 */
+	private final int backlog;
+
+	/**
+	 * Socket option SO_REUSEPORT, or null if Java runtime does not have it.
+	 * It exists since Java 9, so it is looked up through reflection.
 	 */
-	private final ServerThread serverThread;
+	private static final SocketOption<Boolean> SO_REUSEPORT = findReusePort();
 
 	/**
 	 * Thread pool for workers
@@ -91,25 +269,53 @@ public class SmartHttpServer {
 	private final Path documentRoot;
 
 	/**
-	 * Map that contains workers. Key of map is requested URL form HTTP request
-	 * that worker already served.
+	 * Workers from workers configuration file and convention workers from
+	 * workers package
+	 */
+	private final WorkerRegistry workers;
+
+	/**
+	 * Store of sessions. Key of session is cookie name.
+	 */
+	private final SessionStore sessions;
+
+	/**
+	 * Number of shards of session store
+	 */
+	private static final int SESSION_SHARDS = 16;
+
+	/**
+	 * Generator of session IDs
+	 */
+	private final SessionIdGenerator sessionIds = new SessionIdGenerator();
+
+	/**
+	 * Cache of parsed .smscr scripts
 	 */
-	private final Map<String, IWebWorker> workersMap;
+	private final ScriptCache scriptCache;
 
 	/**
-	 * Map of sessions. Key is cookie name, and value is session.
+	 * Cache of small static files
 	 */
-	private final Map<String, SessionMapEntry> sessions = new ConcurrentHashMap<String, SmartHttpServer.SessionMapEntry>();
+	private final StaticContentCache staticCache;
 
 	/**
-	 * Random object for generating session id.
+	 * Settings of response compression, or null if responses are not
+	 * compressed
 	 */
-	private final Random sessionRandom = new Random();
+	private final Compression compression;
 
 	/**
-	 * Socket that accepts HTTP request in ServerThread.
+	 * Cache of entity tags and modification dates of static files
 	 */
-	ServerSocket serverSocket = null;
+	private final ValidatorCache validatorCache = new ValidatorCache(1024);
+
+	/**
+	 * Channels that accept HTTP requests. There is one channel for each
+	 * acceptor thread if SO_REUSEPORT is supported, otherwise all acceptor
+	 * threads share one channel.
+	 */
+	private final List<ServerSocketChannel> listeners = new ArrayList<>();
 
 	/**
 	 * Constructor. Creates new server. Reads server's parameter from properties
@@ -238,7 +444,10 @@ public class SmartHttpServer {
 					.getProperty((String) mime).toLowerCase());
 		}
 
-		this.workersMap = new HashMap<>();
+		// Content-Type fields of configured mime types are encoded once
+		HeaderEncoder.registerMimeTypes(this.mimeTypes.values(), "UTF-8");
+
+		final Map<String, IWebWorker> workersMap = new HashMap<>();
 
 		if (serverProperties.containsKey("server.workers")) {
 			final String workersPath = serverProperties
@@ -289,14 +498,15 @@ public class SmartHttpServer {
 						}
 						Object newObject;
 						try {
-							newObject = referenceToClass.newInstance();
-						} catch (final Exception e) {
+							newObject = referenceToClass
+									.getDeclaredConstructor().newInstance();
+						} catch (final ReflectiveOperationException e) {
 							throw new RuntimeException(
 									"Unable to laod workers from file: "
 											+ workersPath);
 						}
 						final IWebWorker iww = (IWebWorker) newObject;
-						this.workersMap.put(path, iww);
+						workersMap.put(path, iww);
 					}
 				}
 			} catch (final IOException e) {
@@ -305,30 +515,260 @@ public class SmartHttpServer {
 			}
 		}
 
-		this.serverThread = new ServerThread();
+		this.workers = new WorkerRegistry(workersMap,
+				"hr.fer.zemris.java.webserver.workers", this.getClass()
+						.getClassLoader());
+
+		this.keepAliveTimeout = readIntProperty(serverProperties,
+				"server.keepAliveTimeout", 5);
+		this.keepAliveMaxRequests = readIntProperty(serverProperties,
+				"server.keepAliveMaxRequests", 100);
+
+		this.chunkBufferSize = readIntProperty(serverProperties,
+				"server.chunkBufferSize",
+				RequestContext.DEFAULT_CHUNK_BUFFER_SIZE);
+		this.responseBufferSize = readIntProperty(serverProperties,
+				"server.responseBufferSize", 16 * 1024);
+		// requests are read from socket stream, which needs heap buffers
+		final boolean bufferDebug = Boolean.parseBoolean(serverProperties
+				.getProperty("server.bufferPoolDebug", "false").trim());
+		this.directBuffers = new BufferPool(true, bufferDebug);
+		this.heapBuffers = new BufferPool(false, bufferDebug);
+
+		this.maxBodySize = readIntProperty(serverProperties,
+				"server.maxBodySize", 10 * 1024 * 1024);
+		this.maxFormSize = readIntProperty(serverProperties,
+				"server.maxFormSize", 1024 * 1024);
+
+		this.scriptCache = new ScriptCache(readIntProperty(serverProperties,
+				"server.scriptCacheSize", 64));
+		this.staticCache = new StaticContentCache(this.documentRoot,
+				readIntProperty(serverProperties, "server.staticCacheSize",
+						16 * 1024 * 1024), readIntProperty(serverProperties,
+						"server.staticCacheMaxFileSize", 1024 * 1024));
+
+		if (serverProperties.containsKey("server.compressionConfig")) {
+			this.compression = Compression.load(Paths.get(serverProperties
+					.getProperty("server.compressionConfig").trim()),
+					readIntProperty(serverProperties,
+							"server.compressionMinSize", 1024));
+		} else {
+			this.compression = null;
+		}
+
+		final String executor = serverProperties.getProperty(
+				"server.executor", "platform").trim();
+		if (executor.equalsIgnoreCase("virtual")) {
+			if (!LimitedExecutor.isVirtualThreadSupported()) {
+				throw new RuntimeException(
+						"server.executor=virtual requires Java 21 or newer");
+			}
+			this.virtualThreads = true;
+		} else if (executor.equalsIgnoreCase("platform")) {
+			this.virtualThreads = false;
+		} else {
+			throw new RuntimeException(
+					"server.executor in properties must be platform or virtual");
+		}
+		this.maxConcurrentRequests = readIntProperty(serverProperties,
+				"server.maxConcurrentRequests", 10000);
+
+		this.queueSize = readIntProperty(serverProperties, "server.queueSize",
+				100);
+		this.queueTimeout = readIntProperty(serverProperties,
+				"server.queueTimeout", 10000);
+		this.serviceUnavailable = serviceUnavailableResponse(readIntProperty(
+				serverProperties, "server.retryAfter", 1));
+
+		final String ioModel = serverProperties.getProperty("server.ioModel",
+				"blocking").trim();
+		if (ioModel.equalsIgnoreCase("nio")) {
+			this.nio = true;
+		} else if (ioModel.equalsIgnoreCase("blocking")) {
+			this.nio = false;
+		} else {
+			throw new RuntimeException(
+					"server.ioModel in properties must be nio or blocking");
+		}
+		// sessions from previous run are loaded before first request
+		SessionPersistence persistence = null;
+		final String sessionFile = serverProperties
+				.getProperty("session.persistenceFile");
+		if (sessionFile != null && !sessionFile.trim().isEmpty()) {
+			persistence = new SessionLog(Paths.get(sessionFile.trim()));
+		}
+		this.sessions = new SessionStore(SESSION_SHARDS, persistence);
+		this.lazySessions = Boolean.parseBoolean(serverProperties.getProperty(
+				"session.lazy", "true").trim());
+		try {
+			this.sessions.recover(System.currentTimeMillis());
+		} catch (final IOException e) {
+			throw new RuntimeException("Cannot load sessions from file: "
+					+ sessionFile, e);
+		}
+
+		this.acceptors = Math.max(1,
+				readIntProperty(serverProperties, "server.acceptors", 1));
+		this.backlog = readIntProperty(serverProperties, "server.backlog", 50);
 		this.cleaner = new CleanerThread();
 
 	}
 
+	/**
+	 * Finds socket option SO_REUSEPORT.
+	 * 
+	 * @return socket option, or null if Java runtime does not have it
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> findReusePort() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+		} catch (final ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens channels on which connections are accepted. With more acceptor
+	 * threads and SO_REUSEPORT support, each thread gets its own channel and
+	 * operating system balances new connections between them. Otherwise one
+	 * channel is shared by all threads.
+	 * 
+	 * @throws RuntimeException
+	 *             if channel cannot be bound to address and port of server
+	 */
+	private void openListeners() {
+		boolean reusePort = false;
+		if (this.acceptors > 1 && SO_REUSEPORT != null) {
+			try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+				reusePort = probe.supportedOptions().contains(SO_REUSEPORT);
+			} catch (final IOException e) {
+			}
+		}
+
+		final int channels = reusePort ? this.acceptors : 1;
+		for (int i = 0; i < channels; i++) {
+			ServerSocketChannel channel = null;
+			try {
+				// accepted sockets come from channel, so they also have
+				// channels which are used for zero-copy file transfer
+				channel = ServerSocketChannel.open();
+				if (reusePort) {
+					channel.setOption(SO_REUSEPORT, true);
+				}
+				channel.bind(new InetSocketAddress(InetAddress
+						.getByName(this.address), this.port), this.backlog);
+				if (this.nio) {
+					channel.configureBlocking(false);
+				}
+			} catch (final IOException e) {
+				closeQuietly(channel);
+				for (final ServerSocketChannel listener : this.listeners) {
+					closeQuietly(listener);
+				}
+				this.listeners.clear();
+				throw new RuntimeException(
+						"Cannot create server socket at specified port");
+			}
+			this.listeners.add(channel);
+		}
+	}
+
+	/**
+	 * Reads optional integer property.
+	 * 
+	 * @param properties
+	 *            server properties
+	 * @param name
+	 *            name of property
+	 * @param defaultValue
+	 *            value used if property is missing
+	 * @return value of property, or default value if property is missing
+	 * @throws RuntimeException
+	 *             if property is not integer number
+	 */
+	private static int readIntProperty(Properties properties, String name,
+			int defaultValue) {
+		final String value = properties.getProperty(name);
+		if (value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (final NumberFormatException e) {
+			throw new RuntimeException(name
+					+ " in properties is not integer number", e);
+		}
+	}
+
+	/**
+	 * Returns statistics of server caches and executor.
+	 * 
+	 * @return statistics as text, one line for each cache
+	 */
+	public String getStatistics() {
+		return "Sessions: " + this.sessions + "\n" + "Script cache: "
+				+ this.scriptCache + "\n" + "Static cache: "
+				+ this.staticCache + "\n" + "Workers: " + this.workers + "\n"
+				+ "Executor: " + this.threadPool + "\n" + "Overload: rejected="
+				+ this.rejected.get() + ", shed=" + this.shed.get() + "\n"
+				+ "Session use: lazy=" + this.lazySessions + ", created="
+				+ this.sessionsCreated.get() + ", resumed="
+				+ this.sessionsResumed.get() + ", without session="
+				+ this.sessionsAvoided.get() + ", conflicts="
+				+ this.sessionConflicts.get() + "\n" + "Buffers: "
+				+ this.directBuffers + "; " + this.heapBuffers;
+	}
+
 	/**
 	 * Starts server. Creates main thread which forwards requests to workers,
 	 * and cleaner thread which removes outdated cookies.
 	 */
 	protected synchronized void start() {
 
-		// … start server thread if not already running …
-		if (!this.serverThread.isAlive()) {
-			this.serverThread.start();
+		// … init threadpool by Executors.newFixedThreadPool(...); …
+		// thread pool must exist before first connection is accepted
+
+		// virtual threads are cheap, so their number is limited only by
+		// number of concurrent requests
+		if (this.virtualThreads) {
+			this.threadPool = LimitedExecutor
+					.newVirtualThreadExecutor(this.maxConcurrentRequests);
+		} else {
+			// queue is bounded, so connections which cannot be served soon
+			// are rejected instead of piling up in memory
+			BlockingQueue<Runnable> queue;
+			if (this.queueSize > 0) {
+				queue = new ArrayBlockingQueue<>(this.queueSize);
+			} else {
+				queue = new SynchronousQueue<>();
+			}
+			this.threadPool = new ThreadPoolExecutor(this.workerThreads,
+					this.workerThreads, 0L, TimeUnit.MILLISECONDS, queue, (
+							task, executor) -> ((ClientWorker) task)
+							.reject(this.rejected));
+		}
+
+		// … start server threads if not already running …
+		if (this.serverThreads.isEmpty()) {
+			this.openListeners();
+			for (int i = 0; i < this.acceptors; i++) {
+				final ServerSocketChannel channel = this.listeners.get(i
+						% this.listeners.size());
+				final Thread thread = this.nio ? new NioServerThread(channel)
+						: new ServerThread(channel);
+				thread.setName("acceptor-" + i);
+				this.serverThreads.add(thread);
+				thread.start();
+			}
 		}
 
 		if (!this.cleaner.isAlive()) {
 			this.cleaner.start();
 		}
 
-		// … init threadpool by Executors.newFixedThreadPool(...); …
-
-		this.threadPool = Executors.newFixedThreadPool(this.workerThreads);
-
 	}
 
 	/**
@@ -338,39 +778,92 @@ public class SmartHttpServer {
 	protected synchronized void stop() {
 
 		stop = true;
-		// … signal server thread to stop running …
-		while (!this.serverThread.isInterrupted()) {
-			this.serverThread.interrupt();
+		// … signal server threads to stop running …
+		for (final Thread thread : this.serverThreads) {
+			while (!thread.isInterrupted()) {
+				thread.interrupt();
+			}
 		}
 
-		try {
-			serverSocket.close();
-		} catch (IOException e) {
+		for (final ServerSocketChannel listener : this.listeners) {
+			closeQuietly(listener);
 		}
 
 		while (!this.cleaner.isInterrupted()) {
 			this.cleaner.interrupt();
 		}
+		// flush of cleaner must end before sessions are closed
+		try {
+			this.cleaner.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 
 		// … shutdown threadpool …
 		this.threadPool.shutdown();
+
+		// sessions changed by last requests are written before server exits
+		try {
+			this.threadPool.awaitTermination(
+					Math.max(1, this.keepAliveTimeout) + 1, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			this.sessions.close();
+		} catch (final IOException e) {
+			System.out.println("Cannot write sessions: " + e.getMessage());
+		}
+
+		this.staticCache.close();
+
+		if (this.directBuffers.reportLeaks(System.out) > 0
+				| this.heapBuffers.reportLeaks(System.out) > 0) {
+			System.out.println("Some buffers were not returned to pool!");
+		}
 	}
 
 	/**
-	 * Generate session id
+	 * Forwards connection to worker thread. If executor cannot accept it,
+	 * connection gets "503 Service Unavailable" and is closed.
 	 * 
-	 * @return String with 20 characters of upper-case letters, pseudo-randomly
-	 *         generated.
+	 * @param worker
+	 *            worker that serves connection
 	 */
-	private synchronized String generateSessionID() {
-		final StringBuilder sb = new StringBuilder();
-
-		for (int i = 0; i < 20; i++) {
-			final char c = (char) (this.sessionRandom.nextInt(26) + 65);
-			sb.append(c);
+	private void execute(ClientWorker worker) {
+		try {
+			this.threadPool.execute(worker);
+		} catch (final RejectedExecutionException e) {
+			worker.reject(this.rejected);
 		}
+	}
+
+	/**
+	 * Creates response sent to connections which are rejected because
+	 * server is overloaded.
+	 * 
+	 * @param retryAfter
+	 *            number of seconds after which client should try again
+	 * @return bytes of response
+	 */
+	private static byte[] serviceUnavailableResponse(int retryAfter) {
+		final String body = "503 Service Unavailable";
+		return ("HTTP/1.1 503 Service Unavailable\r\n" + "Retry-After: "
+				+ retryAfter + "\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Content-Length: " + body.length() + "\r\n"
+				+ "Connection: close\r\n\r\n" + body)
+				.getBytes(StandardCharsets.US_ASCII);
+	}
 
-		return sb.toString();
+	/**
+	 * Generate session id
+	 * 
+	 * @return String with 32 characters of upper-case letters and digits,
+	 *         generated by secure random generator.
+	 */
+	private String generateSessionID() {
+		return this.sessionIds.next();
 	}
 
 	/**
@@ -381,19 +874,29 @@ public class SmartHttpServer {
 	 */
 	protected class ServerThread extends Thread {
 
+		/**
+		 * Socket that accepts connections. It can be shared with other
+		 * acceptor threads.
+		 */
+		private final ServerSocket serverSocket;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param channel
+		 *            bound channel that accepts connections
+		 */
+		public ServerThread(ServerSocketChannel channel) {
+			this.serverSocket = channel.socket();
+		}
+
 		/**
 		 * Accepts request from users and forwards them to workers.
 		 */
 		@Override
 		public void run() {
 
-			try {
-				serverSocket = new ServerSocket(SmartHttpServer.this.port, 50,
-						InetAddress.getByName(SmartHttpServer.this.address));
-			} catch (final IOException e) {
-				throw new RuntimeException(
-						"Cannot create server socket at specified port");
-			}
+			final ServerSocket serverSocket = this.serverSocket;
 
 			while (true) {
 
@@ -409,8 +912,7 @@ public class SmartHttpServer {
 				}
 
 				if (client != null) {
-					final ClientWorker worker = new ClientWorker(client);
-					SmartHttpServer.this.threadPool.submit(worker);
+					SmartHttpServer.this.execute(new ClientWorker(client));
 				}
 			}
 
@@ -422,129 +924,973 @@ public class SmartHttpServer {
 	}
 
 	/**
-	 * Signal to stop server
-	 */
-	private volatile boolean stop = false;
-
-	/**
-	 * Cleaner thread of server.
-	 * 
-	 * @author Nikola Sekulić
-	 * 
-	 */
-	protected class CleanerThread extends Thread {
-
-		/**
-		 * Periodically after each one minute cleans expired sessions.
-		 */
-		@Override
-		public void run() {
-
-			while (true) {
-
-				if (stop) {
-					break;
-				}
-
-				try {
-					Thread.sleep(1000 * 60);
-				} catch (final InterruptedException e) {
-					if (stop) {
-						break;
-					}
-				}
-
-				for (final String session : SmartHttpServer.this.sessions
-						.keySet()) {
-					if (SmartHttpServer.this.sessions.get(session).validUntil < System
-							.currentTimeMillis()) {
-						SmartHttpServer.this.sessions.remove(session);
-					}
-				}
-			}
-		}
-	}
-
-	/**
-	 * Worker thread. Accepts job from main thread and generate HTTP response.
+	 * Main thread of server that uses non-blocking IO. One selector watches
+	 * all connections while their request headers are arriving. Only when
+	 * complete header is received, connection is switched to blocking mode and
+	 * forwarded to worker, so idle or slow clients do not hold worker
+	 * threads.
 	 * 
 	 * @author Nikola Sekulić
 	 * 
 	 */
-	private class ClientWorker implements Runnable {
-
-		/**
-		 * Socket for communication wuth client
-		 */
-		private final Socket csocket;
-
-		/**
-		 * Stream for input data
-		 */
-		private PushbackInputStream istream;
+	protected class NioServerThread extends Thread {
 
 		/**
-		 * Stream for output data
+		 * Size of buffer for bytes received from one connection
 		 */
-		private OutputStream ostream;
+		private static final int READ_BUFFER_SIZE = 4096;
 
 		/**
-		 * Parameters from HTTP request.
+		 * Time in milliseconds after which connection without complete header
+		 * is closed
 		 */
-		private Map<String, String> params = new HashMap<String, String>();
+		private static final long IDLE_TIMEOUT = 60 * 1000;
 
 		/**
-		 * Permanent parameters from HTTP request.
+		 * Selector of connections
 		 */
-		private final Map<String, String> permParams = new HashMap<>();
+		private volatile Selector selector;
 
 		/**
-		 * Persistent parameters for RequestContext
+		 * Persistent connections returned by workers after response, which
+		 * wait for registration in selector.
 		 */
-		private final List<RCCookie> outputCookies = new ArrayList<RequestContext.RCCookie>();
+		private final Queue<PendingRequest> resumed = new ConcurrentLinkedQueue<>();
 
 		/**
-		 * Session ID
+		 * Channel that accepts connections, in non-blocking mode. It can be
+		 * registered in selectors of other acceptor threads too.
 		 */
-		private String SID;
+		private final ServerSocketChannel channel;
 
 		/**
 		 * Constructor
 		 * 
-		 * @param csocket
-		 *            socket on which response is sent.
+		 * @param channel
+		 *            bound channel in non-blocking mode that accepts
+		 *            connections
 		 */
-		public ClientWorker(Socket csocket) {
-			super();
-			this.csocket = csocket;
+		public NioServerThread(ServerSocketChannel channel) {
+			this.channel = channel;
 		}
 
 		/**
-		 * Reads all line from requests header, except last line which is empty
-		 * line.
+		 * Returns persistent connection to selector, which waits for next
+		 * request on it without holding worker thread.
 		 * 
-		 * @return lines of header
+		 * @param client
+		 *            connection on which response is finished
+		 * @param served
+		 *            number of requests already served on connection
+		 * @param parser
+		 *            parser of connection, reused for next request
 		 */
-		private List<String> readRequestHeaderLines() {
-			final List<String> lines = new ArrayList<>();
+		public void resume(SocketChannel client, int served,
+				HttpRequestParser parser) {
+			final Selector selector = this.selector;
+			if (selector == null || stop) {
+				closeQuietly(client);
+				return;
+			}
+			final PendingRequest request = new PendingRequest(client, served,
+					SmartHttpServer.this.keepAliveTimeout * 1000L, parser,
+					SmartHttpServer.this.heapBuffers.acquire(READ_BUFFER_SIZE));
+			this.resumed.add(request);
+			// selector thread could drain queue for last time before request
+			// was added; request which is still in queue is discarded here,
+			// otherwise selector thread took it
+			if (stop && this.resumed.remove(request)) {
+				discard(request);
+				return;
+			}
+			selector.wakeup();
+		}
+
+		/**
+		 * Accepts connections and reads request headers until server is
+		 * stopped.
+		 */
+		@Override
+		public void run() {
+
+			final ServerSocketChannel channel = this.channel;
+			Selector selector = null;
+
+			try {
+				selector = Selector.open();
+				channel.register(selector, SelectionKey.OP_ACCEPT);
+				this.selector = selector;
+			} catch (final IOException e) {
+				closeQuietly(selector);
+				throw new RuntimeException("Cannot create selector");
+			}
+
+			final List<SelectionKey> completed = new ArrayList<>();
+			long lastIdleCheck = System.currentTimeMillis();
+
+			while (!stop) {
+
+				try {
+					selector.select(1000);
+				} catch (final IOException e) {
+					break;
+				}
+
+				registerResumed(selector);
+
+				final Iterator<SelectionKey> keys = selector.selectedKeys()
+						.iterator();
+				while (keys.hasNext()) {
+					final SelectionKey key = keys.next();
+					keys.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						accept(selector, channel);
+					} else if (key.isReadable() && read(key)) {
+						key.cancel();
+						completed.add(key);
+					}
+				}
+
+				if (!completed.isEmpty()) {
+					// cancelled keys are deregistered on next selection, only
+					// then channel can be switched to blocking mode
+					try {
+						selector.selectNow();
+					} catch (final IOException e) {
+					}
+					for (final SelectionKey key : completed) {
+						dispatch(key);
+					}
+					completed.clear();
+				}
+
+				final long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= 1000) {
+					closeIdleConnections(selector, now);
+					lastIdleCheck = now;
+				}
+			}
+
+			for (final SelectionKey key : selector.keys()) {
+				// cancelled key was already discarded or dispatched to worker,
+				// which owns its buffer
+				if (!key.isValid()) {
+					continue;
+				}
+				if (key.attachment() instanceof PendingRequest) {
+					discard((PendingRequest) key.attachment());
+				} else {
+					closeQuietly(key.channel());
+				}
+			}
+			closeQuietly(selector);
+
+			PendingRequest request;
+			while ((request = this.resumed.poll()) != null) {
+				discard(request);
+			}
+		}
+
+		/**
+		 * Closes connection and returns its buffer to pool. Buffer is
+		 * returned only once, even if request is discarded again.
+		 * 
+		 * @param request
+		 *            request which is not received completely
+		 */
+		private void discard(PendingRequest request) {
+			closeQuietly(request.client);
+			SmartHttpServer.this.heapBuffers.release(request.buffer);
+			request.buffer = null;
+		}
+
+		/**
+		 * Registers persistent connections returned by workers.
+		 * 
+		 * @param selector
+		 *            selector of server
+		 */
+		private void registerResumed(Selector selector) {
+			PendingRequest request;
+			while ((request = this.resumed.poll()) != null) {
+				try {
+					request.client.configureBlocking(false);
+					request.client.register(selector, SelectionKey.OP_READ,
+							request);
+				} catch (final IOException e) {
+					discard(request);
+				}
+			}
+		}
 
-			final BufferedReader reader = new BufferedReader(
-					new InputStreamReader(this.istream,
-							StandardCharsets.US_ASCII));
+		/**
+		 * Accepts new connection and registers it for reading.
+		 * 
+		 * @param selector
+		 *            selector of server
+		 * @param channel
+		 *            server channel
+		 */
+		private void accept(Selector selector, ServerSocketChannel channel) {
+			SocketChannel client = null;
+			try {
+				client = channel.accept();
+				if (client == null) {
+					return;
+				}
+				client.configureBlocking(false);
+			} catch (final IOException e) {
+				closeQuietly(client);
+				return;
+			}
+
+			final PendingRequest request = new PendingRequest(client, 0,
+					IDLE_TIMEOUT, new HttpRequestParser(),
+					SmartHttpServer.this.heapBuffers.acquire(READ_BUFFER_SIZE));
+			try {
+				client.register(selector, SelectionKey.OP_READ, request);
+			} catch (final IOException e) {
+				discard(request);
+			}
+		}
+
+		/**
+		 * Reads available bytes from connection.
+		 * 
+		 * @param key
+		 *            key of connection
+		 * @return true if complete request header is received, false
+		 *         otherwise
+		 */
+		private boolean read(SelectionKey key) {
+			final SocketChannel client = (SocketChannel) key.channel();
+			final PendingRequest request = (PendingRequest) key.attachment();
+
+			int bytes;
+			try {
+				bytes = client.read(request.buffer);
+			} catch (final IOException e) {
+				bytes = -1;
+			}
+
+			if (bytes == -1) {
+				key.cancel();
+				discard(request);
+				return false;
+			}
+
+			request.lastActivity = System.currentTimeMillis();
+
+			// parser consumes bytes only up to end of header
+			request.buffer.flip();
+			try {
+				if (request.parser.parse(request.buffer)) {
+					return true;
+				}
+			} catch (final HttpParseException e) {
+				key.cancel();
+				try {
+					client.write(ByteBuffer.wrap(invalidRequestResponse(e
+							.getMessage())));
+				} catch (final IOException e1) {
+				}
+				discard(request);
+				return false;
+			}
+			request.buffer.clear();
+
+			return false;
+		}
+
+		/**
+		 * Switches connection to blocking mode and forwards it to worker.
+		 * 
+		 * @param key
+		 *            cancelled key of connection
+		 */
+		private void dispatch(SelectionKey key) {
+			final SocketChannel client = (SocketChannel) key.channel();
+			final PendingRequest request = (PendingRequest) key.attachment();
+
+			try {
+				client.configureBlocking(true);
+			} catch (final IOException e) {
+				discard(request);
+				return;
+			}
+
+			SmartHttpServer.this.execute(new ClientWorker(client.socket(),
+					request.parser, request.buffer, request.served, this));
+		}
+
+		/**
+		 * Closes connections which did not send complete header in time.
+		 * 
+		 * @param selector
+		 *            selector of server
+		 * @param now
+		 *            current time in milliseconds
+		 */
+		private void closeIdleConnections(Selector selector, long now) {
+			for (final SelectionKey key : selector.keys()) {
+				// cancelled key stays in set until next selection
+				if (!key.isValid()) {
+					continue;
+				}
+				final Object attachment = key.attachment();
+				if (attachment instanceof PendingRequest
+						&& ((PendingRequest) attachment).isExpired(now)) {
+					key.cancel();
+					discard((PendingRequest) attachment);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Maximal number of unread body bytes which are discarded to keep
+	 * connection open. Connection with longer unread body is closed.
+	 */
+	private static final long MAX_DISCARDED_BODY = 64 * 1024;
+
+	/**
+	 * Size of buffer for bytes received by worker
+	 */
+	private static final int INPUT_BUFFER_SIZE = 4096;
+
+	/**
+	 * Interim response sent to client which waits for permission to send
+	 * request body
+	 */
+	private static final byte[] CONTINUE_RESPONSE = "HTTP/1.1 100 Continue\r\n\r\n"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Mime type of url encoded form
+	 */
+	private static final String FORM_MIME_TYPE = "application/x-www-form-urlencoded";
+
+	/**
+	 * Boundary between parts of multipart/byteranges response
+	 */
+	private static final String MULTIPART_BOUNDARY = "SMARTHTTP"
+			+ Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+	/**
+	 * End of multipart/byteranges body
+	 */
+	private static final byte[] MULTIPART_END = ("\r\n--" + MULTIPART_BOUNDARY + "--\r\n")
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Creates response sent by selector thread to client whose request header
+	 * cannot be parsed. Connection is closed after response.
+	 * 
+	 * @param message
+	 *            description of error
+	 * @return bytes of response
+	 */
+	private static byte[] invalidRequestResponse(String message) {
+		final String body = "400 " + message;
+		return ("HTTP/1.1 400 INVALID REQUEST\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Content-Length: " + body.length() + "\r\n"
+				+ "Connection: close\r\n\r\n" + body)
+				.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Request header which is being received by {@link NioServerThread}.
+	 * 
+	 * @author Nikola Sekulić
+	 * 
+	 */
+	private static class PendingRequest {
+
+		/**
+		 * Connection on which request is received
+		 */
+		private final SocketChannel client;
+
+		/**
+		 * Number of requests already served on connection
+		 */
+		private final int served;
+
+		/**
+		 * Time in milliseconds after which incomplete request is dropped
+		 */
+		private final long timeout;
+
+		/**
+		 * Received bytes which are not yet parsed, taken from pool, or null
+		 * after buffer is returned
+		 */
+		private ByteBuffer buffer;
+
+		/**
+		 * Parser of request header
+		 */
+		private final HttpRequestParser parser;
+
+		/**
+		 * Time of last received bytes
+		 */
+		private long lastActivity = System.currentTimeMillis();
+
+		/**
+		 * Constructor
+		 * 
+		 * @param client
+		 *            connection on which request is received
+		 * @param served
+		 *            number of requests already served on connection
+		 * @param timeout
+		 *            time in milliseconds after which incomplete request is
+		 *            dropped
+		 * @param parser
+		 *            parser of request header, reset for new request
+		 * @param buffer
+		 *            empty buffer for received bytes
+		 */
+		public PendingRequest(SocketChannel client, int served, long timeout,
+				HttpRequestParser parser, ByteBuffer buffer) {
+			this.client = client;
+			this.served = served;
+			this.timeout = timeout;
+			this.parser = parser;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Checks if connection waits for request for too long.
+		 * 
+		 * @param now
+		 *            current time in milliseconds
+		 * @return true if connection should be closed
+		 */
+		private boolean isExpired(long now) {
+			return now - this.lastActivity > this.timeout;
+		}
+	}
+
+	/**
+	 * Closes resource and ignores errors.
+	 * 
+	 * @param closeable
+	 *            resource to close, can be null
+	 */
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (final IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Signal to stop server
+	 */
+	private volatile boolean stop = false;
+
+	/**
+	 * Cleaner thread of server.
+	 * 
+	 * @author Nikola Sekulić
+	 * 
+	 */
+	protected class CleanerThread extends Thread {
+
+		/**
+		 * Periodically after each second removes expired sessions and writes
+		 * changed sessions to persistent storage. Only sessions which could
+		 * have expired since last run are checked.
+		 */
+		@Override
+		public void run() {
 
 			while (true) {
+
+				if (stop) {
+					break;
+				}
+
 				try {
-					final String line = reader.readLine();
-					if (line == null || line.trim().isEmpty()) {
+					Thread.sleep(1000);
+				} catch (final InterruptedException e) {
+					if (stop) {
 						break;
-					} else {
-						lines.add(line.trim());
 					}
+				}
+
+				SmartHttpServer.this.sessions.evictExpired(System
+						.currentTimeMillis());
+				// changed sessions are written behind requests, in batch
+				try {
+					SmartHttpServer.this.sessions.flush();
 				} catch (final IOException e) {
 				}
 			}
+		}
+	}
+
+	/**
+	 * Worker thread. Accepts job from main thread and generate HTTP response.
+	 * 
+	 * @author Nikola Sekulić
+	 * 
+	 */
+	private class ClientWorker implements Runnable {
+
+		/**
+		 * Socket for communication wuth client
+		 */
+		private final Socket csocket;
 
-			return lines;
+		/**
+		 * Stream for input data
+		 */
+		private InputStream istream;
+
+		/**
+		 * Stream for output data
+		 */
+		private OutputStream ostream;
+
+		/**
+		 * Bytes received from client which are not parsed yet. Buffer is in
+		 * read mode: unparsed bytes are between its position and limit. It is
+		 * taken from pool and returned when worker finishes.
+		 */
+		private ByteBuffer input;
+
+		/**
+		 * Buffer in which response is collected, or null if response is not
+		 * buffered. It is taken from pool and returned when worker finishes.
+		 */
+		private ByteBuffer output;
+
+		/**
+		 * Parser of request header, reused for all requests on connection
+		 */
+		private final HttpRequestParser parser;
+
+		/**
+		 * Encoder of response header, reused for all responses on connection
+		 */
+		private final HeaderEncoder headerEncoder = new HeaderEncoder();
+
+		/**
+		 * Encoder of script output, reused for all responses on connection
+		 */
+		private final TextEncoder textEncoder = new TextEncoder();
+
+		/**
+		 * Parameters from HTTP request.
+		 */
+		private Map<String, String> params = new HashMap<String, String>();
+
+		/**
+		 * Parameters of session as they were when request started
+		 */
+		private SessionAttributes permParams = SessionAttributes.EMPTY;
+
+		/**
+		 * Persistent parameters for RequestContext
+		 */
+		private final List<RCCookie> outputCookies = new ArrayList<RequestContext.RCCookie>();
+
+		/**
+		 * Session ID
+		 */
+		private String SID;
+
+		/**
+		 * Number of requests served on this connection
+		 */
+		private int served;
+
+		/**
+		 * Selector thread to which connection is returned after response, or
+		 * null if worker reads next request itself
+		 */
+		private final NioServerThread owner;
+
+		/**
+		 * Flag that signals if client wants to keep connection open after
+		 * current response
+		 */
+		private boolean keepAlive;
+
+		/**
+		 * Context of current response
+		 */
+		private RequestContext context;
+
+		/**
+		 * Flag that signals if current request uses HTTP/1.1 protocol
+		 */
+		private boolean http11;
+
+		/**
+		 * Header of current request, or null if it is not parsed yet
+		 */
+		private HttpRequestParser request;
+
+		/**
+		 * Body of current request, or null if request has no body
+		 */
+		private BodyInputStream body;
+
+		/**
+		 * Time when connection was forwarded to worker, in nanoseconds. It is
+		 * used to measure time which connection spent in queue.
+		 */
+		private final long created = System.nanoTime();
+
+		/**
+		 * Length of body of current request, or -1 if body is chunked
+		 */
+		private long bodyLength;
+
+		/**
+		 * Flag that signals if client waits for "100 Continue" before it
+		 * sends body
+		 */
+		private boolean continueExpected;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param csocket
+		 *            socket on which response is sent.
+		 */
+		public ClientWorker(Socket csocket) {
+			this(csocket, new HttpRequestParser(), null, 0, null);
+		}
+
+		/**
+		 * Constructor for connection from which request header is already
+		 * read.
+		 * 
+		 * @param csocket
+		 *            socket on which response is sent.
+		 * @param parser
+		 *            parser which already parsed request header, or new
+		 *            parser
+		 * @param input
+		 *            bytes received after request header, in read mode, can
+		 *            be null
+		 * @param served
+		 *            number of requests already served on connection
+		 * @param owner
+		 *            selector thread to which persistent connection is
+		 *            returned after response, or null
+		 */
+		public ClientWorker(Socket csocket, HttpRequestParser parser,
+				ByteBuffer input, int served, NioServerThread owner) {
+			super();
+			this.csocket = csocket;
+			this.parser = parser;
+			this.input = input;
+			this.served = served;
+			this.owner = owner;
+		}
+
+		/**
+		 * Reads request header from connection. Bytes are read into input
+		 * buffer and parsed directly from it; bytes after header stay in
+		 * buffer.
+		 * 
+		 * @return true if header is complete, false if connection is closed
+		 *         or timed out before request arrived
+		 * @throws HttpParseException
+		 *             if header is invalid or too large
+		 */
+		private boolean readRequest() {
+			while (!this.parser.parse(this.input)) {
+				// parser consumed all bytes, so whole buffer can be reused
+				this.input.clear();
+				int bytes;
+				try {
+					bytes = this.istream.read(this.input.array(),
+							this.input.arrayOffset(), this.input.capacity());
+				} catch (final IOException e) {
+					bytes = -1;
+				}
+				if (bytes == -1) {
+					this.input.limit(0);
+					return false;
+				}
+				this.input.limit(bytes);
+			}
+			return true;
+		}
+
+		/**
+		 * Creates context for response to current request.
+		 * 
+		 * @return new request context
+		 */
+		private RequestContext createContext() {
+			this.context = new RequestContext(this.ostream, this.params,
+					null, this.outputCookies);
+			// session parameters are immutable, so they are not copied
+			this.context.setPersistentParameters(this.permParams.asMap());
+			this.context.setKeepAlive(this.keepAlive);
+			this.context.setHeaderEncoder(this.headerEncoder);
+			this.context.setTextEncoder(this.textEncoder);
+			this.context.setServerHeaders(true);
+			this.context.setChunkedAllowed(this.http11);
+			this.context.setChunkBufferSize(SmartHttpServer.this.chunkBufferSize);
+			this.context.setOutputChannel(this.csocket.getChannel());
+			if (this.request != null) {
+				this.context.setMethod(this.request.getMethod());
+				this.context.setBody(this.body, this.bodyLength);
+			}
+			if (SmartHttpServer.this.compression != null
+					&& this.request != null) {
+				this.context.setCompression(SmartHttpServer.this.compression,
+						Compression.negotiate(this.getHeader("Accept-Encoding")));
+			}
+			if (SmartHttpServer.this.lazySessions && this.SID == null) {
+				this.context.setSessionStarter(this::startSession);
+			}
+			return this.context;
+		}
+
+		/**
+		 * Finishes current response.
+		 * 
+		 * @return true if connection can be used for next request
+		 */
+		private boolean finishResponse() {
+			if (this.context == null) {
+				return false;
+			}
+			if (this.SID == null) {
+				SmartHttpServer.this.sessionsAvoided.incrementAndGet();
+			}
+			try {
+				this.context.finish();
+			} catch (final IOException e) {
+				return false;
+			}
+			return this.context.isKeepAlive();
+		}
+
+		/**
+		 * Checks if client wants persistent connection. HTTP/1.1 connections
+		 * are persistent unless client sends "Connection: close", HTTP/1.0
+		 * connections only if client sends "Connection: keep-alive".
+		 * 
+		 * @param version
+		 *            version of HTTP protocol from request
+		 * @return true if connection should stay open after response
+		 */
+		private boolean isKeepAliveRequested(String version) {
+			if (stop || SmartHttpServer.this.keepAliveTimeout <= 0
+					|| this.served + 1 >= SmartHttpServer.this.keepAliveMaxRequests) {
+				return false;
+			}
+
+			String connection = this.getHeader("Connection");
+			if (connection != null) {
+				connection = connection.toLowerCase();
+			}
+
+			if (version.equalsIgnoreCase("HTTP/1.1")) {
+				return connection == null || !connection.contains("close");
+			}
+			return connection != null && connection.contains("keep-alive");
+		}
+
+		/**
+		 * Prepares stream of request body. Length of body is known from
+		 * Content-Length field, or body is sent in chunks and its length is
+		 * checked while it is read. Other transfer codings are not supported.
+		 * 
+		 * @return false if Content-Length or Transfer-Encoding field is
+		 *         invalid
+		 */
+		private boolean openBody() {
+			final String coding = this.getHeader("Transfer-Encoding");
+			if (coding != null) {
+				// chunked must be last coding, and other codings are not
+				// supported
+				if (!coding.trim().equalsIgnoreCase("chunked")) {
+					return false;
+				}
+				this.body = BodyInputStream.chunked(this.input, this.istream,
+						SmartHttpServer.this.maxBodySize);
+				this.bodyLength = -1;
+				return true;
+			}
+
+			final String length = this.getHeader("Content-Length");
+			if (length == null) {
+				return true;
+			}
+
+			final long bodyLength;
+			try {
+				bodyLength = Long.parseLong(length.trim());
+			} catch (final NumberFormatException e) {
+				return false;
+			}
+			if (bodyLength < 0) {
+				return false;
+			}
+			if (bodyLength > 0) {
+				this.body = new BodyInputStream(this.input, this.istream,
+						bodyLength);
+				this.bodyLength = bodyLength;
+			}
+			return true;
+		}
+
+		/**
+		 * Sends "100 Continue" if client waits for it before it sends body.
+		 * It is sent only when body is going to be read.
+		 * 
+		 * @return false if IO error occurs
+		 */
+		private boolean sendContinue() {
+			if (!this.continueExpected) {
+				return true;
+			}
+			this.continueExpected = false;
+			try {
+				this.ostream.write(CONTINUE_RESPONSE);
+				this.ostream.flush();
+			} catch (final IOException e) {
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Reads url encoded form from request body into parameters. Form is
+		 * read only from POST and PUT requests with Content-Type
+		 * application/x-www-form-urlencoded.
+		 * 
+		 * @return status code of error response, or 0 if form is read or
+		 *         request does not have form
+		 */
+		private int readForm() {
+			if (this.body == null
+					|| this.request.getMethod().equalsIgnoreCase("GET")) {
+				return 0;
+			}
+			final String contentType = this.getHeader("Content-Type");
+			if (contentType == null
+					|| !contentType.trim().toLowerCase()
+							.startsWith(FORM_MIME_TYPE)) {
+				return 0;
+			}
+
+			final int limit = SmartHttpServer.this.maxFormSize;
+			if (this.bodyLength > limit) {
+				return 413;
+			}
+			if (!this.sendContinue()) {
+				return 400;
+			}
+
+			final ByteArrayOutputStream form = new ByteArrayOutputStream(
+					this.bodyLength > 0 ? (int) this.bodyLength : 256);
+			final byte[] buffer = new byte[INPUT_BUFFER_SIZE];
+			try {
+				int bytes;
+				while ((bytes = this.body.read(buffer)) != -1) {
+					if (form.size() + bytes > limit) {
+						return 413;
+					}
+					form.write(buffer, 0, bytes);
+				}
+			} catch (final IOException e) {
+				return 400;
+			}
+
+			try {
+				this.parseFormParameters(new String(form.toByteArray(),
+						StandardCharsets.US_ASCII));
+			} catch (final IllegalArgumentException e) {
+				return 400;
+			}
+			return 0;
+		}
+
+		/**
+		 * Parses url encoded form and stores its fields into params map. Names
+		 * and values are decoded as UTF-8.
+		 * 
+		 * @param form
+		 *            url encoded form
+		 * @throws IllegalArgumentException
+		 *             if form has invalid escape sequence
+		 */
+		private void parseFormParameters(String form) {
+			for (final String field : form.split("&")) {
+				if (field.isEmpty()) {
+					continue;
+				}
+				final int equals = field.indexOf('=');
+				final String name = equals == -1 ? field : field.substring(0,
+						equals);
+				final String value = equals == -1 ? "" : field
+						.substring(equals + 1);
+				try {
+					this.params.put(URLDecoder.decode(name, "UTF-8"),
+							URLDecoder.decode(value, "UTF-8"));
+				} catch (final UnsupportedEncodingException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		/**
+		 * Discards unread part of request body, so next request on connection
+		 * can be parsed.
+		 * 
+		 * @return true if connection can be used for next request
+		 */
+		private boolean finishBody() {
+			if (this.body == null) {
+				return true;
+			}
+			// client which did not get "100 Continue" may never send body
+			if (this.continueExpected) {
+				return false;
+			}
+			try {
+				return this.body.drain(MAX_DISCARDED_BODY);
+			} catch (final IOException e) {
+				return false;
+			}
+		}
+
+		/**
+		 * Returns value of header field from current request. Name of field is
+		 * case insensitive. If field is sent more than once, last value is
+		 * returned.
+		 * 
+		 * @param name
+		 *            name of field
+		 * @return value of field, or null if request does not have that field
+		 *         or request is not parsed
+		 */
+		private String getHeader(String name) {
+			if (this.request == null) {
+				return null;
+			}
+			return this.request.getHeader(name);
 		}
 
 		/**
@@ -559,20 +1905,58 @@ public class SmartHttpServer {
 		 */
 		private void respondToInvalidRequest(int status, String message) {
 
-			final RequestContext context = new RequestContext(this.ostream,
-					this.params, this.permParams, this.outputCookies);
+			this.keepAlive = false;
+			this.sendError(this.createContext(), status, message);
+		}
+
+		/**
+		 * Sends response 405 to request which is not GET, for static file.
+		 * Connection stays open, because body of request is discarded.
+		 */
+		private void respondMethodNotAllowed() {
+			final RequestContext context = this.createContext();
+			context.addHeader("Allow", "GET");
+			this.sendError(context, 405, "Method not allowed");
+		}
+
+		/**
+		 * Reads url encoded form from request body. If form cannot be read,
+		 * sends error response.
+		 * 
+		 * @return true if request can be served, false if error response is
+		 *         sent
+		 */
+		private boolean readFormOrRespond() {
+			final int status = this.readForm();
+			if (status == 0) {
+				return true;
+			}
+			this.respondToInvalidRequest(status,
+					status == 413 ? "Form too large" : "Invalid form");
+			return false;
+		}
+
+		/**
+		 * Sends plain text error response with provided status code.
+		 * 
+		 * @param context
+		 *            context of response
+		 * @param status
+		 *            response status
+		 * @param message
+		 *            response message
+		 */
+		private void sendError(RequestContext context, int status,
+				String message) {
 			context.setStatusCode(status);
 			context.setStatusText("INVALID REQUEST");
 			context.setEncoding("utf-8");
 			context.setMimeType("text/plain");
+			final byte[] body = (Integer.toString(status) + " " + message)
+					.getBytes(StandardCharsets.UTF_8);
+			context.setContentLength(body.length);
 			try {
-				context.write(Integer.toString(status) + " " + message);
-			} catch (final IOException e) {
-				return;
-			}
-
-			try {
-				this.csocket.close();
+				context.write(body);
 			} catch (final IOException e) {
 			}
 		}
@@ -604,102 +1988,233 @@ public class SmartHttpServer {
 		}
 
 		/**
-		 * Executes job. Check if client has valid cookie. If it has, retrieves
-		 * data from previous session.
+		 * Sends "503 Service Unavailable" and closes connection. Connection
+		 * is rejected on acceptor thread, so response is written without
+		 * blocking: it is much smaller than send buffer of new connection, so
+		 * one write sends it, and connection of client which does not read
+		 * is closed without waiting. Request is not read, so bytes which
+		 * client already sent are discarded before connection is closed.
+		 * 
+		 * @param counter
+		 *            counter of rejected connections which is incremented
+		 */
+		private void reject(AtomicLong counter) {
+			counter.incrementAndGet();
+			// all connections are accepted by channels
+			final SocketChannel channel = this.csocket.getChannel();
+			try {
+				channel.configureBlocking(false);
+				final ByteBuffer response = ByteBuffer
+						.wrap(SmartHttpServer.this.serviceUnavailable);
+				channel.write(response);
+				if (!response.hasRemaining()) {
+					channel.shutdownOutput();
+					if (this.input == null) {
+						this.input = SmartHttpServer.this.heapBuffers
+								.acquire(INPUT_BUFFER_SIZE);
+					}
+					this.input.clear();
+					channel.read(this.input);
+				}
+			} catch (final IOException e) {
+			} finally {
+				this.releaseBuffers();
+				closeQuietly(this.csocket);
+			}
+		}
+
+		/**
+		 * Returns buffers of worker to pools.
+		 */
+		private void releaseBuffers() {
+			SmartHttpServer.this.heapBuffers.release(this.input);
+			this.input = null;
+			SmartHttpServer.this.directBuffers.release(this.output);
+			this.output = null;
+		}
+
+		/**
+		 * Executes job. Serves requests from connection until client or
+		 * server closes it. In NIO mode, persistent connection is returned to
+		 * selector after each response.
 		 */
 		@Override
 		public void run() {
+			// client that waited too long probably gave up, so its request is
+			// not served late
+			final long waited = System.nanoTime() - this.created;
+			if (SmartHttpServer.this.queueTimeout > 0
+					&& waited > SmartHttpServer.this.queueTimeout * 1000000L) {
+				this.reject(SmartHttpServer.this.shed);
+				return;
+			}
+
+			boolean resumed = false;
+			try {
+				resumed = this.serveConnection();
+			} finally {
+				this.releaseBuffers();
+				if (!resumed) {
+					closeQuietly(this.csocket);
+				}
+			}
+		}
+
+		/**
+		 * Serves requests from connection.
+		 * 
+		 * @return true if connection is returned to selector thread, false if
+		 *         it should be closed
+		 */
+		private boolean serveConnection() {
 
 			try {
 				this.csocket.setSoTimeout(60 * 1000);
 			} catch (final SocketException e1) {
-				return;
+				return false;
 			}
 
-			// obtain input stream from socket and wrap it to pushback input
-			// stream
+			// obtain input stream from socket; it is read directly into input
+			// buffer
 			try {
-				this.istream = new PushbackInputStream(
-						this.csocket.getInputStream());
+				this.istream = this.csocket.getInputStream();
 			} catch (final IOException e) {
-				return;
+				return false;
+			}
+			if (this.input == null) {
+				this.input = SmartHttpServer.this.heapBuffers
+						.acquire(INPUT_BUFFER_SIZE);
+				this.input.flip();
 			}
 
-			// obtain output stream from socket
+			// obtain output stream from socket; small writes of response are
+			// collected and sent together
 			try {
 				this.ostream = this.csocket.getOutputStream();
+				if (SmartHttpServer.this.responseBufferSize > 0) {
+					this.output = SmartHttpServer.this.directBuffers
+							.acquire(SmartHttpServer.this.responseBufferSize);
+					this.ostream = new ResponseBuffer(this.ostream,
+							this.csocket.getChannel(), this.output);
+				}
 			} catch (final IOException e) {
-				return;
+				return false;
 			}
 
-			// Then read complete request header from your client in separate
-			// method...
-
-			final List<String> request = this.readRequestHeaderLines();
-
-			final List<SessionMapEntry> cookies = this.findSesssions(request);
-
-			if (cookies == null || cookies.isEmpty()) {
-
-				final String id = SmartHttpServer.this.generateSessionID();
-				this.SID = id;
-
-				String cookieDomain = this.getDomainFormRequest(request);
-
-				if (cookieDomain.equalsIgnoreCase("localhost")) {
-					cookieDomain = null;
+			while (this.serveRequest()) {
+				this.served++;
+				if (!this.finishBody()) {
+					return false;
+				}
+				this.parser.reset();
+
+				// pipelined request which is already in buffer is served
+				// immediately; otherwise, connection waits for next request
+				// in selector
+				if (this.owner != null && !this.input.hasRemaining()) {
+					this.owner.resume(this.csocket.getChannel(), this.served,
+							this.parser);
+					return true;
 				}
 
-				this.outputCookies.add(new RCCookie(id, id, null, cookieDomain,
-						"/"));
-
-				SmartHttpServer.this.sessions.put(id, new SessionMapEntry(id,
-						System.currentTimeMillis()
-								+ SmartHttpServer.this.sessionTimeout * 1000,
-						this.params));
-			} else {
-				this.getParametersFromSessions(cookies);
+				try {
+					this.csocket
+							.setSoTimeout(SmartHttpServer.this.keepAliveTimeout * 1000);
+				} catch (final SocketException e) {
+					return false;
+				}
 			}
 
-			// If header is invalid (less then a line at least) return response
-			// status 400
+			return false;
+		}
 
-			if (request.size() == 0) {
-				this.respondToInvalidRequest(400, "Invalid request");
-				return;
-			}
+		/**
+		 * Reads one request from connection and sends response. Check if
+		 * client has valid cookie. If it has, retrieves data from previous
+		 * session.
+		 * 
+		 * @return true if connection can be used for next request
+		 */
+		private boolean serveRequest() {
+
+			this.params = new HashMap<String, String>();
+			this.permParams = SessionAttributes.EMPTY;
+			this.outputCookies.clear();
+			this.SID = null;
+			this.context = null;
+			this.keepAlive = false;
+			this.http11 = false;
+			this.request = null;
+			this.body = null;
+			this.bodyLength = 0;
+			this.continueExpected = false;
 
-			// Extract (method, requestedPath, version) from firstLine
-			final String firstLine = request.get(0);
-			final String[] firstLineParts = firstLine.trim().split("\\s+");
+			// Then read complete request header from your client in separate
+			// method...
 
-			if (firstLineParts.length != 3) {
-				this.respondToInvalidRequest(400, "Invalid request");
-				return;
+			try {
+				if (!this.readRequest()) {
+					return false;
+				}
+			} catch (final HttpParseException e) {
+				this.respondToInvalidRequest(400, e.getMessage());
+				return this.finishResponse();
 			}
+			final HttpRequestParser request = this.parser;
+			this.request = request;
+
+			// parser already checked that request line has method, target and
+			// version
 
 			// if method not GET or version not HTTP/1.0 or HTTP/1.1 return
 			// response status 400
 
-			if (!firstLineParts[0].equalsIgnoreCase("GET")) {
+			final String method = request.getMethod();
+			if (!method.equalsIgnoreCase("GET")
+					&& !method.equalsIgnoreCase("POST")
+					&& !method.equalsIgnoreCase("PUT")) {
 				this.respondToInvalidRequest(400,
-						"Only GET method is supported");
-				return;
+						"Only GET, POST and PUT methods are supported");
+				return this.finishResponse();
 			}
 
-			final String version = firstLineParts[2];
+			final String version = request.getVersion();
 			if (!version.equalsIgnoreCase("HTTP/1.0")
 					&& !version.equalsIgnoreCase("HTTP/1.1")) {
 				this.respondToInvalidRequest(400,
 						"Invalid version of HTTP protocol!");
-				return;
+				return this.finishResponse();
+			}
+
+			this.http11 = version.equalsIgnoreCase("HTTP/1.1");
+			this.keepAlive = this.isKeepAliveRequested(version);
+
+			// session is looked up only for valid requests
+			final List<SessionMapEntry> cookies = this.findSesssions();
+			if (!cookies.isEmpty()) {
+				this.getParametersFromSessions(cookies);
+				SmartHttpServer.this.sessionsResumed.incrementAndGet();
+			} else if (!SmartHttpServer.this.lazySessions) {
+				this.startSession();
+			}
+
+			// body must be read before next request on connection
+			if (!this.openBody()) {
+				this.respondToInvalidRequest(400,
+						"Invalid Content-Length or Transfer-Encoding");
+				return this.finishResponse();
+			}
+			if (this.bodyLength > SmartHttpServer.this.maxBodySize) {
+				this.respondToInvalidRequest(413, "Request body too large");
+				return this.finishResponse();
 			}
+			final String expect = this.getHeader("Expect");
+			this.continueExpected = this.body != null && this.http11
+					&& expect != null
+					&& expect.trim().equalsIgnoreCase("100-continue");
 
-			// String path; String paramString;
-			// (path, paramString) = split requestedPath to path and
-			// parameterString
-			final String[] urlParts = firstLineParts[1].trim().split("\\?");
-			String path = urlParts[0];
+			// path and query are already split by parser
+			String path = request.getPath();
 
 			if (path.startsWith("/")) {
 				path = path.substring(1);
@@ -715,31 +2230,34 @@ public class SmartHttpServer {
 
 			// parseParameters(paramString); ==> your method to fill map
 			// parameters
-			if (urlParts.length > 1) {
-				this.parseURLParameters(urlParts[1]);
+			final String query = request.getQuery();
+			if (query != null) {
+				this.parseURLParameters(query);
 			}
 
-			if (SmartHttpServer.this.workersMap.containsKey("/" + path)) {
-				SmartHttpServer.this.workersMap.get("/" + path).processRequest(
-						new RequestContext(this.ostream, this.params,
-								this.permParams, this.outputCookies));
-				try {
-					this.csocket.close();
-				} catch (final IOException e) {
+			// workers are resolved once and then served from registry
+			final IWebWorker worker = SmartHttpServer.this.workers.find(path);
+			if (worker != null) {
+				if (!this.readFormOrRespond() || !this.sendContinue()) {
+					return this.finishResponse();
 				}
-				return;
+				return this.executeWorker(worker);
+			}
+			if (SmartHttpServer.this.workers.isConventionPath(path)) {
+				this.respondToInvalidRequest(404, "File not found!");
+				return this.finishResponse();
+			}
 
-			} else {
-				if (path.matches("ext/[\\w]*")) {
-					final String workerName = path.split("/")[1];
-					this.executeWorker(workerName);
-					try {
-						this.csocket.close();
-					} catch (final IOException e) {
-					}
-					return;
-				}
+			final boolean get = method.equalsIgnoreCase("GET");
+			// hot static files are served from memory, without checking file
+			// system
+			final StaticContent cached = get ? SmartHttpServer.this.staticCache
+					.get(path) : null;
+			if (cached != null) {
+				this.sendContent(path, cached);
+				return this.finishResponse();
 			}
+
 			// requestedPath = resolve path with respect to documentRoot
 			// if requestedPath is not below documentRoot, return response
 			// status 403 forbidden
@@ -749,7 +2267,7 @@ public class SmartHttpServer {
 				webRoot = SmartHttpServer.this.documentRoot.toFile()
 						.getCanonicalPath();
 			} catch (final IOException e) {
-				return;
+				return false;
 			}
 
 			final Path canonicalPath = SmartHttpServer.this.documentRoot
@@ -759,12 +2277,12 @@ public class SmartHttpServer {
 			try {
 				requestPath = canonicalPath.toFile().getCanonicalPath();
 			} catch (final IOException e) {
-				return;
+				return false;
 			}
 
 			if (!requestPath.startsWith(webRoot)) {
 				this.respondToInvalidRequest(403, "FORBIDDEN");
-				return;
+				return this.finishResponse();
 			}
 
 			// check if requestedPath exists, is file and is readable; if not,
@@ -774,7 +2292,7 @@ public class SmartHttpServer {
 					|| !Files.isReadable(finalPath)
 					|| Files.isDirectory(finalPath, LinkOption.NOFOLLOW_LINKS)) {
 				this.respondToInvalidRequest(404, "File not found!");
-				return;
+				return this.finishResponse();
 			}
 
 			// else extract file extension
@@ -787,26 +2305,33 @@ public class SmartHttpServer {
 			}
 
 			if (extension != null && extension.equalsIgnoreCase("smscr")) {
+				if (!this.readFormOrRespond()) {
+					return this.finishResponse();
+				}
 				this.executeScript(finalPath);
+			} else if (!get) {
+				this.respondMethodNotAllowed();
 			} else {
-				this.sendFile(finalPath, extension);
+				this.sendFile(path, finalPath, extension);
 			}
 
-			try {
-				this.csocket.close();
-			} catch (final IOException e) {
-			}
+			return this.finishResponse();
 		}
 
 		/**
 		 * Sends file to client. With extension defines mime-type in response.
+		 * Small files are stored in static content cache and sent from there.
+		 * Larger files are sent from disk, and if client accepts gzip coding,
+		 * precompressed ".gz" version of file is sent instead of file.
 		 * 
+		 * @param requestPath
+		 *            path from request, used as key of cache
 		 * @param path
 		 *            path of file
 		 * @param extension
 		 *            extension of file.
 		 */
-		private void sendFile(Path path, String extension) {
+		private void sendFile(String requestPath, Path path, String extension) {
 			// find in mimeTypes map appropriate mimeType for current file
 			// extension
 			// (you filled that map during the construction of
@@ -821,6 +2346,61 @@ public class SmartHttpServer {
 				}
 			}
 
+			BasicFileAttributes attributes;
+			try {
+				attributes = Files.readAttributes(path,
+						BasicFileAttributes.class);
+			} catch (final IOException e) {
+				this.respondToInvalidRequest(404, "File not found!");
+				return;
+			}
+			Validators validators = SmartHttpServer.this.validatorCache.get(
+					path, attributes);
+
+			try {
+				final StaticContent content = SmartHttpServer.this.staticCache
+						.load(requestPath, path, mime, validators);
+				if (content != null) {
+					this.sendContent(requestPath, content);
+					return;
+				}
+			} catch (final IOException e) {
+			}
+
+			String contentCoding = null;
+			if (this.getContentCoding(mime, attributes.size()) != null
+					&& Compression.quality(
+							this.getHeader("Accept-Encoding"), Compression.GZIP) > 0) {
+				final Path precompressed = Compression.findPrecompressed(path);
+				if (precompressed != null) {
+					try {
+						attributes = Files.readAttributes(precompressed,
+								BasicFileAttributes.class);
+						path = precompressed;
+						validators = validators.withCoding(Compression.GZIP);
+						contentCoding = Compression.GZIP;
+					} catch (final IOException e) {
+					}
+				}
+			}
+
+			if (this.isNotModified(validators)) {
+				this.sendNotModified(validators, mime);
+				return;
+			}
+
+			final List<ByteRange> ranges = this.getRanges(validators,
+					attributes.size());
+			if (ranges != null) {
+				try (FileChannel file = FileChannel.open(path,
+						StandardOpenOption.READ)) {
+					this.sendRanges(ranges, mime, contentCoding, validators,
+							attributes.size(), file, null);
+				} catch (final IOException e) {
+				}
+				return;
+			}
+
 			// create a rc = new RequestContext(...); set mime-type; set
 			// status
 			// to 200
@@ -831,90 +2411,281 @@ public class SmartHttpServer {
 			// file
 			// has 12345 bytes
 
-			final RequestContext context = new RequestContext(this.ostream,
-					this.params, this.permParams, this.outputCookies);
-			try {
-				context.setContentLength(Files.size(path));
-			} catch (final IOException e1) {
-			}
-
+			final RequestContext context = this.createContext();
 			context.setStatusCode(200);
 			context.setMimeType(mime);
+			if (contentCoding != null) {
+				context.addHeader("Content-Encoding", contentCoding);
+			}
+			context.addHeader("ETag", validators.getETag());
+			context.addHeader("Last-Modified",
+					validators.getLastModifiedText());
+			context.addHeader("Accept-Ranges", "bytes");
+
+			// open file and transfer its content to rc (that will generate
+			// header and send file bytes to client without copying them)
+
+			try (FileChannel file = FileChannel.open(path,
+					StandardOpenOption.READ)) {
+				final long size = file.size();
+				context.setContentLength(size);
+				context.write(file, 0, size);
+			} catch (final IOException e) {
+			}
 
-			// open file, read its content and write it to rc (that will
-			// generate header and send
-			// file bytes to client)
-
-			BufferedInputStream fileStream = null;
-			final byte[] buffer = new byte[4096];
-			try {
-				fileStream = new BufferedInputStream(Files.newInputStream(path,
-						StandardOpenOption.READ));
+		}
 
-				while (true) {
-					final int bytes = fileStream.read(buffer);
-					if (bytes == -1) {
-						break;
+		/**
+		 * Sends cached static file to client. Pre-rendered header and content
+		 * are sent with one write if possible. If client accepts compressed
+		 * content, compressed version of file is sent.
+		 * 
+		 * @param requestPath
+		 *            path from request, used as key of cache
+		 * @param content
+		 *            cached file
+		 */
+		private void sendContent(String requestPath, StaticContent content) {
+			final String coding = this.getContentCoding(content.getMimeType(),
+					content.getSize());
+			if (coding != null) {
+				StaticContent variant = SmartHttpServer.this.staticCache.get(
+						requestPath, coding);
+				if (variant == null) {
+					try {
+						variant = SmartHttpServer.this.staticCache.loadVariant(
+								requestPath, content, coding);
+					} catch (final IOException e) {
 					}
+				}
+				if (variant != null) {
+					content = variant;
+				}
+			}
 
-					context.write(Arrays.copyOf(buffer, bytes));
+			if (this.isNotModified(content.getValidators())) {
+				this.sendNotModified(content.getValidators(),
+						content.getMimeType());
+				return;
+			}
+
+			final List<ByteRange> ranges = this.getRanges(
+					content.getValidators(), content.getSize());
+			if (ranges != null) {
+				try {
+					this.sendRanges(ranges, content.getMimeType(),
+							content.getContentCoding(),
+							content.getValidators(), content.getSize(), null,
+							content.getBody());
+				} catch (final IOException e) {
 				}
-			} catch (final IOException e) {
+				return;
 			}
 
+			final RequestContext context = this.createContext();
+			context.setStatusCode(200);
+			context.setMimeType(content.getMimeType());
+			context.setContentLength(content.getSize());
+			context.setHeaderPrefix(content.getHeaderPrefix());
+
 			try {
-				if(fileStream != null) {
-					fileStream.close();
-				}
-			} catch (final Exception e) {
+				context.write(content.getBody());
+			} catch (final IOException e) {
 			}
+		}
 
+		/**
+		 * Returns content coding in which static file should be sent. File is
+		 * compressed only if its mime type is compressible, it is not smaller
+		 * than minimal size for compression and client accepts compressed
+		 * content.
+		 * 
+		 * @param mime
+		 *            mime type of file
+		 * @param size
+		 *            size of file
+		 * @return name of content coding, or null if file is sent as it is
+		 */
+		private String getContentCoding(String mime, long size) {
+			if (!this.isCompressible(mime)
+					|| size < SmartHttpServer.this.compression.getMinSize()) {
+				return null;
+			}
+			return Compression.negotiate(this.getHeader(
+					"Accept-Encoding"));
 		}
 
 		/**
-		 * Executes worker {@link IWebWorker}.
+		 * Checks if responses with provided mime type are compressed.
 		 * 
-		 * @param workerName
-		 *            name of worker.
+		 * @param mime
+		 *            mime type of response
+		 * @return true if compression is enabled for mime type
 		 */
-		private void executeWorker(String workerName) {
-			final String className = workerName;
-			Class<?> referenceToClass = null;
-			try {
-				referenceToClass = this
-						.getClass()
-						.getClassLoader()
-						.loadClass(
-								"hr.fer.zemris.java.webserver.workers."
-										+ className);
-			} catch (final ClassNotFoundException e) {
-				this.respondToInvalidRequest(404, "File not found!");
-				try {
-					this.csocket.close();
-				} catch (final IOException e1) {
-				}
+		private boolean isCompressible(String mime) {
+			return SmartHttpServer.this.compression != null
+					&& SmartHttpServer.this.compression.isCompressible(mime);
+		}
+
+		/**
+		 * Returns ranges of file requested with Range field. Range is ignored
+		 * if If-Range field does not match current version of file.
+		 * 
+		 * @param validators
+		 *            validators of current version of file
+		 * @param size
+		 *            size of file
+		 * @return requested ranges, empty list if no range is satisfiable, or
+		 *         null if complete file should be sent
+		 */
+		private List<ByteRange> getRanges(Validators validators, long size) {
+			final String range = this.getHeader("Range");
+			if (range == null) {
+				return null;
+			}
+
+			final String ifRange = this.getHeader("If-Range");
+			if (ifRange != null && !validators.matchesIfRange(ifRange)) {
+				return null;
+			}
+
+			return ByteRange.parse(range, size);
+		}
+
+		/**
+		 * Sends parts of file. One range is sent as response 206 with
+		 * Content-Range field, more ranges as multipart/byteranges body. If no
+		 * range is satisfiable, response 416 is sent. Only requested bytes are
+		 * read from file or from cached content.
+		 * 
+		 * @param ranges
+		 *            requested ranges
+		 * @param mime
+		 *            mime type of file
+		 * @param contentCoding
+		 *            content coding of file, or null if file is not encoded
+		 * @param validators
+		 *            validators of current version of file
+		 * @param size
+		 *            size of file
+		 * @param file
+		 *            channel of file, or null if content is cached
+		 * @param body
+		 *            cached content, or null if it is read from file
+		 * @throws IOException
+		 *             if IO error occurs
+		 */
+		private void sendRanges(List<ByteRange> ranges, String mime,
+				String contentCoding, Validators validators, long size,
+				FileChannel file, ByteBuffer body) throws IOException {
+
+			final RequestContext context = this.createContext();
+
+			if (ranges.isEmpty()) {
+				context.setStatusCode(416);
+				context.setStatusText("Range Not Satisfiable");
+				context.setMimeType("text/plain");
+				context.addHeader("Content-Range", "bytes */" + size);
 				return;
 			}
-			Object newObject = null;
-			try {
-				newObject = referenceToClass.newInstance();
-			} catch (final Exception e) {
-				this.respondToInvalidRequest(404, "File not found!");
-				try {
-					this.csocket.close();
-				} catch (final IOException e1) {
-				}
+
+			context.setStatusCode(206);
+			context.setStatusText("Partial Content");
+			if (contentCoding != null) {
+				context.addHeader("Content-Encoding", contentCoding);
+			}
+			context.addHeader("ETag", validators.getETag());
+			context.addHeader("Last-Modified",
+					validators.getLastModifiedText());
+
+			if (ranges.size() == 1) {
+				final ByteRange range = ranges.get(0);
+				context.setMimeType(mime);
+				context.addHeader("Content-Range", range.toContentRange(size));
+				context.setContentLength(range.getLength());
+				this.writeRange(context, range, file, body);
 				return;
 			}
 
-			final IWebWorker iww = (IWebWorker) newObject;
-			iww.processRequest(new RequestContext(this.ostream, this.params,
-					this.permParams, this.outputCookies));
-			try {
-				this.csocket.close();
-			} catch (final IOException e) {
+			// length of multipart body is known in advance, so it is sent
+			// with Content-Length
+			final byte[][] partHeaders = new byte[ranges.size()][];
+			long length = MULTIPART_END.length;
+			for (int i = 0; i < partHeaders.length; i++) {
+				final ByteRange range = ranges.get(i);
+				partHeaders[i] = ("\r\n--" + MULTIPART_BOUNDARY + "\r\n"
+						+ "Content-Type: " + mime + "\r\n"
+						+ "Content-Range: " + range.toContentRange(size) + "\r\n\r\n")
+						.getBytes(StandardCharsets.US_ASCII);
+				length += partHeaders[i].length + range.getLength();
+			}
+
+			context.setMimeType("multipart/byteranges; boundary="
+					+ MULTIPART_BOUNDARY);
+			context.setContentLength(length);
+			for (int i = 0; i < partHeaders.length; i++) {
+				context.write(partHeaders[i]);
+				this.writeRange(context, ranges.get(i), file, body);
+			}
+			context.write(MULTIPART_END);
+		}
+
+		/**
+		 * Writes one range of file to context.
+		 * 
+		 * @param context
+		 *            context of response
+		 * @param range
+		 *            range to write
+		 * @param file
+		 *            channel of file, or null if content is cached
+		 * @param body
+		 *            cached content, or null if it is read from file
+		 * @throws IOException
+		 *             if IO error occurs
+		 */
+		private void writeRange(RequestContext context, ByteRange range,
+				FileChannel file, ByteBuffer body) throws IOException {
+			if (file != null) {
+				context.write(file, range.getFirst(), range.getLength());
+			} else {
+				final ByteBuffer slice = body.duplicate();
+				slice.position((int) range.getFirst());
+				slice.limit((int) (range.getLast() + 1));
+				context.write(slice);
 			}
+		}
+
+		/**
+		 * Checks if client already has current version of file, using
+		 * If-None-Match and If-Modified-Since fields of request.
+		 * 
+		 * @param validators
+		 *            validators of current version of file
+		 * @return true if response 304 should be sent
+		 */
+		private boolean isNotModified(Validators validators) {
+			return validators.isNotModified(
+					this.getHeader("If-None-Match"),
+					this.getHeader("If-Modified-Since"));
+		}
 
+		/**
+		 * Sends response 304 Not Modified, without body.
+		 * 
+		 * @param validators
+		 *            validators of current version of file
+		 * @param mime
+		 *            mime type of file
+		 */
+		private void sendNotModified(Validators validators, String mime) {
+			final RequestContext context = this.createContext();
+			context.setStatusCode(304);
+			context.setStatusText("Not Modified");
+			context.setMimeType(mime);
+			context.addHeader("ETag", validators.getETag());
+			context.addHeader("Last-Modified",
+					validators.getLastModifiedText());
 		}
 
 		/**
@@ -927,13 +2698,12 @@ public class SmartHttpServer {
 
 			String errorMessage = null;
 
-			final RequestContext context = new RequestContext(this.ostream,
-					this.params, this.permParams, this.outputCookies);
+			final RequestContext context = this.createContext();
 			context.setMimeType("text/plain");
 
-			List<String> lines = null;
+			CachedScript script = null;
 			try {
-				lines = Files.readAllLines(finalPath, StandardCharsets.UTF_8);
+				script = SmartHttpServer.this.scriptCache.get(finalPath);
 			} catch (final IOException e) {
 				errorMessage = "Cannot acces to script!";
 				try {
@@ -941,21 +2711,6 @@ public class SmartHttpServer {
 				} catch (final IOException e1) {
 				}
 				return;
-			}
-
-			final StringBuilder sb = new StringBuilder();
-			for (final String line : lines) {
-				sb.append(line).append("\r\n");
-			}
-
-			final String program = sb.toString();
-
-			SmartScriptParser parser = null;
-
-			try {
-
-				parser = new SmartScriptParser(program);
-
 			} catch (final SmartScriptParserException e) {
 				errorMessage = "SYNTAX ERROR IN SCRIPT!\r\n" + e.getMessage();
 				try {
@@ -972,21 +2727,24 @@ public class SmartHttpServer {
 				return;
 			}
 
+			// script can write output before it changes persistent
+			// parameters, so session cookie must be added before script is
+			// executed; script which only reads them needs no session
+			if (this.SID == null && script.changesPersistentParameters()) {
+				this.startSession();
+			}
+
 			final SmartScriptEngine engine = new SmartScriptEngine(
-					parser.getDocumentNode(), context);
+					script.getDocument(), context);
 
+			// scripts of same client which change parameters are executed
+			// one after another, so concurrent changes are not lost
+			final SessionMapEntry session = script
+					.changesPersistentParameters() ? this.lockSession(context)
+					: null;
 			try {
 				engine.execute();
-				if (this.SID != null
-						&& SmartHttpServer.this.sessions
-								.containsKey(this.SID)) {
-					for (final String name : context
-							.getPersistentParameterNames()) {
-						SmartHttpServer.this.sessions.get(this.SID).map
-								.put(name, context
-										.getPersistentParameter(name));
-					}
-				}
+				this.storePersistentParameters(context);
 			} catch (final Exception e) {
 				errorMessage = "EXECUTION ERROR IN SCRIPT!\r\n"
 						+ e.getMessage();
@@ -995,6 +2753,10 @@ public class SmartHttpServer {
 				} catch (final IOException e1) {
 				}
 				return;
+			} finally {
+				if (session != null) {
+					session.unlock();
+				}
 			}
 
 		}
@@ -1002,49 +2764,35 @@ public class SmartHttpServer {
 		/**
 		 * Finds if new client has valid stored cookie.
 		 * 
-		 * @param requestLines
-		 *            lines from HTTP request.
 		 * @return list of sessions in which client has got cookie that is still
 		 *         valid. If stored session for client is outdated, removes it
 		 *         from server, else, extend valid time for session.
 		 */
-		private List<SessionMapEntry> findSesssions(List<String> requestLines) {
+		private List<SessionMapEntry> findSesssions() {
 
 			final List<SessionMapEntry> list = new ArrayList<>();
 
 			final Set<String> checkedIDs = new HashSet<>();
 
-			for (String line : requestLines) {
-				if (line.trim().startsWith("Cookie:")
-						|| line.trim().startsWith("cookie:")) {
-					line = line.substring(7).trim();
-
-					final String[] cookies = line.split(";");
-
-					for (final String cookie : cookies) {
-						final String[] cookieParts = cookie.trim().split(
-								"=");
-						final String id = cookieParts[0].trim();
-
-						if (!checkedIDs.contains(id)) {
-							if (SmartHttpServer.this.sessions
-									.containsKey(id)) {
-								final SessionMapEntry session = SmartHttpServer.this.sessions
-										.get(id);
-								if (session.validUntil < System
-										.currentTimeMillis()) {
-									SmartHttpServer.this.sessions
-											.remove(id);
-								} else {
-									session.validUntil = System
-											.currentTimeMillis()
-											+ 1000
-											* SmartHttpServer.this.sessionTimeout;
-									list.add(session);
-								}
-							}
-							checkedIDs.add(id);
+			for (final String line : this.request.getHeaders("Cookie")) {
+				final String[] cookies = line.split(";");
+
+				for (final String cookie : cookies) {
+					final String[] cookieParts = cookie.trim().split(
+							"=");
+					final String id = cookieParts[0].trim();
+
+					if (!checkedIDs.contains(id)) {
+						// outdated session is removed by store
+						final long now = System.currentTimeMillis();
+						final SessionMapEntry session = SmartHttpServer.this.sessions
+								.get(id, now);
+						if (session != null) {
+							SmartHttpServer.this.sessions.touch(session, now
+									+ 1000 * SmartHttpServer.this.sessionTimeout);
+							list.add(session);
 						}
+						checkedIDs.add(id);
 					}
 				}
 			}
@@ -1054,83 +2802,163 @@ public class SmartHttpServer {
 		}
 
 		/**
-		 * Gets parameter from stored sessions.
-		 * 
-		 * @param sessions
-		 *            list of sessions.
+		 * Creates new session for client and adds its cookie to response.
+		 * Does nothing if request already has session.
 		 */
-		private synchronized void getParametersFromSessions(List<SessionMapEntry> sessions) {
-			for (final SessionMapEntry session : sessions) {
-				for (final String key : session.map.keySet()) {
-					final String value = session.map.get(key);
-					this.permParams.put(key, value);
-				}
-				this.SID = session.sid;
+		private void startSession() {
+			if (this.SID != null) {
+				return;
+			}
+
+			final String id = SmartHttpServer.this.generateSessionID();
+			this.SID = id;
+
+			String cookieDomain = this.getDomainFormRequest();
+
+			if (cookieDomain.equalsIgnoreCase("localhost")) {
+				cookieDomain = null;
+			}
+
+			final RCCookie cookie = new RCCookie(id, id, null, cookieDomain,
+					"/");
+			this.outputCookies.add(cookie);
+			if (this.context != null) {
+				this.context.addRCCookie(cookie);
+				this.context.setSessionStarter(null);
 			}
+
+			SmartHttpServer.this.sessions.put(new SessionMapEntry(id,
+					System.currentTimeMillis()
+							+ SmartHttpServer.this.sessionTimeout * 1000,
+					this.permParams.asMap()));
+			SmartHttpServer.this.sessionsCreated.incrementAndGet();
 		}
 
 		/**
-		 * Gets domain from HTTP request ("Host:" parameter)
+		 * Executes worker for current request. If worker fails before it
+		 * generates header, client gets "500 Internal Server Error";
+		 * otherwise response is incomplete, so connection is closed.
+		 * Changes of persistent parameters of failed worker are not stored.
 		 * 
-		 * @param requestLines
-		 *            lines of request
-		 * @return domain from request.
+		 * @param worker
+		 *            worker
+		 * @return true if connection can be used for next request
 		 */
-		private String getDomainFormRequest(List<String> requestLines) {
-			String domain = null;
-			for (final String line : requestLines) {
-				if (line.trim().startsWith("Host:")
-						|| line.trim().startsWith("host:")) {
-					domain = line.split(":")[1].trim();
-
-				}
+		private boolean executeWorker(IWebWorker worker) {
+			final RequestContext context = this.createContext();
+			final boolean changes = worker.changesPersistentParameters();
+			// worker can write output before it sets persistent parameters,
+			// so session cookie must be added before worker is executed
+			if (this.SID == null && changes) {
+				this.startSession();
 			}
 
-			if (domain == null) {
-				domain = SmartHttpServer.this.address;
+			final SessionMapEntry session = changes ? this
+					.lockSession(context) : null;
+			try {
+				worker.processRequest(context);
+				this.storePersistentParameters(context);
+			} catch (final RuntimeException e) {
+				System.out.println("Worker for " + this.request.getPath()
+						+ " failed: " + e.getMessage());
+				if (context.isHeaderGenerated()) {
+					return false;
+				}
+				this.respondToInvalidRequest(500, "Internal server error");
+			} finally {
+				if (session != null) {
+					session.unlock();
+				}
 			}
-
-			return domain;
+			return this.finishResponse();
 		}
-	}
 
-	/**
-	 * Session for server and client.
-	 * 
-	 * @author Nikola Sekulić
-	 * 
-	 */
-	public static class SessionMapEntry {
 		/**
-		 * Identifier of session
+		 * Takes session of client for request which changes persistent
+		 * parameters and gives context parameters as they are after changes
+		 * of requests which held session before.
+		 * 
+		 * @param context
+		 *            context of served request, nothing is read from it yet
+		 * @return locked session, or null if client has no session
 		 */
-		String sid;
+		private SessionMapEntry lockSession(RequestContext context) {
+			final SessionMapEntry session = this.SID == null ? null
+					: SmartHttpServer.this.sessions.get(this.SID,
+							System.currentTimeMillis());
+			if (session == null) {
+				return null;
+			}
+			session.lock();
+			this.permParams = session.getAttributes();
+			context.setPersistentParameters(this.permParams.asMap());
+			return session;
+		}
 
 		/**
-		 * Time after which session is outdated..
+		 * Stores persistent parameters of context into session of client.
+		 * 
+		 * @param context
+		 *            context of served request
 		 */
-		long validUntil;
+		private void storePersistentParameters(RequestContext context) {
+			final SessionMapEntry session = this.SID == null ? null
+					: SmartHttpServer.this.sessions.get(this.SID,
+							System.currentTimeMillis());
+			if (session == null) {
+				return;
+			}
+			// only changes are applied, so concurrent requests of same client
+			// do not overwrite each other's parameters; changes based on
+			// values changed by other request are discarded
+			try {
+				if (session.commit(this.permParams,
+						context.getPersistentParameterReads(),
+						context.getPersistentParameterChanges())) {
+					SmartHttpServer.this.sessions.markDirty(session);
+				}
+			} catch (final SessionConflictException e) {
+				SmartHttpServer.this.sessionConflicts.incrementAndGet();
+				System.out.println("Session changes of request for "
+						+ this.request.getPath() + " are discarded: "
+						+ e.getMessage());
+			}
+		}
 
 		/**
-		 * Stored parameters of session.
+		 * Gets parameter from stored sessions. If client has more sessions,
+		 * last one is used, because changes are written to it.
+		 * 
+		 * @param sessions
+		 *            list of sessions.
 		 */
-		Map<String, String> map;
+		private void getParametersFromSessions(List<SessionMapEntry> sessions) {
+			final SessionMapEntry session = sessions.get(sessions.size() - 1);
+			this.permParams = session.getAttributes();
+			this.SID = session.getSid();
+		}
 
 		/**
-		 * Constructor
+		 * Gets domain from HTTP request ("Host:" parameter)
 		 * 
-		 * @param sid
-		 *            ID of session
-		 * @param validUntil
-		 *            vaid time
-		 * @param parameters
-		 *            parameters of session.
+		 * @return domain from request.
 		 */
-		public SessionMapEntry(String sid, long validUntil,
-				Map<String, String> parameters) {
-			this.sid = sid;
-			this.validUntil = validUntil;
-			this.map = new ConcurrentHashMap<>(parameters);
+		private String getDomainFormRequest() {
+			String domain = this.getHeader("Host");
+			if (domain != null) {
+				// port is not part of domain
+				final int colon = domain.lastIndexOf(':');
+				if (colon != -1 && domain.indexOf(']', colon) == -1) {
+					domain = domain.substring(0, colon);
+				}
+				domain = domain.trim();
+			}
+
+			if (domain == null) {
+				domain = SmartHttpServer.this.address;
+			}
+
+			return domain;
 		}
 	}
 
@@ -1170,7 +2998,7 @@ public class SmartHttpServer {
 
 		server.start();
 
-		System.out.println("Enter stop to stop server: ");
+		System.out.println("Enter stop to stop server, or stats to print statistics: ");
 
 		BufferedReader reader = new BufferedReader(new InputStreamReader(
 				System.in, StandardCharsets.UTF_8));
@@ -1188,6 +3016,9 @@ public class SmartHttpServer {
 			if (command !=  null && command.trim().equalsIgnoreCase("stop")) {
 				server.stop();
 				break;
+			} else if (command != null
+					&& command.trim().equalsIgnoreCase("stats")) {
+				System.out.println(server.getStatistics());
 			} else {
 				System.err.println("Uknown command");
 			}
@@ -0,0 +1,202 @@
+package hr.fer.zemris.java.webserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Class WorkerRegistry finds {@link IWebWorker} that serves request path.
+ * Workers are either mapped to paths in workers configuration file, or found
+ * by convention: path "ext/Name" is served by class Name from workers
+ * package. Each worker is loaded and instantiated only once, and the same
+ * instance serves all requests, so workers must not keep state between
+ * requests. Names for which no worker exists are remembered too, so class
+ * loader is not asked for them again.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class WorkerRegistry {
+
+	/**
+	 * Prefix of paths served by convention workers
+	 */
+	public static final String CONVENTION_PREFIX = "ext/";
+
+	/**
+	 * Maximal number of remembered unknown names. Unknown names come from
+	 * clients, so their number must be limited.
+	 */
+	private static final int MAX_UNKNOWN = 1024;
+
+	/**
+	 * Valid name of convention worker
+	 */
+	private static final Pattern WORKER_NAME = Pattern.compile("\\w*");
+
+	/**
+	 * Placeholder for names without worker
+	 */
+	private static final IWebWorker UNKNOWN = context -> {
+	};
+
+	/**
+	 * Workers from configuration file. Key is path without leading "/".
+	 */
+	private final Map<String, IWebWorker> mapped = new HashMap<>();
+
+	/**
+	 * Convention workers that were already requested, by name. Names without
+	 * worker are mapped to {@link #UNKNOWN}.
+	 */
+	private final ConcurrentMap<String, IWebWorker> convention = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of remembered unknown names
+	 */
+	private final AtomicInteger unknown = new AtomicInteger();
+
+	/**
+	 * Package of convention workers, ended with dot
+	 */
+	private final String packagePrefix;
+
+	/**
+	 * Class loader of convention workers
+	 */
+	private final ClassLoader classLoader;
+
+	/**
+	 * Constructor
+	 *
+	 * @param mapped
+	 *            workers from configuration file. Key is path, with or
+	 *            without leading "/".
+	 * @param workersPackage
+	 *            package of convention workers
+	 * @param classLoader
+	 *            class loader of convention workers
+	 * @throws IllegalArgumentException
+	 *             if any argument is null
+	 */
+	public WorkerRegistry(Map<String, IWebWorker> mapped,
+			String workersPackage, ClassLoader classLoader) {
+		if (mapped == null || workersPackage == null || classLoader == null) {
+			throw new IllegalArgumentException(
+					"Arguments of worker registry cannot be null!");
+		}
+
+		for (final Map.Entry<String, IWebWorker> entry : mapped.entrySet()) {
+			String path = entry.getKey();
+			if (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			this.mapped.put(path, entry.getValue());
+		}
+		this.packagePrefix = workersPackage + ".";
+		this.classLoader = classLoader;
+	}
+
+	/**
+	 * Checks if path belongs to convention workers. Such path is never served
+	 * from file system, even if worker does not exist.
+	 *
+	 * @param path
+	 *            request path, without leading "/"
+	 * @return true if path has form "ext/Name"
+	 */
+	public boolean isConventionPath(String path) {
+		return path.startsWith(CONVENTION_PREFIX)
+				&& WORKER_NAME.matcher(path)
+						.region(CONVENTION_PREFIX.length(), path.length())
+						.matches();
+	}
+
+	/**
+	 * Returns worker that serves path. Mapped workers have precedence over
+	 * convention workers.
+	 *
+	 * @param path
+	 *            request path, without leading "/"
+	 * @return worker, or null if path is not served by worker
+	 */
+	public IWebWorker find(String path) {
+		final IWebWorker worker = this.mapped.get(path);
+		if (worker != null) {
+			return worker;
+		}
+
+		if (!isConventionPath(path)) {
+			return null;
+		}
+		return findByName(path.substring(CONVENTION_PREFIX.length()));
+	}
+
+	/**
+	 * Returns convention worker with provided name. Worker is loaded and
+	 * instantiated on first request.
+	 *
+	 * @param name
+	 *            simple name of worker class
+	 * @return worker, or null if class does not exist or is not worker
+	 */
+	public IWebWorker findByName(String name) {
+		IWebWorker worker = this.convention.get(name);
+		if (worker == null) {
+			worker = load(name);
+			if (worker != UNKNOWN || this.unknown.get() < MAX_UNKNOWN) {
+				final IWebWorker previous = this.convention.putIfAbsent(name,
+						worker);
+				if (previous != null) {
+					worker = previous;
+				} else if (worker == UNKNOWN) {
+					this.unknown.incrementAndGet();
+				}
+			}
+		}
+		return worker == UNKNOWN ? null : worker;
+	}
+
+	/**
+	 * Loads and instantiates worker class.
+	 *
+	 * @param name
+	 *            simple name of worker class
+	 * @return new worker, or {@link #UNKNOWN} if worker cannot be created
+	 */
+	private IWebWorker load(String name) {
+		if (name.isEmpty()) {
+			return UNKNOWN;
+		}
+
+		try {
+			final Class<?> referenceToClass = this.classLoader
+					.loadClass(this.packagePrefix + name);
+			if (!IWebWorker.class.isAssignableFrom(referenceToClass)) {
+				return UNKNOWN;
+			}
+			return (IWebWorker) referenceToClass.getDeclaredConstructor()
+					.newInstance();
+		} catch (final ReflectiveOperationException e) {
+			return UNKNOWN;
+		}
+	}
+
+	/**
+	 * Returns short description of registry.
+	 */
+	@Override
+	public String toString() {
+		int loaded = 0;
+		for (final IWebWorker worker : this.convention.values()) {
+			if (worker != UNKNOWN) {
+				loaded++;
+			}
+		}
+		return "mapped=" + this.mapped.size() + ", convention=" + loaded
+				+ ", unknown=" + this.unknown.get();
+	}
+}
@@ -0,0 +1,283 @@
+package hr.fer.zemris.java.webserver.cache;
+
+import hr.fer.zemris.java.custom.scripting.nodes.DocumentNode;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParser;
+import hr.fer.zemris.java.custom.scripting.parser.SmartScriptParserException;
+import hr.fer.zemris.java.custom.scripting.visitors.PersistentParameterFinder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class ScriptCache stores parsed syntax trees of .smscr scripts, so script is
+ * parsed only once and then only executed. Key of cache is canonical path of
+ * script. Each entry remembers modification time and size of script file, and
+ * if one of them changes, script is parsed again. When cache is full, least
+ * recently used script is evicted. Together with tree, cache remembers if
+ * script changes persistent parameters, so tree is not searched on every
+ * request.
+ *
+ * Parsed {@link DocumentNode} trees are never modified during execution, so
+ * one tree can be executed by many threads at the same time.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class ScriptCache {
+
+	/**
+	 * Maximal number of scripts in cache
+	 */
+	private final int capacity;
+
+	/**
+	 * Cached scripts in access order. Eldest entry is least recently used.
+	 */
+	private final Map<Path, CachedScript> scripts;
+
+	/**
+	 * Number of requests served from cache
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Number of requests that caused parsing of script
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Number of scripts removed because cache was full
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity
+	 *            maximal number of scripts in cache
+	 * @throws IllegalArgumentException
+	 *             if capacity is less than 1
+	 */
+	public ScriptCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+					"Capacity of script cache must be positive!");
+		}
+
+		this.capacity = capacity;
+		this.scripts = new LinkedHashMap<Path, CachedScript>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Path, CachedScript> eldest) {
+				if (size() > ScriptCache.this.capacity) {
+					ScriptCache.this.evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns parsed script. If script is in cache and script file is not
+	 * changed since it was parsed, cached script is returned. Otherwise,
+	 * script is read, parsed and stored in cache.
+	 *
+	 * @param script
+	 *            path of script
+	 * @return parsed script
+	 * @throws IOException
+	 *             if script cannot be read
+	 * @throws SmartScriptParserException
+	 *             if script has syntax error. Such script is not cached.
+	 */
+	public CachedScript get(Path script) throws IOException {
+		final Path key = script.toRealPath();
+		final BasicFileAttributes attributes = Files.readAttributes(key,
+				BasicFileAttributes.class);
+		final long modified = attributes.lastModifiedTime().toMillis();
+		final long size = attributes.size();
+
+		CachedScript cached;
+		synchronized (this.scripts) {
+			cached = this.scripts.get(key);
+		}
+
+		if (cached != null && cached.modified == modified
+				&& cached.size == size) {
+			this.hits.incrementAndGet();
+			return cached;
+		}
+
+		this.misses.incrementAndGet();
+
+		// parsing is done outside of lock, so one slow script does not block
+		// others
+		final DocumentNode document = parse(key);
+		cached = new CachedScript(document,
+				PersistentParameterFinder.changesPersistentParameters(document),
+				modified, size);
+
+		synchronized (this.scripts) {
+			this.scripts.put(key, cached);
+		}
+
+		return cached;
+	}
+
+	/**
+	 * Reads and parses script.
+	 *
+	 * @param script
+	 *            path of script
+	 * @return root node of syntax tree
+	 * @throws IOException
+	 *             if script cannot be read
+	 */
+	private static DocumentNode parse(Path script) throws IOException {
+		final List<String> lines = Files.readAllLines(script,
+				StandardCharsets.UTF_8);
+
+		final StringBuilder sb = new StringBuilder();
+		for (final String line : lines) {
+			sb.append(line).append("\r\n");
+		}
+
+		return new SmartScriptParser(sb.toString()).getDocumentNode();
+	}
+
+	/**
+	 * Removes all scripts from cache.
+	 */
+	public void clear() {
+		synchronized (this.scripts) {
+			this.scripts.clear();
+		}
+	}
+
+	/**
+	 * Returns number of scripts currently in cache.
+	 *
+	 * @return number of cached scripts
+	 */
+	public int size() {
+		synchronized (this.scripts) {
+			return this.scripts.size();
+		}
+	}
+
+	/**
+	 * Returns number of requests served from cache.
+	 *
+	 * @return number of hits
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * Returns number of requests that caused parsing of script.
+	 *
+	 * @return number of misses
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * Returns number of scripts evicted from full cache.
+	 *
+	 * @return number of evictions
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * Returns short description of cache statistics.
+	 */
+	@Override
+	public String toString() {
+		return "scripts=" + size() + "/" + this.capacity + ", hits="
+				+ getHits() + ", misses=" + getMisses() + ", evictions="
+				+ getEvictions();
+	}
+
+	/**
+	 * Parsed script with attributes of file from which it was parsed.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	public static class CachedScript {
+
+		/**
+		 * Root node of syntax tree
+		 */
+		private final DocumentNode document;
+
+		/**
+		 * Flag that signals if script changes persistent parameters
+		 */
+		private final boolean changesPersistentParameters;
+
+		/**
+		 * Modification time of script file in milliseconds
+		 */
+		private final long modified;
+
+		/**
+		 * Size of script file in bytes
+		 */
+		private final long size;
+
+		/**
+		 * Constructor
+		 *
+		 * @param document
+		 *            root node of syntax tree
+		 * @param changesPersistentParameters
+		 *            true if script changes persistent parameters
+		 * @param modified
+		 *            modification time of script file
+		 * @param size
+		 *            size of script file
+		 */
+		private CachedScript(DocumentNode document,
+				boolean changesPersistentParameters, long modified, long size) {
+			this.document = document;
+			this.changesPersistentParameters = changesPersistentParameters;
+			this.modified = modified;
+			this.size = size;
+		}
+
+		/**
+		 * Returns root node of syntax tree. Tree must not be modified.
+		 *
+		 * @return root node
+		 */
+		public DocumentNode getDocument() {
+			return this.document;
+		}
+
+		/**
+		 * Checks if script changes persistent parameters, so it needs
+		 * session.
+		 *
+		 * @return true if script calls pparamSet or pparamDel
+		 */
+		public boolean changesPersistentParameters() {
+			return this.changesPersistentParameters;
+		}
+	}
+}
@@ -0,0 +1,681 @@
+package hr.fer.zemris.java.webserver.cache;
+
+import hr.fer.zemris.java.webserver.http.Compression;
+import hr.fer.zemris.java.webserver.http.Validators;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class StaticContentCache keeps content of small static files in memory,
+ * together with pre-rendered beginning of response header. Key of cache is
+ * path from request, so cached file is served without resolving paths and
+ * checking file system. Total size of cached files is limited; when it is
+ * exceeded, least recently used files are evicted.
+ *
+ * Compressed versions of files are cached as separate entries. They are read
+ * from precompressed ".gz" files if such files exist, or compressed once when
+ * they are first requested.
+ *
+ * Document root is watched with {@link WatchService}, and each change of file
+ * or directory removes affected entries from cache.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class StaticContentCache implements Closeable {
+
+	/**
+	 * Maximal total size of cached files in bytes
+	 */
+	private final long capacity;
+
+	/**
+	 * Maximal size of one cached file in bytes
+	 */
+	private final long maxFileSize;
+
+	/**
+	 * Cached files in access order. Eldest entry is least recently used.
+	 */
+	private final Map<String, StaticContent> entries = new LinkedHashMap<>(16,
+			0.75f, true);
+
+	/**
+	 * Total size of cached files in bytes
+	 */
+	private long size;
+
+	/**
+	 * Number of invalidations so far. File read while invalidation happened
+	 * could be stale, so it is not stored in cache.
+	 */
+	private long generation;
+
+	/**
+	 * Number of requests served from cache
+	 */
+	private final AtomicLong hits = new AtomicLong();
+
+	/**
+	 * Number of requests for files that were not in cache
+	 */
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Number of entries removed because cache was full
+	 */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Number of entries removed because file was changed
+	 */
+	private final AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * Watch service of document root, or null if it is not available
+	 */
+	private final WatchService watchService;
+
+	/**
+	 * Thread that processes events of watch service
+	 */
+	private final Thread watcher;
+
+	/**
+	 * Constructor. Starts watching document root and all its subdirectories.
+	 *
+	 * @param documentRoot
+	 *            root directory of server
+	 * @param capacity
+	 *            maximal total size of cached files in bytes
+	 * @param maxFileSize
+	 *            maximal size of one cached file in bytes
+	 * @throws IllegalArgumentException
+	 *             if capacity or maximal file size is negative
+	 */
+	public StaticContentCache(Path documentRoot, long capacity, long maxFileSize) {
+		if (capacity < 0 || maxFileSize < 0) {
+			throw new IllegalArgumentException(
+					"Size of static content cache cannot be negative!");
+		}
+
+		this.capacity = capacity;
+		this.maxFileSize = Math.min(maxFileSize, capacity);
+
+		WatchService service = null;
+		if (capacity > 0) {
+			try {
+				service = FileSystems.getDefault().newWatchService();
+				registerAll(service, documentRoot);
+			} catch (final IOException e) {
+				// without watch service, changed files could be served
+				// forever, so nothing is cached
+				closeWatchService(service);
+				service = null;
+			}
+		}
+
+		this.watchService = service;
+		if (service != null) {
+			this.watcher = new Thread(this::watch, "static-cache-watcher");
+			this.watcher.setDaemon(true);
+			this.watcher.start();
+		} else {
+			this.watcher = null;
+		}
+	}
+
+	/**
+	 * Checks if cache is used.
+	 *
+	 * @return true if files can be cached
+	 */
+	public boolean isEnabled() {
+		return this.watchService != null;
+	}
+
+	/**
+	 * Returns cached content for request path.
+	 *
+	 * @param requestPath
+	 *            path from request
+	 * @return cached content, or null if it is not in cache
+	 */
+	public StaticContent get(String requestPath) {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		final StaticContent content;
+		synchronized (this.entries) {
+			content = this.entries.get(requestPath);
+		}
+
+		if (content == null) {
+			this.misses.incrementAndGet();
+		} else {
+			this.hits.incrementAndGet();
+		}
+		return content;
+	}
+
+	/**
+	 * Returns cached version of file encoded with content coding.
+	 *
+	 * @param requestPath
+	 *            path from request
+	 * @param contentCoding
+	 *            name of content coding
+	 * @return cached encoded content, or null if it is not in cache
+	 */
+	public StaticContent get(String requestPath, String contentCoding) {
+		return get(variantKey(requestPath, contentCoding));
+	}
+
+	/**
+	 * Reads file and stores it in cache under request path. Files larger than
+	 * maximal file size are not cached.
+	 *
+	 * @param requestPath
+	 *            path from request
+	 * @param file
+	 *            real path of file inside document root
+	 * @param mimeType
+	 *            mime type of file
+	 * @param validators
+	 *            validators of current version of file
+	 * @return cached content, or null if file is too large for cache
+	 * @throws IOException
+	 *             if file cannot be read
+	 */
+	public StaticContent load(String requestPath, Path file, String mimeType,
+			Validators validators) throws IOException {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		final long loadGeneration;
+		synchronized (this.entries) {
+			loadGeneration = this.generation;
+		}
+
+		final ByteBuffer body = read(file);
+		if (body == null) {
+			return null;
+		}
+
+		final StaticContent content = new StaticContent(file, mimeType,
+				validators, body);
+		store(requestPath, content, loadGeneration);
+		return content;
+	}
+
+	/**
+	 * Creates version of cached file encoded with content coding and stores
+	 * it in cache. For gzip coding, precompressed ".gz" file is used if it
+	 * exists; otherwise content is compressed. If compression does not make
+	 * content smaller, original content is stored for that coding, so it is
+	 * not compressed again.
+	 *
+	 * @param requestPath
+	 *            path from request
+	 * @param identity
+	 *            cached original content
+	 * @param contentCoding
+	 *            {@link Compression#GZIP} or {@link Compression#DEFLATE}
+	 * @return encoded content, original content, or null if cache is not
+	 *         used
+	 * @throws IOException
+	 *             if precompressed file cannot be read or compression fails
+	 */
+	public StaticContent loadVariant(String requestPath,
+			StaticContent identity, String contentCoding) throws IOException {
+		if (!isEnabled()) {
+			return null;
+		}
+
+		final long loadGeneration;
+		synchronized (this.entries) {
+			loadGeneration = this.generation;
+		}
+
+		ByteBuffer body = null;
+		if (Compression.GZIP.equals(contentCoding)) {
+			final Path precompressed = Compression.findPrecompressed(identity
+					.getFile());
+			if (precompressed != null) {
+				body = read(precompressed);
+			}
+		}
+		if (body == null) {
+			final byte[] compressed = Compression.compress(identity.getBody(),
+					contentCoding);
+			if (compressed.length < identity.getSize()) {
+				final ByteBuffer buffer = ByteBuffer
+						.allocateDirect(compressed.length);
+				buffer.put(compressed).flip();
+				body = buffer.asReadOnlyBuffer();
+			}
+		}
+
+		final StaticContent content = body == null ? identity
+				: new StaticContent(identity.getFile(),
+						identity.getMimeType(), contentCoding, identity
+								.getValidators().withCoding(contentCoding),
+						body);
+		store(variantKey(requestPath, contentCoding), content, loadGeneration);
+		return content;
+	}
+
+	/**
+	 * Returns key of encoded version of file. Request line cannot contain line
+	 * feed, so key cannot be same as any request path.
+	 *
+	 * @param requestPath
+	 *            path from request
+	 * @param contentCoding
+	 *            name of content coding
+	 * @return key of cache entry
+	 */
+	private static String variantKey(String requestPath, String contentCoding) {
+		return requestPath + "\n" + contentCoding;
+	}
+
+	/**
+	 * Reads file into direct buffer.
+	 *
+	 * @param file
+	 *            path of file
+	 * @return read-only buffer with content of file, or null if file is larger
+	 *         than maximal file size
+	 * @throws IOException
+	 *             if file cannot be read
+	 */
+	private ByteBuffer read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			final long fileSize = channel.size();
+			if (fileSize > this.maxFileSize) {
+				return null;
+			}
+
+			final ByteBuffer body = ByteBuffer.allocateDirect((int) fileSize);
+			while (body.hasRemaining()) {
+				if (channel.read(body) == -1) {
+					break;
+				}
+			}
+			body.flip();
+			return body.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Stores content in cache and evicts least recently used entries if cache
+	 * is full. Content is not stored if any entry was invalidated since file
+	 * was read.
+	 *
+	 * @param key
+	 *            key of entry
+	 * @param content
+	 *            content to store
+	 * @param loadGeneration
+	 *            generation of cache when file was read
+	 */
+	private void store(String key, StaticContent content, long loadGeneration) {
+		synchronized (this.entries) {
+			if (loadGeneration != this.generation) {
+				return;
+			}
+
+			final StaticContent old = this.entries.put(key, content);
+			if (old != null) {
+				this.size -= old.getSize();
+			}
+			this.size += content.getSize();
+
+			final Iterator<StaticContent> it = this.entries.values()
+					.iterator();
+			while (this.size > this.capacity && it.hasNext()) {
+				final StaticContent eldest = it.next();
+				it.remove();
+				this.size -= eldest.getSize();
+				this.evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries whose file is provided path or is inside provided
+	 * directory. Change of precompressed ".gz" file removes entries of
+	 * original file.
+	 *
+	 * @param changed
+	 *            changed file or directory
+	 */
+	public void invalidate(Path changed) {
+		final String name = changed.getFileName() == null ? "" : changed
+				.getFileName().toString();
+		if (name.endsWith(Compression.GZIP_EXTENSION)
+				&& name.length() > Compression.GZIP_EXTENSION.length()) {
+			changed = changed.resolveSibling(name.substring(0, name.length()
+					- Compression.GZIP_EXTENSION.length()));
+		}
+
+		synchronized (this.entries) {
+			this.generation++;
+			final Iterator<StaticContent> it = this.entries.values()
+					.iterator();
+			while (it.hasNext()) {
+				final StaticContent content = it.next();
+				if (content.getFile().startsWith(changed)) {
+					it.remove();
+					this.size -= content.getSize();
+					this.invalidations.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all entries from cache.
+	 */
+	public void clear() {
+		synchronized (this.entries) {
+			this.generation++;
+			this.invalidations.addAndGet(this.entries.size());
+			this.entries.clear();
+			this.size = 0;
+		}
+	}
+
+	/**
+	 * Stops watching document root.
+	 */
+	@Override
+	public void close() {
+		closeWatchService(this.watchService);
+		clear();
+	}
+
+	/**
+	 * Processes events of watch service until it is closed.
+	 */
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = this.watchService.take();
+			} catch (final InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+
+			final Path directory = (Path) key.watchable();
+			for (final WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					clear();
+					continue;
+				}
+
+				final Path changed = directory.resolve((Path) event.context());
+				invalidate(changed);
+
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+						&& Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+					try {
+						registerAll(this.watchService, changed);
+					} catch (final IOException | ClosedWatchServiceException e) {
+						clear();
+					}
+				}
+			}
+
+			if (!key.reset()) {
+				invalidate(directory);
+			}
+		}
+	}
+
+	/**
+	 * Registers directory and all its subdirectories in watch service.
+	 *
+	 * @param service
+	 *            watch service
+	 * @param root
+	 *            directory
+	 * @throws IOException
+	 *             if directory cannot be registered
+	 */
+	private static void registerAll(final WatchService service, Path root)
+			throws IOException {
+		Files.walkFileTree(root.toRealPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir,
+					BasicFileAttributes attrs) throws IOException {
+				dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Closes watch service and ignores errors.
+	 *
+	 * @param service
+	 *            watch service, can be null
+	 */
+	private static void closeWatchService(WatchService service) {
+		if (service != null) {
+			try {
+				service.close();
+			} catch (final IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Returns short description of cache statistics.
+	 */
+	@Override
+	public String toString() {
+		final int count;
+		final long bytes;
+		synchronized (this.entries) {
+			count = this.entries.size();
+			bytes = this.size;
+		}
+		return "files=" + count + ", bytes=" + bytes + "/" + this.capacity
+				+ ", hits=" + this.hits.get() + ", misses="
+				+ this.misses.get() + ", evictions=" + this.evictions.get()
+				+ ", invalidations=" + this.invalidations.get();
+	}
+
+	/**
+	 * Cached static file with pre-rendered beginning of response header.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	public static class StaticContent {
+
+		/**
+		 * Real path of file
+		 */
+		private final Path file;
+
+		/**
+		 * Mime type of file
+		 */
+		private final String mimeType;
+
+		/**
+		 * Content coding of body, or null if body is not encoded
+		 */
+		private final String contentCoding;
+
+		/**
+		 * Validators of cached version of file
+		 */
+		private final Validators validators;
+
+		/**
+		 * Content of file. It is read-only and it is never read directly,
+		 * only through duplicates.
+		 */
+		private final ByteBuffer body;
+
+		/**
+		 * Status line, Content-Type, Content-Encoding, Content-Length, ETag,
+		 * Last-Modified and Accept-Ranges of response
+		 */
+		private final byte[] headerPrefix;
+
+		/**
+		 * Constructor
+		 *
+		 * @param file
+		 *            real path of file
+		 * @param mimeType
+		 *            mime type of file
+		 * @param validators
+		 *            validators of cached version of file
+		 * @param body
+		 *            content of file
+		 */
+		public StaticContent(Path file, String mimeType, Validators validators,
+				ByteBuffer body) {
+			this(file, mimeType, null, validators, body);
+		}
+
+		/**
+		 * Constructor of encoded content
+		 *
+		 * @param file
+		 *            real path of original file
+		 * @param mimeType
+		 *            mime type of original file
+		 * @param contentCoding
+		 *            content coding of body, or null if body is not encoded
+		 * @param validators
+		 *            validators of encoded version of file
+		 * @param body
+		 *            encoded content of file
+		 */
+		public StaticContent(Path file, String mimeType, String contentCoding,
+				Validators validators, ByteBuffer body) {
+			this.file = file;
+			this.mimeType = mimeType;
+			this.contentCoding = contentCoding;
+			this.validators = validators;
+			this.body = body;
+			final StringBuilder sb = new StringBuilder();
+			sb.append("HTTP/1.1 200 OK\r\n");
+			sb.append("Content-Type: ").append(mimeType);
+			if (mimeType.startsWith("text/")) {
+				sb.append("; charset=UTF-8");
+			}
+			sb.append("\r\n");
+			if (contentCoding != null) {
+				sb.append("Content-Encoding: ").append(contentCoding)
+						.append("\r\n");
+			}
+			sb.append("Content-Length: ").append(body.remaining())
+					.append("\r\n");
+			sb.append("ETag: ").append(validators.getETag()).append("\r\n");
+			sb.append("Last-Modified: ")
+					.append(validators.getLastModifiedText()).append("\r\n");
+			sb.append("Accept-Ranges: bytes\r\n");
+			this.headerPrefix = sb.toString().getBytes(
+					StandardCharsets.US_ASCII);
+		}
+
+		/**
+		 * Returns real path of file.
+		 *
+		 * @return path of file
+		 */
+		public Path getFile() {
+			return this.file;
+		}
+
+		/**
+		 * Returns mime type of file.
+		 *
+		 * @return mime type
+		 */
+		public String getMimeType() {
+			return this.mimeType;
+		}
+
+		/**
+		 * Returns content coding of body.
+		 *
+		 * @return name of content coding, or null if body is not encoded
+		 */
+		public String getContentCoding() {
+			return this.contentCoding;
+		}
+
+		/**
+		 * Returns validators of cached version of file.
+		 *
+		 * @return validators
+		 */
+		public Validators getValidators() {
+			return this.validators;
+		}
+
+		/**
+		 * Returns size of file.
+		 *
+		 * @return size in bytes
+		 */
+		public int getSize() {
+			return this.body.remaining();
+		}
+
+		/**
+		 * Returns content of file. Each call returns new buffer view, so
+		 * position of returned buffer can be changed.
+		 *
+		 * @return read-only buffer with content of file
+		 */
+		public ByteBuffer getBody() {
+			return this.body.duplicate();
+		}
+
+		/**
+		 * Returns status line, Content-Type, Content-Encoding, Content-Length,
+		 * ETag, Last-Modified and Accept-Ranges of response with this content,
+		 * each ended with CRLF.
+		 *
+		 * @return beginning of response header, must not be modified
+		 */
+		public byte[] getHeaderPrefix() {
+			return this.headerPrefix;
+		}
+	}
+}
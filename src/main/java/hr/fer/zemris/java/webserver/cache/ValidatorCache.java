@@ -0,0 +1,123 @@
+package hr.fer.zemris.java.webserver.cache;
+
+import hr.fer.zemris.java.webserver.http.Validators;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class ValidatorCache keeps {@link Validators} of files, so entity tag and
+ * formatted modification date are created only once for each version of file.
+ * Version of file is defined by its modification time and size. When cache is
+ * full, least recently used file is evicted.
+ * 
+ * @author Nikola Sekulić
+ * 
+ */
+public class ValidatorCache {
+
+	/**
+	 * Validators of files in access order
+	 */
+	private final Map<Path, CachedValidators> validators;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *            maximal number of files in cache
+	 * @throws IllegalArgumentException
+	 *             if capacity is less than 1
+	 */
+	public ValidatorCache(final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(
+					"Capacity of validator cache must be positive!");
+		}
+
+		this.validators = new LinkedHashMap<Path, CachedValidators>(16, 0.75f,
+				true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<Path, CachedValidators> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns validators for current version of file.
+	 * 
+	 * @param file
+	 *            real path of file
+	 * @param attributes
+	 *            attributes of file
+	 * @return validators of file
+	 */
+	public Validators get(Path file, BasicFileAttributes attributes) {
+		final long modified = attributes.lastModifiedTime().toMillis();
+		final long size = attributes.size();
+
+		CachedValidators cached;
+		synchronized (this.validators) {
+			cached = this.validators.get(file);
+		}
+
+		if (cached != null && cached.modified == modified
+				&& cached.size == size) {
+			return cached.validators;
+		}
+
+		cached = new CachedValidators(new Validators(modified, size),
+				modified, size);
+		synchronized (this.validators) {
+			this.validators.put(file, cached);
+		}
+		return cached.validators;
+	}
+
+	/**
+	 * Validators with version of file for which they are created.
+	 * 
+	 * @author Nikola Sekulić
+	 * 
+	 */
+	private static class CachedValidators {
+
+		/**
+		 * Validators of file
+		 */
+		private final Validators validators;
+
+		/**
+		 * Modification time of file in milliseconds
+		 */
+		private final long modified;
+
+		/**
+		 * Size of file in bytes
+		 */
+		private final long size;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param validators
+		 *            validators of file
+		 * @param modified
+		 *            modification time of file
+		 * @param size
+		 *            size of file
+		 */
+		public CachedValidators(Validators validators, long modified, long size) {
+			this.validators = validators;
+			this.modified = modified;
+			this.size = size;
+		}
+	}
+}
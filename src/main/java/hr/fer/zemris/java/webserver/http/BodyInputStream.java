@@ -0,0 +1,335 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream of request body. Body has length from Content-Length field,
+ * or it is sent with chunked transfer encoding and decoded while it is read.
+ * Bytes are taken from buffer of connection first, and when it is empty,
+ * buffer is refilled from socket. Bytes read from socket after end of body
+ * stay in buffer, so next pipelined request is not lost.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class BodyInputStream extends InputStream {
+
+	/**
+	 * Maximal length of line with size of chunk or trailer field
+	 */
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	/**
+	 * Buffer of connection, in read mode
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Stream of socket
+	 */
+	private final InputStream in;
+
+	/**
+	 * Flag that signals if body is chunked
+	 */
+	private final boolean chunked;
+
+	/**
+	 * Maximal length of chunked body
+	 */
+	private final long limit;
+
+	/**
+	 * Number of bytes of body, or of current chunk if body is chunked, which
+	 * are not read yet
+	 */
+	private long remaining;
+
+	/**
+	 * Number of bytes of chunked body read so far
+	 */
+	private long read;
+
+	/**
+	 * Flag that signals if last chunk of chunked body is read
+	 */
+	private boolean finished;
+
+	/**
+	 * Constructor of body with known length.
+	 *
+	 * @param buffer
+	 *            buffer of connection, in read mode, with bytes after request
+	 *            header. It must be backed by array.
+	 * @param in
+	 *            stream of socket
+	 * @param length
+	 *            length of body in bytes
+	 * @throws IllegalArgumentException
+	 *             if length is negative or buffer is not backed by array
+	 */
+	public BodyInputStream(ByteBuffer buffer, InputStream in, long length) {
+		this(buffer, in, false, length);
+		if (length < 0) {
+			throw new IllegalArgumentException(
+					"Length of body cannot be negative!");
+		}
+		this.remaining = length;
+		this.finished = length == 0;
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param buffer
+	 *            buffer of connection
+	 * @param in
+	 *            stream of socket
+	 * @param chunked
+	 *            true if body is chunked
+	 * @param limit
+	 *            maximal length of body
+	 */
+	private BodyInputStream(ByteBuffer buffer, InputStream in,
+			boolean chunked, long limit) {
+		if (!buffer.hasArray()) {
+			throw new IllegalArgumentException(
+					"Buffer of connection must be backed by array!");
+		}
+		this.buffer = buffer;
+		this.in = in;
+		this.chunked = chunked;
+		this.limit = limit;
+	}
+
+	/**
+	 * Creates stream of body sent with chunked transfer encoding.
+	 *
+	 * @param buffer
+	 *            buffer of connection, in read mode, with bytes after request
+	 *            header. It must be backed by array.
+	 * @param in
+	 *            stream of socket
+	 * @param limit
+	 *            maximal length of decoded body. Reading longer body throws
+	 *            exception.
+	 * @return stream of chunked body
+	 */
+	public static BodyInputStream chunked(ByteBuffer buffer, InputStream in,
+			long limit) {
+		return new BodyInputStream(buffer, in, true, limit);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read() throws IOException {
+		if (!prepare()) {
+			return -1;
+		}
+		this.remaining--;
+		return this.buffer.get() & 0xff;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!prepare()) {
+			return -1;
+		}
+
+		final int bytes = (int) Math.min(Math.min(len, this.remaining),
+				this.buffer.remaining());
+		this.buffer.get(b, off, bytes);
+		this.remaining -= bytes;
+		return bytes;
+	}
+
+	/**
+	 * Returns number of bytes of body which can be read without blocking.
+	 */
+	@Override
+	public int available() {
+		return (int) Math.min(this.remaining, this.buffer.remaining());
+	}
+
+	/**
+	 * Checks if body is chunked.
+	 *
+	 * @return true if body is sent with chunked transfer encoding
+	 */
+	public boolean isChunked() {
+		return this.chunked;
+	}
+
+	/**
+	 * Reads and discards rest of body, so next request on connection can be
+	 * read. Body is discarded only if it is not longer than provided limit.
+	 *
+	 * @param limit
+	 *            maximal number of bytes to discard
+	 * @return true if whole body is read, false if it is too long or
+	 *         connection is closed before end of body
+	 * @throws IOException
+	 *             if IO error occurs or chunked body is invalid
+	 */
+	public boolean drain(long limit) throws IOException {
+		if (!this.chunked && this.remaining > limit) {
+			return false;
+		}
+
+		long discarded = 0;
+		while (prepare()) {
+			final int bytes = (int) Math.min(this.remaining,
+					this.buffer.remaining());
+			discarded += bytes;
+			if (discarded > limit) {
+				return false;
+			}
+			this.buffer.position(this.buffer.position() + bytes);
+			this.remaining -= bytes;
+		}
+		return this.finished;
+	}
+
+	/**
+	 * Prepares next bytes of body: reads size of next chunk if current chunk
+	 * is read, and refills buffer if it is empty.
+	 *
+	 * @return true if there are bytes of body in buffer, false if body is
+	 *         read
+	 * @throws IOException
+	 *             if IO error occurs, connection is closed before end of body
+	 *             or chunked body is invalid or too long
+	 */
+	private boolean prepare() throws IOException {
+		if (this.finished) {
+			return false;
+		}
+
+		if (this.remaining == 0) {
+			if (!this.chunked) {
+				this.finished = true;
+				return false;
+			}
+			if (!nextChunk()) {
+				return false;
+			}
+		}
+
+		if (!fill()) {
+			throw new IOException("Connection closed before end of body!");
+		}
+		return true;
+	}
+
+	/**
+	 * Reads line with size of next chunk. After last chunk, trailer fields
+	 * are read and ignored.
+	 *
+	 * @return true if next chunk has data, false if it is last chunk
+	 * @throws IOException
+	 *             if IO error occurs or chunked body is invalid or too long
+	 */
+	private boolean nextChunk() throws IOException {
+		if (this.read > 0) {
+			// data of previous chunk is followed by CRLF
+			if (!readLine().isEmpty()) {
+				throw new IOException("Invalid chunked body!");
+			}
+		}
+
+		String line = readLine();
+		final int extension = line.indexOf(';');
+		if (extension != -1) {
+			line = line.substring(0, extension);
+		}
+
+		final long size;
+		try {
+			size = Long.parseLong(line.trim(), 16);
+		} catch (final NumberFormatException e) {
+			throw new IOException("Invalid size of chunk!");
+		}
+		if (size < 0) {
+			throw new IOException("Invalid size of chunk!");
+		}
+
+		if (size == 0) {
+			while (!readLine().isEmpty()) {
+				// trailer fields are ignored
+			}
+			this.finished = true;
+			return false;
+		}
+
+		if (size > this.limit - this.read) {
+			throw new IOException("Request body is too large!");
+		}
+		this.read += size;
+		this.remaining = size;
+		return true;
+	}
+
+	/**
+	 * Reads one line of chunked body, without CRLF.
+	 *
+	 * @return line
+	 * @throws IOException
+	 *             if IO error occurs, connection is closed or line is too
+	 *             long
+	 */
+	private String readLine() throws IOException {
+		final StringBuilder sb = new StringBuilder();
+		while (true) {
+			if (!fill()) {
+				throw new IOException("Connection closed before end of body!");
+			}
+			final byte b = this.buffer.get();
+			if (b == '\n') {
+				break;
+			}
+			if (sb.length() == MAX_LINE_LENGTH) {
+				throw new IOException("Line of chunked body is too long!");
+			}
+			sb.append((char) (b & 0xff));
+		}
+
+		final int length = sb.length();
+		if (length > 0 && sb.charAt(length - 1) == '\r') {
+			sb.setLength(length - 1);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Refills buffer from socket if it is empty.
+	 *
+	 * @return true if buffer has bytes, false if connection is closed
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private boolean fill() throws IOException {
+		if (this.buffer.hasRemaining()) {
+			return true;
+		}
+
+		this.buffer.clear();
+		final int bytes = this.in.read(this.buffer.array(),
+				this.buffer.arrayOffset(), this.buffer.capacity());
+		if (bytes == -1) {
+			this.buffer.limit(0);
+			return false;
+		}
+		this.buffer.limit(bytes);
+		return true;
+	}
+}
@@ -0,0 +1,455 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of buffers for connection and response I/O. Buffers have sizes from
+ * few size classes, from 4 KB to 64 KB. Buffers of one class are cut from
+ * larger slab, which is allocated at once, so pool allocates memory rarely
+ * and buffers which are returned are used again. Larger buffers are not
+ * pooled.
+ * <p>
+ * Pool has several stripes, each with its own free buffers. Thread takes and
+ * returns buffers in stripe selected by its ID, so threads rarely wait for
+ * each other. Stripes are used instead of thread local caches, because with
+ * virtual threads each connection has new thread.
+ * </p>
+ * <p>
+ * Buffer is often taken by one thread and returned by another, for example
+ * read buffer of NIO connection is taken by acceptor and returned by worker.
+ * Therefore thread whose stripe is empty takes free buffer from other
+ * stripes before it cuts new slab, and each stripe keeps at most one slab of
+ * free buffers of each class. Buffer returned to full stripe is given to
+ * other stripe, or dropped if all stripes are full, so memory of pool stays
+ * bounded.
+ * </p>
+ * <p>
+ * In debug mode pool remembers where each borrowed buffer was taken, so
+ * buffers which are never returned can be reported, and buffer which is
+ * returned twice is detected.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class BufferPool {
+
+	/**
+	 * Size of smallest class
+	 */
+	private static final int MIN_SIZE = 4 * 1024;
+
+	/**
+	 * Number of size classes, each is twice larger than previous
+	 */
+	private static final int CLASSES = 5;
+
+	/**
+	 * Default size of slab
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 256 * 1024;
+
+	/**
+	 * Flag that signals if buffers are direct
+	 */
+	private final boolean direct;
+
+	/**
+	 * Size of slab from which buffers are cut
+	 */
+	private final int slabSize;
+
+	/**
+	 * Stripes of pool
+	 */
+	private final Stripe[] stripes;
+
+	/**
+	 * Mask which selects stripe from ID of thread
+	 */
+	private final int mask;
+
+	/**
+	 * Maximal number of free buffers of each class in one stripe
+	 */
+	private final int[] maxFree = new int[CLASSES];
+
+	/**
+	 * Places where borrowed buffers were taken, or null if pool is not in
+	 * debug mode
+	 */
+	private final Map<ByteBuffer, Throwable> borrowed;
+
+	/**
+	 * Number of taken buffers
+	 */
+	private final AtomicLong acquired = new AtomicLong();
+
+	/**
+	 * Number of returned buffers
+	 */
+	private final AtomicLong released = new AtomicLong();
+
+	/**
+	 * Number of bytes allocated by pool
+	 */
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * Constructor of pool with default slab size and with number of stripes
+	 * that depends on number of processors.
+	 *
+	 * @param direct
+	 *            true if buffers are direct
+	 * @param debug
+	 *            true if borrowed buffers are tracked
+	 */
+	public BufferPool(boolean direct, boolean debug) {
+		this(direct, DEFAULT_SLAB_SIZE, Runtime.getRuntime()
+				.availableProcessors() * 2, debug);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param direct
+	 *            true if buffers are direct
+	 * @param slabSize
+	 *            size of slab from which buffers are cut, smaller slab gives
+	 *            one buffer
+	 * @param stripes
+	 *            number of stripes, it is rounded up to power of two
+	 * @param debug
+	 *            true if borrowed buffers are tracked
+	 * @throws IllegalArgumentException
+	 *             if slab size or number of stripes is not positive
+	 */
+	public BufferPool(boolean direct, int slabSize, int stripes, boolean debug) {
+		if (slabSize < 1 || stripes < 1) {
+			throw new IllegalArgumentException(
+					"Slab size and number of stripes must be positive!");
+		}
+
+		int size = 1;
+		while (size < stripes) {
+			size <<= 1;
+		}
+		this.stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new Stripe();
+		}
+		this.mask = size - 1;
+		this.direct = direct;
+		this.slabSize = slabSize;
+		for (int i = 0; i < CLASSES; i++) {
+			this.maxFree[i] = Math.max(1, slabSize / classSize(i));
+		}
+		this.borrowed = debug ? Collections
+				.synchronizedMap(new IdentityHashMap<ByteBuffer, Throwable>())
+				: null;
+	}
+
+	/**
+	 * Takes buffer from pool.
+	 *
+	 * @param size
+	 *            minimal capacity of buffer
+	 * @return empty buffer with position 0 and limit equal to capacity, which
+	 *         can be larger than requested size
+	 */
+	public ByteBuffer acquire(int size) {
+		final int sizeClass = sizeClass(size);
+		ByteBuffer buffer;
+		if (sizeClass == -1) {
+			buffer = allocate(size);
+		} else {
+			final int index = stripeIndex();
+			buffer = take(index, sizeClass);
+			if (buffer == null) {
+				buffer = this.stripes[index].fill(sizeClass,
+						cutSlab(sizeClass), this.maxFree[sizeClass]);
+			}
+		}
+		buffer.clear();
+
+		this.acquired.incrementAndGet();
+		if (this.borrowed != null) {
+			this.borrowed.put(buffer, new Throwable("Buffer of "
+					+ buffer.capacity() + " bytes taken here"));
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns buffer to pool. Buffer must not be used after it is returned.
+	 *
+	 * @param buffer
+	 *            buffer taken from this pool, can be null
+	 * @throws IllegalStateException
+	 *             in debug mode, if buffer is not borrowed from this pool
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (this.borrowed != null && this.borrowed.remove(buffer) == null) {
+			throw new IllegalStateException(
+					"Buffer is returned twice or it is not taken from pool!");
+		}
+		this.released.incrementAndGet();
+
+		final int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass != -1 && classSize(sizeClass) == buffer.capacity()
+				&& buffer.isDirect() == this.direct) {
+			put(stripeIndex(), sizeClass, buffer);
+		}
+	}
+
+	/**
+	 * Takes free buffer from provided stripe, or from other stripes if that
+	 * stripe has no free buffer.
+	 *
+	 * @param index
+	 *            index of first stripe
+	 * @param sizeClass
+	 *            index of class
+	 * @return buffer, or null if no stripe has free buffer of class
+	 */
+	private ByteBuffer take(int index, int sizeClass) {
+		for (int i = 0; i < this.stripes.length; i++) {
+			final ByteBuffer buffer = this.stripes[(index + i) & this.mask]
+					.take(sizeClass);
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns buffer to provided stripe, or to other stripe if that stripe is
+	 * full. Buffer is dropped if all stripes are full.
+	 *
+	 * @param index
+	 *            index of first stripe
+	 * @param sizeClass
+	 *            index of class
+	 * @param buffer
+	 *            returned buffer
+	 */
+	private void put(int index, int sizeClass, ByteBuffer buffer) {
+		for (int i = 0; i < this.stripes.length; i++) {
+			if (this.stripes[(index + i) & this.mask].put(sizeClass, buffer,
+					this.maxFree[sizeClass])) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns number of buffers which are taken and not returned.
+	 *
+	 * @return number of borrowed buffers
+	 */
+	public long getBorrowed() {
+		return this.acquired.get() - this.released.get();
+	}
+
+	/**
+	 * Returns number of bytes allocated by pool since it was created.
+	 *
+	 * @return number of allocated bytes
+	 */
+	public long getAllocated() {
+		return this.allocated.get();
+	}
+
+	/**
+	 * Prints where buffers which are not returned were taken. Works only in
+	 * debug mode.
+	 *
+	 * @param out
+	 *            stream to which report is printed
+	 * @return number of buffers which are not returned, or -1 if pool is not
+	 *         in debug mode
+	 */
+	public int reportLeaks(PrintStream out) {
+		if (this.borrowed == null) {
+			return -1;
+		}
+		final List<Throwable> places;
+		synchronized (this.borrowed) {
+			places = new ArrayList<>(this.borrowed.values());
+		}
+		for (final Throwable place : places) {
+			place.printStackTrace(out);
+		}
+		return places.size();
+	}
+
+	/**
+	 * Returns short description of pool.
+	 */
+	@Override
+	public String toString() {
+		return (this.direct ? "direct" : "heap") + ", allocated="
+				+ this.allocated.get() + " bytes, acquired="
+				+ this.acquired.get() + ", borrowed=" + getBorrowed()
+				+ (this.borrowed != null ? ", debug" : "");
+	}
+
+	/**
+	 * Returns index of stripe used by current thread.
+	 *
+	 * @return index of stripe of thread
+	 */
+	private int stripeIndex() {
+		final long thread = Thread.currentThread().getId();
+		final int hash = (int) (thread ^ (thread >>> 32));
+		return (hash ^ (hash >>> 16)) & this.mask;
+	}
+
+	/**
+	 * Finds smallest size class which can take provided size.
+	 *
+	 * @param size
+	 *            number of bytes
+	 * @return index of class, or -1 if size is larger than largest class
+	 */
+	private static int sizeClass(int size) {
+		for (int i = 0; i < CLASSES; i++) {
+			if (size <= classSize(i)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns size of buffers in class.
+	 *
+	 * @param sizeClass
+	 *            index of class
+	 * @return size in bytes
+	 */
+	private static int classSize(int sizeClass) {
+		return MIN_SIZE << sizeClass;
+	}
+
+	/**
+	 * Allocates slab and cuts it into buffers of provided class.
+	 *
+	 * @param sizeClass
+	 *            index of class
+	 * @return buffers cut from slab
+	 */
+	private ByteBuffer[] cutSlab(int sizeClass) {
+		final int size = classSize(sizeClass);
+		final int count = Math.max(1, this.slabSize / size);
+		final ByteBuffer slab = allocate(size * count);
+		final ByteBuffer[] buffers = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			slab.limit((i + 1) * size);
+			slab.position(i * size);
+			buffers[i] = slab.slice();
+		}
+		return buffers;
+	}
+
+	/**
+	 * Allocates new memory.
+	 *
+	 * @param size
+	 *            number of bytes
+	 * @return new buffer
+	 */
+	private ByteBuffer allocate(int size) {
+		this.allocated.addAndGet(size);
+		return this.direct ? ByteBuffer.allocateDirect(size) : ByteBuffer
+				.allocate(size);
+	}
+
+	/**
+	 * Free buffers used by subset of threads.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	private static class Stripe {
+
+		/**
+		 * Free buffers of each size class
+		 */
+		private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<>();
+
+		/**
+		 * Constructor
+		 */
+		private Stripe() {
+			for (int i = 0; i < CLASSES; i++) {
+				this.free.add(new ArrayDeque<ByteBuffer>());
+			}
+		}
+
+		/**
+		 * Takes free buffer.
+		 *
+		 * @param sizeClass
+		 *            index of class
+		 * @return buffer, or null if stripe has no free buffer of class
+		 */
+		private synchronized ByteBuffer take(int sizeClass) {
+			return this.free.get(sizeClass).pollLast();
+		}
+
+		/**
+		 * Adds new buffers and takes one of them. Buffers beyond limit are
+		 * dropped.
+		 *
+		 * @param sizeClass
+		 *            index of class
+		 * @param buffers
+		 *            new buffers, at least one
+		 * @param max
+		 *            maximal number of free buffers of class
+		 * @return one of new buffers
+		 */
+		private synchronized ByteBuffer fill(int sizeClass,
+				ByteBuffer[] buffers, int max) {
+			final ArrayDeque<ByteBuffer> free = this.free.get(sizeClass);
+			for (int i = 1; i < buffers.length && free.size() < max; i++) {
+				free.addLast(buffers[i]);
+			}
+			return buffers[0];
+		}
+
+		/**
+		 * Returns buffer to stripe, if stripe is not full.
+		 *
+		 * @param sizeClass
+		 *            index of class
+		 * @param buffer
+		 *            returned buffer
+		 * @param max
+		 *            maximal number of free buffers of class
+		 * @return true if buffer is added, false if stripe is full
+		 */
+		private synchronized boolean put(int sizeClass, ByteBuffer buffer,
+				int max) {
+			final ArrayDeque<ByteBuffer> free = this.free.get(sizeClass);
+			if (free.size() >= max) {
+				return false;
+			}
+			free.addLast(buffer);
+			return true;
+		}
+	}
+}
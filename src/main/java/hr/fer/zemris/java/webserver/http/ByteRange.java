@@ -0,0 +1,159 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Range of bytes requested with Range header field, for example "bytes=0-99",
+ * "bytes=500-" or "bytes=-200". Both first and last byte positions are
+ * inclusive.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class ByteRange {
+
+	/**
+	 * Maximal number of ranges in one request. Requests with more ranges are
+	 * served as if Range was not sent.
+	 */
+	public static final int MAX_RANGES = 16;
+
+	/**
+	 * Position of first byte
+	 */
+	private final long first;
+
+	/**
+	 * Position of last byte
+	 */
+	private final long last;
+
+	/**
+	 * Constructor
+	 *
+	 * @param first
+	 *            position of first byte
+	 * @param last
+	 *            position of last byte
+	 */
+	public ByteRange(long first, long last) {
+		if (first < 0 || last < first) {
+			throw new IllegalArgumentException("Invalid range: " + first + "-"
+					+ last);
+		}
+		this.first = first;
+		this.last = last;
+	}
+
+	/**
+	 * Returns position of first byte.
+	 *
+	 * @return position of first byte
+	 */
+	public long getFirst() {
+		return this.first;
+	}
+
+	/**
+	 * Returns position of last byte.
+	 *
+	 * @return position of last byte, inclusive
+	 */
+	public long getLast() {
+		return this.last;
+	}
+
+	/**
+	 * Returns number of bytes in range.
+	 *
+	 * @return length of range
+	 */
+	public long getLength() {
+		return this.last - this.first + 1;
+	}
+
+	/**
+	 * Returns value of Content-Range field for this range.
+	 *
+	 * @param size
+	 *            size of complete representation
+	 * @return value of Content-Range field
+	 */
+	public String toContentRange(long size) {
+		return "bytes " + this.first + "-" + this.last + "/" + size;
+	}
+
+	/**
+	 * Parses value of Range field. Ranges that start after end of
+	 * representation are skipped, and ranges that end after it are shortened.
+	 *
+	 * @param header
+	 *            value of Range field
+	 * @param size
+	 *            size of representation
+	 * @return list of satisfiable ranges, empty list if no range is
+	 *         satisfiable, or null if field is invalid or has too many ranges
+	 *         and should be ignored
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		if (header == null) {
+			return null;
+		}
+
+		header = header.trim();
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+			return null;
+		}
+
+		final String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+
+		final List<ByteRange> ranges = new ArrayList<>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			final int dash = spec.indexOf('-');
+			if (dash == -1) {
+				return null;
+			}
+
+			final long first;
+			final long last;
+			try {
+				if (dash == 0) {
+					// suffix range: last N bytes
+					final long suffix = Long.parseLong(spec.substring(1));
+					if (suffix <= 0) {
+						continue;
+					}
+					first = Math.max(0, size - suffix);
+					last = size - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					if (dash == spec.length() - 1) {
+						last = size - 1;
+					} else {
+						final long end = Long.parseLong(spec.substring(dash + 1));
+						if (end < first) {
+							return null;
+						}
+						last = Math.min(end, size - 1);
+					}
+				}
+			} catch (final NumberFormatException e) {
+				return null;
+			}
+
+			if (first < 0) {
+				return null;
+			}
+			if (first < size) {
+				ranges.add(new ByteRange(first, last));
+			}
+		}
+
+		return ranges;
+	}
+}
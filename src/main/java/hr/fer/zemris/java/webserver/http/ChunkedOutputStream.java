@@ -0,0 +1,220 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Output stream that writes body of HTTP response with chunked transfer
+ * encoding. Written bytes are collected in buffer, and each time buffer is
+ * full, its content is sent as one chunk. When response is finished, last
+ * (empty) chunk is sent. Underlying stream is never closed, because connection
+ * can be used for next request.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	/**
+	 * End of line in HTTP protocol
+	 */
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	/**
+	 * Last chunk, which signals end of body
+	 */
+	private static final byte[] LAST_CHUNK = "0\r\n\r\n"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Hexadecimal digits of chunk size
+	 */
+	private static final byte[] HEX_DIGITS = "0123456789abcdef"
+			.getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Stream to which chunks are written
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Buffer for data of next chunk
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Buffer for line with size of chunk: at most 8 hexadecimal digits and
+	 * end of line. It is reused, so chunk size is written without allocation.
+	 */
+	private final byte[] sizeLine = new byte[10];
+
+	/**
+	 * Number of bytes in buffer
+	 */
+	private int count;
+
+	/**
+	 * Flag that signals if last chunk is written
+	 */
+	private boolean finished;
+
+	/**
+	 * Constructor
+	 *
+	 * @param out
+	 *            stream to which chunks are written
+	 * @param bufferSize
+	 *            maximal size of one chunk
+	 * @throws IllegalArgumentException
+	 *             if stream is null or buffer size is not positive
+	 */
+	public ChunkedOutputStream(OutputStream out, int bufferSize) {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream cannot be null!");
+		}
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException(
+					"Size of chunk buffer must be positive!");
+		}
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		checkNotFinished();
+		if (this.count == this.buffer.length) {
+			writeBufferedChunk();
+		}
+		this.buffer[this.count++] = (byte) b;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		checkNotFinished();
+		if (len >= this.buffer.length) {
+			// large data is sent as its own chunk, without copying
+			writeBufferedChunk();
+			writeChunk(b, off, len);
+			return;
+		}
+
+		if (len > this.buffer.length - this.count) {
+			writeBufferedChunk();
+		}
+		System.arraycopy(b, off, this.buffer, this.count, len);
+		this.count += len;
+	}
+
+	/**
+	 * Sends buffered data as chunk and flushes underlying stream.
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (!this.finished) {
+			writeBufferedChunk();
+		}
+		this.out.flush();
+	}
+
+	/**
+	 * Sends buffered data and last chunk. After this method, nothing can be
+	 * written to this stream. Calling it again has no effect.
+	 *
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public void finish() throws IOException {
+		if (this.finished) {
+			return;
+		}
+		writeBufferedChunk();
+		this.out.write(LAST_CHUNK);
+		this.finished = true;
+	}
+
+	/**
+	 * Finishes body, but does not close underlying stream.
+	 */
+	@Override
+	public void close() throws IOException {
+		finish();
+		this.out.flush();
+	}
+
+	/**
+	 * Sends buffered data as one chunk, if there is any.
+	 *
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void writeBufferedChunk() throws IOException {
+		if (this.count > 0) {
+			writeChunk(this.buffer, 0, this.count);
+			this.count = 0;
+		}
+	}
+
+	/**
+	 * Writes one chunk: size in hexadecimal radix, data and end of line.
+	 *
+	 * @param b
+	 *            data
+	 * @param off
+	 *            offset of data
+	 * @param len
+	 *            length of data, must be positive
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void writeChunk(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		writeSizeLine(len);
+		this.out.write(b, off, len);
+		this.out.write(CRLF);
+	}
+
+	/**
+	 * Writes size of chunk in hexadecimal radix and end of line.
+	 *
+	 * @param len
+	 *            size of chunk, must be positive
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void writeSizeLine(int len) throws IOException {
+		final byte[] line = this.sizeLine;
+		int digits = 1;
+		for (int rest = len >>> 4; rest > 0; rest >>>= 4) {
+			digits++;
+		}
+		for (int i = digits - 1; i >= 0; i--) {
+			line[i] = HEX_DIGITS[len & 0xf];
+			len >>>= 4;
+		}
+		line[digits] = '\r';
+		line[digits + 1] = '\n';
+		this.out.write(line, 0, digits + 2);
+	}
+
+	/**
+	 * Checks if stream is still open for writing.
+	 *
+	 * @throws IOException
+	 *             if last chunk is already written
+	 */
+	private void checkNotFinished() throws IOException {
+		if (this.finished) {
+			throw new IOException("Chunked body is already finished!");
+		}
+	}
+}
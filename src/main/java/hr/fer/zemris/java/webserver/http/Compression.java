@@ -0,0 +1,309 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Settings of response compression: mime types whose responses are
+ * compressed and minimal size of compressed response. Class also contains
+ * helpers for choosing content coding from Accept-Encoding field and for
+ * compressing data with gzip or deflate coding.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class Compression {
+
+	/**
+	 * Name of gzip content coding
+	 */
+	public static final String GZIP = "gzip";
+
+	/**
+	 * Name of deflate content coding
+	 */
+	public static final String DEFLATE = "deflate";
+
+	/**
+	 * Extension of precompressed gzip files
+	 */
+	public static final String GZIP_EXTENSION = ".gz";
+
+	/**
+	 * Size of buffer used for compression
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Responses smaller than this number of bytes are not compressed
+	 */
+	private final int minSize;
+
+	/**
+	 * Mime types, without parameters and in lower case, whose responses are
+	 * compressed
+	 */
+	private final Set<String> mimeTypes;
+
+	/**
+	 * Constructor
+	 *
+	 * @param minSize
+	 *            minimal size of compressed response in bytes
+	 * @param mimeTypes
+	 *            mime types whose responses are compressed. Type "text/*"
+	 *            includes all text types.
+	 * @throws IllegalArgumentException
+	 *             if minimal size is negative or set of mime types is null
+	 */
+	public Compression(int minSize, Set<String> mimeTypes) {
+		if (minSize < 0) {
+			throw new IllegalArgumentException(
+					"Minimal size of compressed response cannot be negative!");
+		}
+		if (mimeTypes == null) {
+			throw new IllegalArgumentException("Mime types cannot be null!");
+		}
+
+		this.minSize = minSize;
+		this.mimeTypes = new HashSet<>();
+		for (final String mimeType : mimeTypes) {
+			this.mimeTypes.add(mimeType.trim().toLowerCase());
+		}
+	}
+
+	/**
+	 * Loads mime types from configuration file. Each line of file maps mime
+	 * type to true or false, for example "text/html = true".
+	 *
+	 * @param config
+	 *            path of configuration file
+	 * @param minSize
+	 *            minimal size of compressed response in bytes
+	 * @return compression settings
+	 * @throws RuntimeException
+	 *             if file cannot be read
+	 */
+	public static Compression load(Path config, int minSize) {
+		final Properties properties = new Properties();
+		try (BufferedReader reader = Files.newBufferedReader(config,
+				StandardCharsets.UTF_8)) {
+			properties.load(reader);
+		} catch (final IOException e) {
+			throw new RuntimeException(
+					"Cannot load compression config file! fileName: "
+							+ config.getFileName(), e);
+		}
+
+		final Set<String> mimeTypes = new HashSet<>();
+		for (final String mimeType : properties.stringPropertyNames()) {
+			if (Boolean.parseBoolean(properties.getProperty(mimeType).trim())) {
+				mimeTypes.add(mimeType);
+			}
+		}
+		return new Compression(minSize, mimeTypes);
+	}
+
+	/**
+	 * Returns minimal size of compressed response.
+	 *
+	 * @return size in bytes
+	 */
+	public int getMinSize() {
+		return this.minSize;
+	}
+
+	/**
+	 * Checks if responses with provided mime type are compressed. Parameters
+	 * of mime type, like charset, are ignored.
+	 *
+	 * @param mimeType
+	 *            mime type of response
+	 * @return true if response should be compressed
+	 */
+	public boolean isCompressible(String mimeType) {
+		if (mimeType == null) {
+			return false;
+		}
+
+		String type = mimeType;
+		final int parameters = type.indexOf(';');
+		if (parameters != -1) {
+			type = type.substring(0, parameters);
+		}
+		type = type.trim().toLowerCase();
+
+		if (this.mimeTypes.contains(type)) {
+			return true;
+		}
+		final int slash = type.indexOf('/');
+		return slash != -1
+				&& this.mimeTypes.contains(type.substring(0, slash + 1) + "*");
+	}
+
+	/**
+	 * Chooses content coding from value of Accept-Encoding field. Coding with
+	 * highest quality is chosen, and gzip is preferred if both codings have
+	 * same quality.
+	 *
+	 * @param acceptEncoding
+	 *            value of Accept-Encoding field, or null
+	 * @return {@link #GZIP}, {@link #DEFLATE}, or null if response should not
+	 *         be compressed
+	 */
+	public static String negotiate(String acceptEncoding) {
+		final double gzip = quality(acceptEncoding, GZIP);
+		final double deflate = quality(acceptEncoding, DEFLATE);
+
+		if (gzip > 0 && gzip >= deflate) {
+			return GZIP;
+		}
+		if (deflate > 0) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns quality of content coding in value of Accept-Encoding field.
+	 * Coding that is not listed gets quality of "*", if it is listed.
+	 *
+	 * @param acceptEncoding
+	 *            value of Accept-Encoding field, or null
+	 * @param coding
+	 *            name of content coding
+	 * @return quality between 0 and 1, where 0 means not acceptable
+	 */
+	public static double quality(String acceptEncoding, String coding) {
+		if (acceptEncoding == null) {
+			return 0;
+		}
+
+		double wildcard = 0;
+		for (final String element : acceptEncoding.split(",")) {
+			final String[] parts = element.split(";");
+			final String name = parts[0].trim();
+
+			double q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				final String parameter = parts[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						q = Double.parseDouble(parameter.substring(2).trim());
+					} catch (final NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+
+			if (name.equalsIgnoreCase(coding)
+					|| (coding.equals(GZIP) && name.equalsIgnoreCase("x-gzip"))) {
+				return q;
+			}
+			if (name.equals("*")) {
+				wildcard = q;
+			}
+		}
+		return wildcard;
+	}
+
+	/**
+	 * Wraps stream in stream that compresses written data with provided
+	 * coding. Compressed data is complete only after
+	 * {@link DeflaterOutputStream#finish()} is called.
+	 *
+	 * @param out
+	 *            stream to which compressed data is written
+	 * @param coding
+	 *            {@link #GZIP} or {@link #DEFLATE}
+	 * @return compressing stream
+	 * @throws IOException
+	 *             if IO error occurs
+	 * @throws IllegalArgumentException
+	 *             if coding is not supported
+	 */
+	public static DeflaterOutputStream wrap(OutputStream out, String coding)
+			throws IOException {
+		if (GZIP.equals(coding)) {
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		}
+		if (DEFLATE.equals(coding)) {
+			return new DeflaterOutputStream(out);
+		}
+		throw new IllegalArgumentException("Unsupported content coding: "
+				+ coding);
+	}
+
+	/**
+	 * Compresses content of buffer, from its position to its limit. Position
+	 * of provided buffer is not changed.
+	 *
+	 * @param data
+	 *            data to compress
+	 * @param coding
+	 *            {@link #GZIP} or {@link #DEFLATE}
+	 * @return compressed data
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public static byte[] compress(ByteBuffer data, String coding)
+			throws IOException {
+		final ByteBuffer source = data.duplicate();
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(
+				source.remaining() / 2 + 64);
+
+		try (DeflaterOutputStream out = wrap(result, coding)) {
+			final byte[] buffer = new byte[Math.min(BUFFER_SIZE,
+					Math.max(1, source.remaining()))];
+			while (source.hasRemaining()) {
+				final int bytes = Math.min(buffer.length, source.remaining());
+				source.get(buffer, 0, bytes);
+				out.write(buffer, 0, bytes);
+			}
+		}
+		return result.toByteArray();
+	}
+
+	/**
+	 * Finds precompressed gzip version of file: file with same name and
+	 * extension ".gz" in same directory. It is used only if it is not older
+	 * than original file.
+	 *
+	 * @param file
+	 *            original file
+	 * @return path of precompressed file, or null if it does not exist or is
+	 *         stale
+	 */
+	public static Path findPrecompressed(Path file) {
+		final Path compressed = file.resolveSibling(file.getFileName()
+				+ GZIP_EXTENSION);
+		try {
+			final BasicFileAttributes attributes = Files.readAttributes(
+					compressed, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+			if (!attributes.isRegularFile()) {
+				return null;
+			}
+			final long original = Files.getLastModifiedTime(file).toMillis();
+			if (attributes.lastModifiedTime().toMillis() < original) {
+				return null;
+			}
+		} catch (final IOException e) {
+			return null;
+		}
+		return compressed;
+	}
+}
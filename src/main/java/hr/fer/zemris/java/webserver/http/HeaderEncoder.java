@@ -0,0 +1,457 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoder of HTTP response header into reusable byte buffer. Parts that are
+ * same for many responses, such as status lines, Content-Type fields and
+ * Connection fields, are encoded once and copied into buffer. Other text is
+ * written into buffer character by character, so encoding header does not
+ * allocate memory after buffer has grown to size of header.
+ * <p>
+ * Encoder is not thread safe. Connection keeps one encoder and uses it for
+ * all its responses.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class HeaderEncoder {
+
+	/**
+	 * End of line in header
+	 */
+	public static final byte[] CRLF = ascii("\r\n");
+
+	/**
+	 * Connection field of persistent connection
+	 */
+	public static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+
+	/**
+	 * Connection field of connection which is closed after response
+	 */
+	public static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+
+	/**
+	 * Server field
+	 */
+	public static final byte[] SERVER = ascii("Server: SmartHttpServer\r\n");
+
+	/**
+	 * Transfer-Encoding field of chunked body
+	 */
+	public static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+
+	/**
+	 * Vary field of response which is compressed depending on request
+	 */
+	public static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+
+	/**
+	 * Name of Content-Length field
+	 */
+	public static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+
+	/**
+	 * Name of Content-Encoding field
+	 */
+	public static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+
+	/**
+	 * Name of Set-Cookie field
+	 */
+	public static final byte[] SET_COOKIE = ascii("Set-Cookie: ");
+
+	/**
+	 * Maximal number of cached Content-Type fields. Mime types set by scripts
+	 * are not limited, so fields beyond this number are encoded every time.
+	 */
+	private static final int MAX_CONTENT_TYPES = 256;
+
+	/**
+	 * Initial size of buffer
+	 */
+	private static final int INITIAL_SIZE = 512;
+
+	/**
+	 * Encoded status lines with standard reason phrases
+	 */
+	private static final Map<Integer, StatusLine> STATUS_LINES = new HashMap<>();
+
+	static {
+		final Object[] statuses = { 200, "OK", 204, "No Content", 206,
+				"Partial Content", 301, "Moved Permanently", 302, "Found", 304,
+				"Not Modified", 400, "Bad Request", 403, "Forbidden", 404,
+				"Not Found", 405, "Method Not Allowed", 413,
+				"Payload Too Large", 416, "Range Not Satisfiable", 500,
+				"Internal Server Error", 503, "Service Unavailable" };
+		for (int i = 0; i < statuses.length; i += 2) {
+			final int code = (Integer) statuses[i];
+			final String text = (String) statuses[i + 1];
+			STATUS_LINES.put(code, new StatusLine(text, ascii("HTTP/1.1 "
+					+ code + " " + text + "\r\n")));
+		}
+	}
+
+	/**
+	 * Encoded Content-Type fields by charset and mime type. Mime types which
+	 * are not text have empty charset.
+	 */
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>> CONTENT_TYPES = new ConcurrentHashMap<>();
+
+	/**
+	 * Number of cached Content-Type fields
+	 */
+	private static final AtomicInteger CONTENT_TYPE_COUNT = new AtomicInteger();
+
+	/**
+	 * Date field of current second
+	 */
+	private static volatile CachedDate date = new CachedDate(-1, null);
+
+	/**
+	 * Buffer with encoded header
+	 */
+	private byte[] buffer;
+
+	/**
+	 * Number of bytes in buffer
+	 */
+	private int length;
+
+	/**
+	 * Constructor
+	 */
+	public HeaderEncoder() {
+		this.buffer = new byte[INITIAL_SIZE];
+	}
+
+	/**
+	 * Encodes Content-Type fields of provided mime types in advance, so they
+	 * are not encoded by first responses.
+	 *
+	 * @param mimeTypes
+	 *            mime types, for example from mime configuration file
+	 * @param encoding
+	 *            charset of text mime types
+	 */
+	public static void registerMimeTypes(Collection<String> mimeTypes,
+			String encoding) {
+		for (final String mimeType : mimeTypes) {
+			contentTypeField(mimeType, encoding);
+		}
+	}
+
+	/**
+	 * Returns encoded Content-Type field.
+	 *
+	 * @param mimeType
+	 *            mime type
+	 * @param encoding
+	 *            charset, it is added only to text mime types
+	 * @return encoded field, ended with CRLF
+	 */
+	private static byte[] contentTypeField(String mimeType,
+			String encoding) {
+		final String charset = mimeType.startsWith("text/") ? encoding : "";
+		ConcurrentHashMap<String, byte[]> types = CONTENT_TYPES.get(charset);
+		if (types == null) {
+			types = new ConcurrentHashMap<>();
+			final ConcurrentHashMap<String, byte[]> existing = CONTENT_TYPES
+					.putIfAbsent(charset, types);
+			if (existing != null) {
+				types = existing;
+			}
+		}
+
+		byte[] field = types.get(mimeType);
+		if (field == null) {
+			field = ascii("Content-Type: " + mimeType
+					+ (charset.isEmpty() ? "" : "; charset=" + charset)
+					+ "\r\n");
+			if (CONTENT_TYPE_COUNT.get() < MAX_CONTENT_TYPES
+					&& types.putIfAbsent(mimeType, field) == null) {
+				CONTENT_TYPE_COUNT.incrementAndGet();
+			}
+		}
+		return field;
+	}
+
+	/**
+	 * Empties buffer, so new header can be encoded.
+	 *
+	 * @return this encoder
+	 */
+	public HeaderEncoder reset() {
+		this.length = 0;
+		return this;
+	}
+
+	/**
+	 * Appends status line of HTTP/1.1 response.
+	 *
+	 * @param code
+	 *            status code
+	 * @param text
+	 *            status text
+	 * @return this encoder
+	 */
+	public HeaderEncoder statusLine(int code, String text) {
+		final StatusLine line = STATUS_LINES.get(code);
+		if (line != null && line.text.equals(text)) {
+			return append(line.bytes);
+		}
+		return append("HTTP/1.1 ").append(code).append(' ').append(text)
+				.append(CRLF);
+	}
+
+	/**
+	 * Appends Content-Type field.
+	 *
+	 * @param mimeType
+	 *            mime type
+	 * @param encoding
+	 *            charset, it is added only to text mime types
+	 * @return this encoder
+	 */
+	public HeaderEncoder contentType(String mimeType, String encoding) {
+		return append(contentTypeField(mimeType, encoding));
+	}
+
+	/**
+	 * Appends Date field with current time. Field is encoded once per
+	 * second.
+	 *
+	 * @return this encoder
+	 */
+	public HeaderEncoder date() {
+		final long now = System.currentTimeMillis();
+		final long second = now / 1000;
+		CachedDate current = date;
+		if (current.second != second) {
+			current = new CachedDate(second, ascii("Date: "
+					+ HttpDates.format(second * 1000) + "\r\n"));
+			date = current;
+		}
+		return append(current.field);
+	}
+
+	/**
+	 * Appends bytes.
+	 *
+	 * @param bytes
+	 *            bytes to append
+	 * @return this encoder
+	 */
+	public HeaderEncoder append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, this.buffer, this.length, bytes.length);
+		this.length += bytes.length;
+		return this;
+	}
+
+	/**
+	 * Appends text. Characters which are not ASCII are replaced with '?'.
+	 *
+	 * @param text
+	 *            text to append
+	 * @return this encoder
+	 */
+	public HeaderEncoder append(String text) {
+		final int size = text.length();
+		ensureCapacity(size);
+		for (int i = 0; i < size; i++) {
+			final char c = text.charAt(i);
+			this.buffer[this.length++] = (byte) (c < 0x80 ? c : '?');
+		}
+		return this;
+	}
+
+	/**
+	 * Appends one ASCII character.
+	 *
+	 * @param c
+	 *            character to append
+	 * @return this encoder
+	 */
+	public HeaderEncoder append(char c) {
+		ensureCapacity(1);
+		this.buffer[this.length++] = (byte) (c < 0x80 ? c : '?');
+		return this;
+	}
+
+	/**
+	 * Appends decimal representation of number.
+	 *
+	 * @param number
+	 *            number to append
+	 * @return this encoder
+	 */
+	public HeaderEncoder append(long number) {
+		if (number < 0) {
+			if (number == Long.MIN_VALUE) {
+				return append(Long.toString(number));
+			}
+			append('-');
+			number = -number;
+		}
+		int digits = 1;
+		for (long rest = number / 10; rest > 0; rest /= 10) {
+			digits++;
+		}
+		ensureCapacity(digits);
+		for (int i = this.length + digits - 1; i >= this.length; i--) {
+			this.buffer[i] = (byte) ('0' + number % 10);
+			number /= 10;
+		}
+		this.length += digits;
+		return this;
+	}
+
+	/**
+	 * Returns buffer with encoded header. Only first {@link #length()} bytes
+	 * belong to header.
+	 *
+	 * @return buffer
+	 */
+	public byte[] array() {
+		return this.buffer;
+	}
+
+	/**
+	 * Returns length of encoded header.
+	 *
+	 * @return number of bytes
+	 */
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * Returns buffer which wraps encoded header, without copying it.
+	 *
+	 * @return buffer from beginning to end of header
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(this.buffer, 0, this.length);
+	}
+
+	/**
+	 * Writes encoded header to stream.
+	 *
+	 * @param out
+	 *            output stream
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(this.buffer, 0, this.length);
+	}
+
+	/**
+	 * Returns copy of encoded header.
+	 *
+	 * @return encoded header
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(this.buffer, this.length);
+	}
+
+	/**
+	 * Enlarges buffer if it cannot take provided number of bytes.
+	 *
+	 * @param size
+	 *            number of bytes that will be appended
+	 */
+	private void ensureCapacity(int size) {
+		if (this.length + size > this.buffer.length) {
+			this.buffer = Arrays.copyOf(this.buffer,
+					Math.max(this.buffer.length * 2, this.length + size));
+		}
+	}
+
+	/**
+	 * Encodes ASCII text.
+	 *
+	 * @param text
+	 *            text
+	 * @return bytes of text
+	 */
+	private static byte[] ascii(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Encoded status line with its status text.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	private static class StatusLine {
+
+		/**
+		 * Status text
+		 */
+		private final String text;
+
+		/**
+		 * Encoded status line
+		 */
+		private final byte[] bytes;
+
+		/**
+		 * Constructor
+		 *
+		 * @param text
+		 *            status text
+		 * @param bytes
+		 *            encoded status line
+		 */
+		private StatusLine(String text, byte[] bytes) {
+			this.text = text;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Date field encoded for one second.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	private static class CachedDate {
+
+		/**
+		 * Second since epoch
+		 */
+		private final long second;
+
+		/**
+		 * Encoded Date field
+		 */
+		private final byte[] field;
+
+		/**
+		 * Constructor
+		 *
+		 * @param second
+		 *            second since epoch
+		 * @param field
+		 *            encoded Date field
+		 */
+		private CachedDate(long second, byte[] field) {
+			this.second = second;
+			this.field = field;
+		}
+	}
+}
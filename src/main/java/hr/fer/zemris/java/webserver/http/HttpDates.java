@@ -0,0 +1,64 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Utility class for dates in HTTP header fields, such as Last-Modified and
+ * If-Modified-Since. Dates are written in IMF-fixdate format, for example
+ * "Sun, 06 Nov 1994 08:49:37 GMT".
+ * 
+ * @author Nikola Sekulić
+ * 
+ */
+public class HttpDates {
+
+	/**
+	 * Formatter of IMF-fixdate format
+	 */
+	private static final DateTimeFormatter FORMATTER = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+			.withZone(ZoneOffset.UTC);
+
+	/**
+	 * Private constructor, class has only static methods.
+	 */
+	private HttpDates() {
+	}
+
+	/**
+	 * Formats time for HTTP header.
+	 * 
+	 * @param millis
+	 *            time in milliseconds since epoch
+	 * @return formatted date
+	 */
+	public static String format(long millis) {
+		return FORMATTER.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses date from HTTP header. Besides IMF-fixdate, RFC 1123 dates with
+	 * one-digit day are accepted.
+	 * 
+	 * @param date
+	 *            date from header
+	 * @return time in milliseconds since epoch, or -1 if date is invalid
+	 */
+	public static long parse(String date) {
+		if (date == null) {
+			return -1;
+		}
+		try {
+			return ZonedDateTime
+					.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+					.toInstant().toEpochMilli();
+		} catch (final DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
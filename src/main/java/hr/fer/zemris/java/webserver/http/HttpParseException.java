@@ -0,0 +1,24 @@
+package hr.fer.zemris.java.webserver.http;
+
+/**
+ * Signals that request header is not valid HTTP request header or that it
+ * exceeds limits of parser.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class HttpParseException extends RuntimeException {
+
+	/** serialization id **/
+	private static final long serialVersionUID = 3920816275193264107L;
+
+	/**
+	 * Creates new HttpParseException
+	 *
+	 * @param message
+	 *            error message
+	 */
+	public HttpParseException(String message) {
+		super(message);
+	}
+}
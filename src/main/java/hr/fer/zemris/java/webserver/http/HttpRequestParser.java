@@ -0,0 +1,545 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Incremental parser of HTTP request header. Bytes are given to parser as
+ * they arrive, in one or more calls of {@link #parse(ByteBuffer)}, so the same
+ * parser is used by blocking workers and by selector thread. Parser consumes
+ * bytes only up to end of header; body and following requests stay in
+ * buffer.
+ *
+ * Header is copied to internal array, and request line and header fields are
+ * remembered only as positions in that array. Strings are created only for
+ * parts of request which are actually used. One parser can be reused for all
+ * requests on connection, after {@link #reset()}.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class HttpRequestParser {
+
+	/**
+	 * Default maximal size of request header in bytes
+	 */
+	public static final int DEFAULT_MAX_HEADER_SIZE = 8192;
+
+	/**
+	 * Default maximal number of header fields
+	 */
+	public static final int DEFAULT_MAX_HEADER_COUNT = 100;
+
+	/**
+	 * Methods which are returned without creating new string
+	 */
+	private static final String[] KNOWN_METHODS = { "GET", "HEAD", "POST",
+			"PUT", "DELETE", "OPTIONS" };
+
+	/**
+	 * Versions which are returned without creating new string
+	 */
+	private static final String[] KNOWN_VERSIONS = { "HTTP/1.1", "HTTP/1.0" };
+
+	/**
+	 * Bytes of header
+	 */
+	private final byte[] header;
+
+	/**
+	 * Number of bytes in header array
+	 */
+	private int length;
+
+	/**
+	 * Position in header array where current line starts
+	 */
+	private int lineStart;
+
+	/**
+	 * Flag that signals if request line is parsed
+	 */
+	private boolean requestLineParsed;
+
+	/**
+	 * Flag that signals if complete header is parsed
+	 */
+	private boolean complete;
+
+	/**
+	 * Start and end of method, target and version in header array
+	 */
+	private int methodStart, methodEnd, targetStart, targetEnd, versionStart,
+			versionEnd;
+
+	/**
+	 * Position of '?' in target, or end of target if there is no query
+	 */
+	private int queryMark;
+
+	/**
+	 * Start of name of each header field
+	 */
+	private final int[] nameStart;
+
+	/**
+	 * End of name of each header field
+	 */
+	private final int[] nameEnd;
+
+	/**
+	 * Start of value of each header field
+	 */
+	private final int[] valueStart;
+
+	/**
+	 * End of value of each header field
+	 */
+	private final int[] valueEnd;
+
+	/**
+	 * Number of header fields
+	 */
+	private int count;
+
+	/**
+	 * Method, created on first request
+	 */
+	private String method;
+
+	/**
+	 * Path, created on first request
+	 */
+	private String path;
+
+	/**
+	 * Version, created on first request
+	 */
+	private String version;
+
+	/**
+	 * Constructor with default limits.
+	 */
+	public HttpRequestParser() {
+		this(DEFAULT_MAX_HEADER_SIZE, DEFAULT_MAX_HEADER_COUNT);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param maxHeaderSize
+	 *            maximal size of request header in bytes
+	 * @param maxHeaderCount
+	 *            maximal number of header fields
+	 * @throws IllegalArgumentException
+	 *             if any limit is not positive
+	 */
+	public HttpRequestParser(int maxHeaderSize, int maxHeaderCount) {
+		if (maxHeaderSize < 1 || maxHeaderCount < 1) {
+			throw new IllegalArgumentException(
+					"Limits of request header must be positive!");
+		}
+		this.header = new byte[maxHeaderSize];
+		this.nameStart = new int[maxHeaderCount];
+		this.nameEnd = new int[maxHeaderCount];
+		this.valueStart = new int[maxHeaderCount];
+		this.valueEnd = new int[maxHeaderCount];
+	}
+
+	/**
+	 * Prepares parser for next request.
+	 */
+	public void reset() {
+		this.length = 0;
+		this.lineStart = 0;
+		this.requestLineParsed = false;
+		this.complete = false;
+		this.count = 0;
+		this.method = null;
+		this.path = null;
+		this.version = null;
+	}
+
+	/**
+	 * Parses bytes from position to limit of buffer. Bytes are consumed up to
+	 * end of header, so after header is complete, position of buffer is at
+	 * first byte of body or of next request. Empty lines before request line
+	 * are ignored.
+	 *
+	 * @param input
+	 *            received bytes
+	 * @return true if header is complete
+	 * @throws HttpParseException
+	 *             if header is invalid or too large
+	 */
+	public boolean parse(ByteBuffer input) {
+		while (!this.complete && input.hasRemaining()) {
+			if (this.length == this.header.length) {
+				throw new HttpParseException("Request header too large");
+			}
+
+			final byte b = input.get();
+			this.header[this.length++] = b;
+			if (b == '\n') {
+				parseLine(this.lineStart, this.length - 1);
+				this.lineStart = this.length;
+			}
+		}
+		return this.complete;
+	}
+
+	/**
+	 * Parses one line of header.
+	 *
+	 * @param start
+	 *            start of line
+	 * @param end
+	 *            position of line feed which ends line
+	 */
+	private void parseLine(int start, int end) {
+		if (end > start && this.header[end - 1] == '\r') {
+			end--;
+		}
+
+		if (!this.requestLineParsed) {
+			if (start == end) {
+				// empty lines before request are ignored
+				this.length = 0;
+				this.lineStart = 0;
+				return;
+			}
+			parseRequestLine(start, end);
+			this.requestLineParsed = true;
+			return;
+		}
+
+		if (start == end) {
+			this.complete = true;
+			return;
+		}
+
+		if (isWhitespace(this.header[start])) {
+			throw new HttpParseException(
+					"Folded header fields are not supported");
+		}
+
+		int colon = start;
+		while (colon < end && this.header[colon] != ':') {
+			colon++;
+		}
+		if (colon == end || colon == start
+				|| isWhitespace(this.header[colon - 1])) {
+			throw new HttpParseException("Invalid header field");
+		}
+
+		if (this.count == this.nameStart.length) {
+			throw new HttpParseException("Too many header fields");
+		}
+
+		int from = colon + 1;
+		int to = end;
+		while (from < to && isWhitespace(this.header[from])) {
+			from++;
+		}
+		while (to > from && isWhitespace(this.header[to - 1])) {
+			to--;
+		}
+
+		this.nameStart[this.count] = start;
+		this.nameEnd[this.count] = colon;
+		this.valueStart[this.count] = from;
+		this.valueEnd[this.count] = to;
+		this.count++;
+	}
+
+	/**
+	 * Parses request line, which has method, target and version separated by
+	 * whitespace.
+	 *
+	 * @param start
+	 *            start of line
+	 * @param end
+	 *            end of line, without CRLF
+	 */
+	private void parseRequestLine(int start, int end) {
+		int position = skipWhitespace(start, end);
+		this.methodStart = position;
+		this.methodEnd = skipToken(position, end);
+
+		this.targetStart = skipWhitespace(this.methodEnd, end);
+		this.targetEnd = skipToken(this.targetStart, end);
+
+		this.versionStart = skipWhitespace(this.targetEnd, end);
+		this.versionEnd = skipToken(this.versionStart, end);
+
+		position = skipWhitespace(this.versionEnd, end);
+		if (this.methodStart == this.methodEnd
+				|| this.targetStart == this.targetEnd
+				|| this.versionStart == this.versionEnd || position != end) {
+			throw new HttpParseException("Invalid request");
+		}
+
+		this.queryMark = this.targetStart;
+		while (this.queryMark < this.targetEnd
+				&& this.header[this.queryMark] != '?') {
+			this.queryMark++;
+		}
+	}
+
+	/**
+	 * Returns position of first byte which is not whitespace.
+	 *
+	 * @param position
+	 *            start position
+	 * @param end
+	 *            end of line
+	 * @return position of byte, or end of line
+	 */
+	private int skipWhitespace(int position, int end) {
+		while (position < end && isWhitespace(this.header[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Returns position of first whitespace.
+	 *
+	 * @param position
+	 *            start position
+	 * @param end
+	 *            end of line
+	 * @return position of whitespace, or end of line
+	 */
+	private int skipToken(int position, int end) {
+		while (position < end && !isWhitespace(this.header[position])) {
+			position++;
+		}
+		return position;
+	}
+
+	/**
+	 * Checks if byte is space or horizontal tab.
+	 *
+	 * @param b
+	 *            byte
+	 * @return true if byte is whitespace
+	 */
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	/**
+	 * Checks if complete header is parsed.
+	 *
+	 * @return true if header is complete
+	 */
+	public boolean isComplete() {
+		return this.complete;
+	}
+
+	/**
+	 * Returns number of bytes of header consumed so far.
+	 *
+	 * @return size of header in bytes
+	 */
+	public int getHeaderSize() {
+		return this.length;
+	}
+
+	/**
+	 * Returns method of request.
+	 *
+	 * @return method, for example "GET"
+	 */
+	public String getMethod() {
+		checkComplete();
+		if (this.method == null) {
+			this.method = toString(this.methodStart, this.methodEnd,
+					KNOWN_METHODS);
+		}
+		return this.method;
+	}
+
+	/**
+	 * Returns path of request target, without query.
+	 *
+	 * @return path
+	 */
+	public String getPath() {
+		checkComplete();
+		if (this.path == null) {
+			this.path = toString(this.targetStart, this.queryMark, null);
+		}
+		return this.path;
+	}
+
+	/**
+	 * Returns query of request target, without '?'.
+	 *
+	 * @return query, or null if target does not have query
+	 */
+	public String getQuery() {
+		checkComplete();
+		if (this.queryMark == this.targetEnd) {
+			return null;
+		}
+		return toString(this.queryMark + 1, this.targetEnd, null);
+	}
+
+	/**
+	 * Returns version of protocol from request line.
+	 *
+	 * @return version, for example "HTTP/1.1"
+	 */
+	public String getVersion() {
+		checkComplete();
+		if (this.version == null) {
+			this.version = toString(this.versionStart, this.versionEnd,
+					KNOWN_VERSIONS);
+		}
+		return this.version;
+	}
+
+	/**
+	 * Returns number of header fields.
+	 *
+	 * @return number of fields
+	 */
+	public int getHeaderCount() {
+		checkComplete();
+		return this.count;
+	}
+
+	/**
+	 * Returns value of header field. Name of field is case insensitive. If
+	 * field is sent more than once, last value is returned.
+	 *
+	 * @param name
+	 *            name of field
+	 * @return value of field, or null if request does not have that field
+	 */
+	public String getHeader(String name) {
+		checkComplete();
+		for (int i = this.count - 1; i >= 0; i--) {
+			if (isName(i, name)) {
+				return toString(this.valueStart[i], this.valueEnd[i], null);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns all values of header field, in order in which they are sent.
+	 *
+	 * @param name
+	 *            name of field, case insensitive
+	 * @return values of field, empty list if request does not have that field
+	 */
+	public List<String> getHeaders(String name) {
+		checkComplete();
+		List<String> values = null;
+		for (int i = 0; i < this.count; i++) {
+			if (isName(i, name)) {
+				if (values == null) {
+					values = new ArrayList<>(2);
+				}
+				values.add(toString(this.valueStart[i], this.valueEnd[i], null));
+			}
+		}
+		return values == null ? Collections.<String> emptyList() : values;
+	}
+
+	/**
+	 * Checks if header field has provided name. Comparison ignores case of
+	 * ASCII letters.
+	 *
+	 * @param index
+	 *            index of field
+	 * @param name
+	 *            name to compare
+	 * @return true if field has that name
+	 */
+	private boolean isName(int index, String name) {
+		final int start = this.nameStart[index];
+		if (this.nameEnd[index] - start != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			int a = this.header[start + i];
+			int b = name.charAt(i);
+			if (a >= 'A' && a <= 'Z') {
+				a += 'a' - 'A';
+			}
+			if (b >= 'A' && b <= 'Z') {
+				b += 'a' - 'A';
+			}
+			if (a != b) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates string from part of header. If part is equal to one of known
+	 * strings, that string is returned.
+	 *
+	 * @param start
+	 *            start of part
+	 * @param end
+	 *            end of part
+	 * @param known
+	 *            known strings, can be null
+	 * @return string
+	 */
+	private String toString(int start, int end, String[] known) {
+		if (known != null) {
+			for (final String candidate : known) {
+				if (equals(start, end, candidate)) {
+					return candidate;
+				}
+			}
+		}
+		return new String(this.header, start, end - start,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Checks if part of header is equal to string.
+	 *
+	 * @param start
+	 *            start of part
+	 * @param end
+	 *            end of part
+	 * @param text
+	 *            string to compare
+	 * @return true if they are equal
+	 */
+	private boolean equals(int start, int end, String text) {
+		if (end - start != text.length()) {
+			return false;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			if (this.header[start + i] != text.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks if header is complete.
+	 *
+	 * @throws IllegalStateException
+	 *             if header is not complete
+	 */
+	private void checkComplete() {
+		if (!this.complete) {
+			throw new IllegalStateException("Request header is not complete!");
+		}
+	}
+}
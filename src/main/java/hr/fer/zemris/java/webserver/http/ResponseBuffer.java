@@ -0,0 +1,166 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Output stream which collects response in buffer before it is written to
+ * connection. Header, chunk lines and many small writes of script output are
+ * sent with one write operation, when buffer is full or when stream is
+ * flushed at end of response.
+ * <p>
+ * Data which does not fit into buffer is written together with buffered data.
+ * If connection has gathering channel, both are written by one gathering
+ * write, without copying data into buffer.
+ * </p>
+ * <p>
+ * Buffer is provided by caller, usually from {@link BufferPool}. If
+ * connection has channel, buffer can be direct, so it is written to socket
+ * without copying.
+ * </p>
+ * <p>
+ * Stream is not thread safe. Connection keeps one stream for all its
+ * responses, and stream must be flushed after each response.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class ResponseBuffer extends OutputStream {
+
+	/**
+	 * Stream of connection
+	 */
+	private final OutputStream out;
+
+	/**
+	 * Channel of connection, or null if data is written only to stream
+	 */
+	private final GatheringByteChannel channel;
+
+	/**
+	 * Buffer of data which is not written yet, in write mode
+	 */
+	private final ByteBuffer buffer;
+
+	/**
+	 * Constructor
+	 *
+	 * @param out
+	 *            stream of connection
+	 * @param channel
+	 *            channel which writes to same connection as stream, or null
+	 * @param buffer
+	 *            buffer in which data is collected, it is cleared
+	 * @throws IllegalArgumentException
+	 *             if stream or buffer is null, buffer has no capacity, or
+	 *             buffer has no array and channel is null
+	 */
+	public ResponseBuffer(OutputStream out, GatheringByteChannel channel,
+			ByteBuffer buffer) {
+		if (out == null) {
+			throw new IllegalArgumentException("Output stream cannot be null!");
+		}
+		if (buffer == null || buffer.capacity() < 1) {
+			throw new IllegalArgumentException(
+					"Response buffer must have positive capacity!");
+		}
+		if (channel == null && !buffer.hasArray()) {
+			throw new IllegalArgumentException(
+					"Direct buffer can be written only to channel!");
+		}
+		this.out = out;
+		this.channel = channel;
+		this.buffer = buffer;
+		this.buffer.clear();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		if (!this.buffer.hasRemaining()) {
+			writeBuffer();
+		}
+		this.buffer.put((byte) b);
+	}
+
+	/**
+	 * {@inheritDoc} Data that does not fit into buffer is written
+	 * immediately, together with buffered data.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len <= this.buffer.remaining()) {
+			this.buffer.put(b, off, len);
+			return;
+		}
+
+		if (len < this.buffer.capacity()) {
+			// data fills buffer, and rest of it starts new buffer
+			final int part = this.buffer.remaining();
+			this.buffer.put(b, off, part);
+			writeBuffer();
+			this.buffer.put(b, off + part, len - part);
+			return;
+		}
+
+		// large data is not copied
+		if (this.channel != null) {
+			this.buffer.flip();
+			final ByteBuffer[] buffers = { this.buffer,
+					ByteBuffer.wrap(b, off, len) };
+			long remaining = this.buffer.remaining() + (long) len;
+			while (remaining > 0) {
+				remaining -= this.channel.write(buffers);
+			}
+			this.buffer.clear();
+		} else {
+			writeBuffer();
+			this.out.write(b, off, len);
+		}
+	}
+
+	/**
+	 * Writes buffered data to connection.
+	 */
+	@Override
+	public void flush() throws IOException {
+		writeBuffer();
+		this.out.flush();
+	}
+
+	/**
+	 * Writes buffered data, but does not close connection, because it can be
+	 * used for next request.
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Writes buffered data to stream of connection, if there is any.
+	 *
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void writeBuffer() throws IOException {
+		if (this.buffer.position() == 0) {
+			return;
+		}
+		this.buffer.flip();
+		if (this.channel != null) {
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+		} else {
+			this.out.write(this.buffer.array(), this.buffer.arrayOffset(),
+					this.buffer.remaining());
+		}
+		this.buffer.clear();
+	}
+}
@@ -0,0 +1,279 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoder of text of response body. Text is encoded into reusable buffer,
+ * which is passed to {@link Sink} each time it is full, so encoding does not
+ * create byte array for each written text. UTF-8, US-ASCII and ISO-8859-1 are
+ * encoded directly; other charsets use {@link CharsetEncoder}, which is
+ * created once for each charset. Characters which cannot be encoded are
+ * replaced, as in {@link String#getBytes(Charset)}.
+ * <p>
+ * Encoder is not thread safe. Connection keeps one encoder and uses it for
+ * all its responses.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class TextEncoder {
+
+	/**
+	 * Default size of buffer
+	 */
+	public static final int DEFAULT_SIZE = 4096;
+
+	/**
+	 * Destination of encoded bytes.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	public interface Sink {
+
+		/**
+		 * Writes encoded bytes.
+		 *
+		 * @param data
+		 *            array with bytes
+		 * @param offset
+		 *            offset of first byte
+		 * @param length
+		 *            number of bytes
+		 * @throws IOException
+		 *             if IO error occurs
+		 */
+		void write(byte[] data, int offset, int length) throws IOException;
+	}
+
+	/**
+	 * Buffer for encoded bytes
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * Charset of last encoder, or null
+	 */
+	private Charset charset;
+
+	/**
+	 * Encoder for charsets without direct encoding, or null
+	 */
+	private CharsetEncoder encoder;
+
+	/**
+	 * Constructor of encoder with default size of buffer
+	 */
+	public TextEncoder() {
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param size
+	 *            size of buffer, at least 4 bytes, so each character fits
+	 * @throws IllegalArgumentException
+	 *             if size is less than 4
+	 */
+	public TextEncoder(int size) {
+		if (size < 4) {
+			throw new IllegalArgumentException(
+					"Size of text buffer must be at least 4!");
+		}
+		this.buffer = new byte[size];
+	}
+
+	/**
+	 * Encodes text and writes bytes to sink.
+	 *
+	 * @param text
+	 *            text
+	 * @param start
+	 *            index of first character
+	 * @param end
+	 *            index after last character
+	 * @param charset
+	 *            charset of text
+	 * @param sink
+	 *            destination of bytes
+	 * @throws IOException
+	 *             if sink cannot write bytes
+	 */
+	public void encode(CharSequence text, int start, int end,
+			Charset charset, Sink sink) throws IOException {
+		if (charset.equals(StandardCharsets.UTF_8)) {
+			encodeUtf8(text, start, end, sink);
+		} else if (charset.equals(StandardCharsets.US_ASCII)) {
+			encodeSingleByte(text, start, end, 0x80, sink);
+		} else if (charset.equals(StandardCharsets.ISO_8859_1)) {
+			encodeSingleByte(text, start, end, 0x100, sink);
+		} else {
+			encodeWithEncoder(text, start, end, charset, sink);
+		}
+	}
+
+	/**
+	 * Encodes text as UTF-8.
+	 *
+	 * @param text
+	 *            text
+	 * @param start
+	 *            index of first character
+	 * @param end
+	 *            index after last character
+	 * @param sink
+	 *            destination of bytes
+	 * @throws IOException
+	 *             if sink cannot write bytes
+	 */
+	private void encodeUtf8(CharSequence text, int start, int end, Sink sink)
+			throws IOException {
+		final byte[] buffer = this.buffer;
+		final int limit = buffer.length - 4;
+		int length = 0;
+
+		for (int i = start; i < end; i++) {
+			if (length > limit) {
+				sink.write(buffer, 0, length);
+				length = 0;
+			}
+
+			final char c = text.charAt(i);
+			if (c < 0x80) {
+				buffer[length++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[length++] = (byte) (0xc0 | c >> 6);
+				buffer[length++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				final char next = i + 1 < end ? text.charAt(i + 1) : 0;
+				if (Character.isHighSurrogate(c)
+						&& Character.isLowSurrogate(next)) {
+					final int code = Character.toCodePoint(c, next);
+					buffer[length++] = (byte) (0xf0 | code >> 18);
+					buffer[length++] = (byte) (0x80 | code >> 12 & 0x3f);
+					buffer[length++] = (byte) (0x80 | code >> 6 & 0x3f);
+					buffer[length++] = (byte) (0x80 | code & 0x3f);
+					i++;
+				} else {
+					// unpaired surrogate is replaced
+					buffer[length++] = '?';
+				}
+			} else {
+				buffer[length++] = (byte) (0xe0 | c >> 12);
+				buffer[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+				buffer[length++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+
+		if (length > 0) {
+			sink.write(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Encodes text in charset in which each character is one byte with same
+	 * value as character.
+	 *
+	 * @param text
+	 *            text
+	 * @param start
+	 *            index of first character
+	 * @param end
+	 *            index after last character
+	 * @param bound
+	 *            first character which cannot be encoded
+	 * @param sink
+	 *            destination of bytes
+	 * @throws IOException
+	 *             if sink cannot write bytes
+	 */
+	private void encodeSingleByte(CharSequence text, int start, int end,
+			int bound, Sink sink) throws IOException {
+		final byte[] buffer = this.buffer;
+		int length = 0;
+
+		for (int i = start; i < end; i++) {
+			if (length == buffer.length) {
+				sink.write(buffer, 0, length);
+				length = 0;
+			}
+
+			final char c = text.charAt(i);
+			if (c < bound) {
+				buffer[length++] = (byte) c;
+			} else {
+				buffer[length++] = '?';
+				if (Character.isHighSurrogate(c) && i + 1 < end
+						&& Character.isLowSurrogate(text.charAt(i + 1))) {
+					// surrogate pair is one character
+					i++;
+				}
+			}
+		}
+
+		if (length > 0) {
+			sink.write(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Encodes text with {@link CharsetEncoder}.
+	 *
+	 * @param text
+	 *            text
+	 * @param start
+	 *            index of first character
+	 * @param end
+	 *            index after last character
+	 * @param charset
+	 *            charset of text
+	 * @param sink
+	 *            destination of bytes
+	 * @throws IOException
+	 *             if sink cannot write bytes
+	 */
+	private void encodeWithEncoder(CharSequence text, int start, int end,
+			Charset charset, Sink sink) throws IOException {
+		if (!charset.equals(this.charset)) {
+			this.encoder = charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.charset = charset;
+		}
+
+		final CharsetEncoder encoder = this.encoder.reset();
+		final CharBuffer in = CharBuffer.wrap(text, start, end);
+		final ByteBuffer out = ByteBuffer.wrap(this.buffer);
+
+		boolean flushed = false;
+		while (!flushed) {
+			CoderResult result = encoder.encode(in, out, true);
+			if (result.isUnderflow()) {
+				result = encoder.flush(out);
+				flushed = result.isUnderflow();
+			}
+			if (result.isError()) {
+				try {
+					result.throwException();
+				} catch (final CharacterCodingException e) {
+					throw new IOException("Cannot encode text in " + charset,
+							e);
+				}
+			}
+			if (out.position() > 0) {
+				sink.write(this.buffer, 0, out.position());
+				out.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package hr.fer.zemris.java.webserver.http;
+
+/**
+ * Validators of one version of file: entity tag and time of last
+ * modification. They are sent in ETag and Last-Modified header fields, and
+ * compared with If-None-Match and If-Modified-Since fields of conditional
+ * requests.
+ * 
+ * @author Nikola Sekulić
+ * 
+ */
+public class Validators {
+
+	/**
+	 * Entity tag, with quotes
+	 */
+	private final String etag;
+
+	/**
+	 * Time of last modification in milliseconds, rounded down to seconds
+	 */
+	private final long lastModified;
+
+	/**
+	 * Time of last modification formatted for HTTP header
+	 */
+	private final String lastModifiedText;
+
+	/**
+	 * Constructor. Entity tag is created from modification time and size of
+	 * file, so content of file is not read.
+	 * 
+	 * @param lastModified
+	 *            time of last modification in milliseconds
+	 * @param size
+	 *            size of file in bytes
+	 */
+	public Validators(long lastModified, long size) {
+		this.etag = "\"" + Long.toHexString(lastModified) + "-"
+				+ Long.toHexString(size) + "\"";
+		this.lastModified = lastModified - lastModified % 1000;
+		this.lastModifiedText = HttpDates.format(this.lastModified);
+	}
+
+	/**
+	 * Constructor used for validators of encoded version of file.
+	 * 
+	 * @param etag
+	 *            entity tag, with quotes
+	 * @param lastModified
+	 *            time of last modification, rounded down to seconds
+	 * @param lastModifiedText
+	 *            time of last modification formatted for HTTP header
+	 */
+	private Validators(String etag, long lastModified, String lastModifiedText) {
+		this.etag = etag;
+		this.lastModified = lastModified;
+		this.lastModifiedText = lastModifiedText;
+	}
+
+	/**
+	 * Returns validators of file encoded with content coding. Encoded file has
+	 * different bytes, so it gets its own entity tag, while time of last
+	 * modification stays same.
+	 * 
+	 * @param coding
+	 *            name of content coding, for example "gzip"
+	 * @return validators of encoded file
+	 */
+	public Validators withCoding(String coding) {
+		return new Validators(this.etag.substring(0, this.etag.length() - 1)
+				+ "-" + coding + "\"", this.lastModified,
+				this.lastModifiedText);
+	}
+
+	/**
+	 * Returns entity tag.
+	 * 
+	 * @return entity tag, with quotes
+	 */
+	public String getETag() {
+		return this.etag;
+	}
+
+	/**
+	 * Returns time of last modification.
+	 * 
+	 * @return time in milliseconds, rounded down to seconds
+	 */
+	public long getLastModified() {
+		return this.lastModified;
+	}
+
+	/**
+	 * Returns time of last modification formatted for HTTP header.
+	 * 
+	 * @return formatted date
+	 */
+	public String getLastModifiedText() {
+		return this.lastModifiedText;
+	}
+
+	/**
+	 * Checks if client already has this version of file. If-None-Match is
+	 * checked first; If-Modified-Since is used only if If-None-Match is not
+	 * sent.
+	 * 
+	 * @param ifNoneMatch
+	 *            value of If-None-Match field, or null
+	 * @param ifModifiedSince
+	 *            value of If-Modified-Since field, or null
+	 * @return true if response 304 Not Modified should be sent
+	 */
+	public boolean isNotModified(String ifNoneMatch, String ifModifiedSince) {
+		if (ifNoneMatch != null) {
+			return matches(ifNoneMatch);
+		}
+
+		if (ifModifiedSince != null) {
+			final long since = HttpDates.parse(ifModifiedSince);
+			return since != -1 && this.lastModified <= since;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Checks if value of If-Range field matches this version of file. Value
+	 * is either entity tag, which is compared with strong comparison, or date,
+	 * which must be equal to time of last modification.
+	 * 
+	 * @param ifRange
+	 *            value of If-Range field
+	 * @return true if range request can be served
+	 */
+	public boolean matchesIfRange(String ifRange) {
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(this.etag);
+		}
+		return HttpDates.parse(ifRange) == this.lastModified;
+	}
+
+	/**
+	 * Checks if list of entity tags contains this entity tag. Weak comparison
+	 * is used, so prefix "W/" is ignored.
+	 * 
+	 * @param tags
+	 *            comma separated entity tags, or "*"
+	 * @return true if entity tag is in list
+	 */
+	public boolean matches(String tags) {
+		for (String tag : tags.split(",")) {
+			tag = tag.trim();
+			if (tag.equals("*")) {
+				return true;
+			}
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals(this.etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,143 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable version of session parameters. Request reads parameters from
+ * version which was current when request started, so it needs no copy and no
+ * lock. Changes create new version, which replaces old one in
+ * {@link SessionMapEntry}.
+ * <p>
+ * New version copies parameters of old version. Session has only several
+ * parameters, so copy on change is cheaper than structure shared between
+ * versions, and reading stays one lookup in hash map.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public final class SessionAttributes {
+
+	/**
+	 * Version without parameters
+	 */
+	public static final SessionAttributes EMPTY = new SessionAttributes(0,
+			Collections.<String, String> emptyMap());
+
+	/**
+	 * Number of version, it is increased by each change
+	 */
+	private final long version;
+
+	/**
+	 * Unmodifiable parameters
+	 */
+	private final Map<String, String> parameters;
+
+	/**
+	 * Constructor
+	 *
+	 * @param version
+	 *            number of version
+	 * @param parameters
+	 *            parameters, map is not copied and must not be changed
+	 */
+	private SessionAttributes(long version, Map<String, String> parameters) {
+		this.version = version;
+		this.parameters = Collections.unmodifiableMap(parameters);
+	}
+
+	/**
+	 * Creates first version with provided parameters.
+	 *
+	 * @param parameters
+	 *            parameters, map is copied
+	 * @return first version
+	 */
+	public static SessionAttributes of(Map<String, String> parameters) {
+		if (parameters.isEmpty()) {
+			return EMPTY;
+		}
+		return new SessionAttributes(0, new HashMap<>(parameters));
+	}
+
+	/**
+	 * Returns number of version.
+	 *
+	 * @return version
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Returns parameter for provided name.
+	 *
+	 * @param name
+	 *            name of parameter
+	 * @return value, or null if parameter does not exist
+	 */
+	public String get(String name) {
+		return this.parameters.get(name);
+	}
+
+	/**
+	 * Returns names of parameters.
+	 *
+	 * @return unmodifiable set of names
+	 */
+	public Set<String> names() {
+		return this.parameters.keySet();
+	}
+
+	/**
+	 * Returns parameters as map.
+	 *
+	 * @return unmodifiable map of parameters
+	 */
+	public Map<String, String> asMap() {
+		return this.parameters;
+	}
+
+	/**
+	 * Creates next version with provided changes.
+	 *
+	 * @param changes
+	 *            new values of parameters, null value removes parameter
+	 * @return new version, or this version if changes do not change anything
+	 */
+	public SessionAttributes with(Map<String, String> changes) {
+		Map<String, String> next = null;
+		for (final Map.Entry<String, String> change : changes.entrySet()) {
+			final String name = change.getKey();
+			final String value = change.getValue();
+			final String current = next == null ? this.parameters.get(name)
+					: next.get(name);
+			// parameters have no null values, so null means missing
+			if (value == null ? current == null : value.equals(current)) {
+				continue;
+			}
+			if (next == null) {
+				next = new HashMap<>(this.parameters);
+			}
+			if (value == null) {
+				next.remove(name);
+			} else {
+				next.put(name, value);
+			}
+		}
+		return next == null ? this : new SessionAttributes(this.version + 1,
+				next);
+	}
+
+	/**
+	 * Returns parameters and version as text.
+	 */
+	@Override
+	public String toString() {
+		return "v" + this.version + this.parameters;
+	}
+}
@@ -0,0 +1,25 @@
+package hr.fer.zemris.java.webserver.session;
+
+/**
+ * Signals that changes of request cannot be committed to session, because
+ * other request changed parameter which was read by this request after this
+ * request started.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class SessionConflictException extends RuntimeException {
+
+	/** serialization id **/
+	private static final long serialVersionUID = -6052447826417139520L;
+
+	/**
+	 * Creates new SessionConflictException
+	 *
+	 * @param message
+	 *            error message
+	 */
+	public SessionConflictException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,172 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generator of unguessable session IDs. Random bytes come from
+ * {@link SecureRandom} and each byte gives one character from alphabet of 32
+ * characters, so ID of 32 characters has 160 random bits.
+ * <p>
+ * Generator has several stripes, each with its own random generator and
+ * buffer of random bytes for many IDs. Thread uses stripe selected by its ID,
+ * so threads rarely wait for each other and random generator is called only
+ * when buffer is used up. Stripes are used instead of thread local state,
+ * because with virtual threads each connection has new thread.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class SessionIdGenerator {
+
+	/**
+	 * Characters of ID. There are 32 of them, so byte is mapped to character
+	 * without bias.
+	 */
+	private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567"
+			.toCharArray();
+
+	/**
+	 * Default length of ID
+	 */
+	public static final int DEFAULT_LENGTH = 32;
+
+	/**
+	 * Number of IDs for which random bytes are generated at once
+	 */
+	private static final int BUFFERED_IDS = 64;
+
+	/**
+	 * Stripes of generator
+	 */
+	private final Stripe[] stripes;
+
+	/**
+	 * Mask which selects stripe from ID of thread
+	 */
+	private final int mask;
+
+	/**
+	 * Constructor of generator with default length of ID, and with number of
+	 * stripes that depends on number of processors.
+	 */
+	public SessionIdGenerator() {
+		this(DEFAULT_LENGTH, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param length
+	 *            length of ID
+	 * @param stripes
+	 *            number of stripes, it is rounded up to power of two
+	 * @throws IllegalArgumentException
+	 *             if length or number of stripes is not positive
+	 */
+	public SessionIdGenerator(int length, int stripes) {
+		if (length < 1 || stripes < 1) {
+			throw new IllegalArgumentException(
+					"Length of ID and number of stripes must be positive!");
+		}
+
+		int size = 1;
+		while (size < stripes) {
+			size <<= 1;
+		}
+		this.stripes = new Stripe[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new Stripe(length);
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Generates new session ID.
+	 *
+	 * @return ID made of upper-case letters and digits 2-7
+	 */
+	public String next() {
+		final long thread = Thread.currentThread().getId();
+		final int hash = (int) (thread ^ (thread >>> 32));
+		return this.stripes[(hash ^ (hash >>> 16)) & this.mask].next();
+	}
+
+	/**
+	 * Creates random generator with its own state. Default generator on Linux
+	 * reads operating system source through one lock shared by all
+	 * instances, so generator which only seeds from it is preferred.
+	 *
+	 * @return new random generator
+	 */
+	private static SecureRandom createRandom() {
+		for (final String algorithm : new String[] { "DRBG", "SHA1PRNG" }) {
+			try {
+				return SecureRandom.getInstance(algorithm);
+			} catch (final NoSuchAlgorithmException e) {
+				// next algorithm is tried
+			}
+		}
+		return new SecureRandom();
+	}
+
+	/**
+	 * Part of generator used by subset of threads.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	private static class Stripe {
+
+		/**
+		 * Random generator
+		 */
+		private final SecureRandom random = createRandom();
+
+		/**
+		 * Random bytes for next IDs
+		 */
+		private final byte[] entropy;
+
+		/**
+		 * Position of first unused byte in entropy buffer
+		 */
+		private int position;
+
+		/**
+		 * Buffer in which ID is encoded
+		 */
+		private final char[] id;
+
+		/**
+		 * Constructor
+		 *
+		 * @param length
+		 *            length of ID
+		 */
+		private Stripe(int length) {
+			this.entropy = new byte[length * BUFFERED_IDS];
+			this.position = this.entropy.length;
+			this.id = new char[length];
+		}
+
+		/**
+		 * Generates new ID from buffered random bytes.
+		 *
+		 * @return new ID
+		 */
+		private synchronized String next() {
+			if (this.position + this.id.length > this.entropy.length) {
+				this.random.nextBytes(this.entropy);
+				this.position = 0;
+			}
+			for (int i = 0; i < this.id.length; i++) {
+				this.id[i] = ALPHABET[this.entropy[this.position] & 0x1f];
+				// used byte is not kept in memory
+				this.entropy[this.position++] = 0;
+			}
+			return new String(this.id);
+		}
+	}
+}
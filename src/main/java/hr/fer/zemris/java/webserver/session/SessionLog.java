@@ -0,0 +1,390 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Session persistence in local append-only file. Each write appends records
+ * of sessions at end of file, so writing does not depend on number of
+ * sessions in file. Record is written with its length and checksum, so
+ * record which was not completely written when server stopped is detected
+ * and ignored. When file contains much more records than live sessions, it
+ * is rewritten with live sessions only.
+ * <p>
+ * Log cannot be written after it is closed. Channel which was closed because
+ * writing thread was interrupted is opened again by next write.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class SessionLog implements SessionPersistence {
+
+	/**
+	 * Beginning of file, which identifies format of file
+	 */
+	private static final int MAGIC = 0x534d5331;
+
+	/**
+	 * Minimal number of records in file before it is compacted
+	 */
+	private static final int MIN_COMPACT_RECORDS = 1024;
+
+	/**
+	 * Maximal length of one record, longer length means that file is
+	 * damaged
+	 */
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Path of file
+	 */
+	private final Path file;
+
+	/**
+	 * Channel to which records are appended, or null if it is not opened yet
+	 */
+	private FileChannel channel;
+
+	/**
+	 * Number of records in file
+	 */
+	private int records;
+
+	/**
+	 * Flag that signals if log is closed
+	 */
+	private boolean closed;
+
+	/**
+	 * Constructor. File is created on first write if it does not exist.
+	 *
+	 * @param file
+	 *            path of file
+	 * @throws IllegalArgumentException
+	 *             if path is null
+	 */
+	public SessionLog(Path file) {
+		if (file == null) {
+			throw new IllegalArgumentException("Path of file cannot be null!");
+		}
+		this.file = file;
+	}
+
+	/**
+	 * {@inheritDoc} Reading stops at first damaged record.
+	 */
+	@Override
+	public synchronized List<SessionMapEntry> load() throws IOException {
+		final Map<String, SessionMapEntry> sessions = new LinkedHashMap<>();
+		this.records = 0;
+		if (!Files.exists(this.file)) {
+			return new ArrayList<>();
+		}
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(Files.newInputStream(this.file)))) {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Unknown format of session file: "
+						+ this.file);
+			}
+			SessionMapEntry session;
+			while ((session = readRecord(in)) != null) {
+				sessions.put(session.getSid(), session);
+				this.records++;
+			}
+		} catch (final EOFException e) {
+			// file without header is empty
+		}
+		return new ArrayList<>(sessions.values());
+	}
+
+	/**
+	 * Reads one record.
+	 *
+	 * @param in
+	 *            stream of file
+	 * @return session from record, or null if file ends or record is damaged
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private static SessionMapEntry readRecord(DataInputStream in)
+			throws IOException {
+		final byte[] data;
+		final int checksum;
+		try {
+			final int length = in.readInt();
+			if (length < 0 || length > MAX_RECORD_SIZE) {
+				return null;
+			}
+			data = new byte[length];
+			in.readFully(data);
+			checksum = in.readInt();
+		} catch (final EOFException e) {
+			return null;
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		if ((int) crc.getValue() != checksum) {
+			return null;
+		}
+
+		final DataInputStream record = new DataInputStream(
+				new ByteArrayInputStream(data));
+		final String sid = readString(record);
+		final long validUntil = record.readLong();
+		final int count = record.readInt();
+		final Map<String, String> parameters = new HashMap<>();
+		for (int i = 0; i < count; i++) {
+			parameters.put(readString(record), readString(record));
+		}
+		return new SessionMapEntry(sid, validUntil, parameters);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws IOException
+	 *             also if log is closed
+	 */
+	@Override
+	public synchronized void write(Collection<SessionMapEntry> sessions)
+			throws IOException {
+		checkOpen();
+		if (sessions.isEmpty()) {
+			return;
+		}
+		if (this.channel == null || !this.channel.isOpen()) {
+			this.channel = open();
+		}
+		writeRecords(this.channel, sessions);
+		this.channel.force(false);
+		this.records += sessions.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized boolean shouldCompact(int liveSessions) {
+		return this.records > Math.max(MIN_COMPACT_RECORDS, 2 * liveSessions);
+	}
+
+	/**
+	 * {@inheritDoc} Sessions are written to temporary file, which then
+	 * replaces old file, so old file is valid until new file is complete.
+	 *
+	 * @throws IOException
+	 *             also if log is closed
+	 */
+	@Override
+	public synchronized void compact(Collection<SessionMapEntry> sessions)
+			throws IOException {
+		checkOpen();
+		createDirectories();
+		final Path temporary = this.file.resolveSibling(this.file
+				.getFileName() + ".tmp");
+		try (FileChannel out = FileChannel.open(temporary,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeHeader(out);
+			writeRecords(out, sessions);
+			out.force(true);
+		}
+
+		closeChannel();
+		try {
+			Files.move(temporary, this.file,
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			Files.move(temporary, this.file,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.records = sessions.size();
+	}
+
+	/**
+	 * {@inheritDoc} Later writes throw exception.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		this.closed = true;
+		closeChannel();
+	}
+
+	/**
+	 * Closes channel of file, if it is opened.
+	 *
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private void closeChannel() throws IOException {
+		if (this.channel != null) {
+			this.channel.close();
+			this.channel = null;
+		}
+	}
+
+	/**
+	 * Checks that log is not closed.
+	 *
+	 * @throws IOException
+	 *             if log is closed
+	 */
+	private void checkOpen() throws IOException {
+		if (this.closed) {
+			throw new IOException("Session log is closed: " + this.file);
+		}
+	}
+
+	/**
+	 * Opens file for appending. New file gets header.
+	 *
+	 * @return channel positioned at end of file
+	 * @throws IOException
+	 *             if file cannot be opened
+	 */
+	private FileChannel open() throws IOException {
+		createDirectories();
+		final FileChannel channel = FileChannel.open(this.file,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (channel.size() == 0) {
+			writeHeader(channel);
+		}
+		channel.position(channel.size());
+		return channel;
+	}
+
+	/**
+	 * Creates directory of file if it does not exist.
+	 *
+	 * @throws IOException
+	 *             if directory cannot be created
+	 */
+	private void createDirectories() throws IOException {
+		final Path parent = this.file.toAbsolutePath().getParent();
+		if (parent != null) {
+			Files.createDirectories(parent);
+		}
+	}
+
+	/**
+	 * Writes header of file.
+	 *
+	 * @param channel
+	 *            channel of empty file
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private static void writeHeader(FileChannel channel) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(4).putInt(MAGIC);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+	}
+
+	/**
+	 * Writes records of sessions in one batch.
+	 *
+	 * @param channel
+	 *            channel of file
+	 * @param sessions
+	 *            sessions to write
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private static void writeRecords(FileChannel channel,
+			Collection<SessionMapEntry> sessions) throws IOException {
+		final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(batch);
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		final DataOutputStream record = new DataOutputStream(data);
+		final CRC32 crc = new CRC32();
+
+		for (final SessionMapEntry session : sessions) {
+			data.reset();
+			writeString(record, session.getSid());
+			record.writeLong(session.getValidUntil());
+			// version of parameters does not change while it is written
+			final Map<String, String> parameters = session.getAttributes()
+					.asMap();
+			record.writeInt(parameters.size());
+			for (final Map.Entry<String, String> entry : parameters.entrySet()) {
+				writeString(record, entry.getKey());
+				writeString(record, entry.getValue());
+			}
+
+			crc.reset();
+			crc.update(data.toByteArray(), 0, data.size());
+			out.writeInt(data.size());
+			data.writeTo(out);
+			out.writeInt((int) crc.getValue());
+		}
+
+		out.flush();
+		Channels.newOutputStream(channel).write(batch.toByteArray());
+	}
+
+	/**
+	 * Writes string as length and UTF-8 bytes.
+	 *
+	 * @param out
+	 *            stream
+	 * @param text
+	 *            string
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private static void writeString(DataOutputStream out, String text)
+			throws IOException {
+		final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads string written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param in
+	 *            stream
+	 * @return string
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns short description of log.
+	 */
+	@Override
+	public synchronized String toString() {
+		return "file=" + this.file + ", records=" + this.records;
+	}
+}
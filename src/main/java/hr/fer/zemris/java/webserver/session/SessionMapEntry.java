@@ -0,0 +1,223 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session for server and client.
+ * 
+ * @author Nikola Sekulić
+ * 
+ */
+public class SessionMapEntry {
+	/**
+	 * Identifier of session
+	 */
+	private final String sid;
+
+	/**
+	 * Time after which session is outdated. It is changed on every request
+	 * without locking, so it is volatile.
+	 */
+	private volatile long validUntil;
+
+	/**
+	 * Current version of stored parameters of session.
+	 */
+	private final AtomicReference<SessionAttributes> attributes;
+
+	/**
+	 * Time after which session is outdated, as it was when session was last
+	 * written to persistent storage
+	 */
+	private volatile long writtenUntil;
+
+	/**
+	 * Lock which orders requests that change parameters
+	 */
+	private final ReentrantLock writers = new ReentrantLock();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param sid
+	 *            ID of session
+	 * @param validUntil
+	 *            vaid time
+	 * @param parameters
+	 *            parameters of session.
+	 */
+	public SessionMapEntry(String sid, long validUntil,
+			Map<String, String> parameters) {
+		this.sid = sid;
+		this.validUntil = validUntil;
+		this.attributes = new AtomicReference<>(
+				SessionAttributes.of(parameters));
+	}
+
+	/**
+	 * Returns identifier of session.
+	 * 
+	 * @return ID of session
+	 */
+	public String getSid() {
+		return this.sid;
+	}
+
+	/**
+	 * Returns time after which session is outdated.
+	 * 
+	 * @return time in milliseconds
+	 */
+	public long getValidUntil() {
+		return this.validUntil;
+	}
+
+	/**
+	 * Extends lifetime of session.
+	 * 
+	 * @param validUntil
+	 *            new time after which session is outdated, in milliseconds
+	 */
+	public void setValidUntil(long validUntil) {
+		this.validUntil = validUntil;
+	}
+
+	/**
+	 * Returns time after which session is outdated, as it was when session
+	 * was last written to persistent storage.
+	 * 
+	 * @return time in milliseconds, 0 if session was never written
+	 */
+	public long getWrittenUntil() {
+		return this.writtenUntil;
+	}
+
+	/**
+	 * Remembers time after which session is outdated, as it is written to
+	 * persistent storage.
+	 * 
+	 * @param writtenUntil
+	 *            time in milliseconds
+	 */
+	public void setWrittenUntil(long writtenUntil) {
+		this.writtenUntil = writtenUntil;
+	}
+
+	/**
+	 * Checks if session is outdated.
+	 * 
+	 * @param now
+	 *            current time in milliseconds
+	 * @return true if session is outdated
+	 */
+	public boolean isExpired(long now) {
+		return this.validUntil < now;
+	}
+
+	/**
+	 * Returns current version of stored parameters of session. Returned
+	 * version does not change, so it can be read while parameters are
+	 * changed by other requests.
+	 * 
+	 * @return current parameters
+	 */
+	public SessionAttributes getAttributes() {
+		return this.attributes.get();
+	}
+
+	/**
+	 * Applies changes of parameters to current version. Request reads
+	 * parameters from version which was current when it started. If other
+	 * request changed parameters in the meantime, changes are applied to its
+	 * version only if none of parameters read by this request has different
+	 * value there. Otherwise, changes would be based on old values, for
+	 * example two requests which increase same counter would both store same
+	 * value, so changes are discarded and exception is thrown.
+	 * <p>
+	 * Parameter which is changed, but not read, is not checked, so for such
+	 * parameters last committed value wins. Requests which must not lose
+	 * changes take session with {@link #lock()} before they read parameters.
+	 * </p>
+	 * 
+	 * @param base
+	 *            version from which request read parameters
+	 * @param read
+	 *            names of parameters read by request, or null if request read
+	 *            all names
+	 * @param changes
+	 *            new values of parameters, null value removes parameter
+	 * @return true if parameters are changed
+	 * @throws SessionConflictException
+	 *             if other request changed parameter read by this request
+	 */
+	public boolean commit(SessionAttributes base, Set<String> read,
+			Map<String, String> changes) {
+		if (changes.isEmpty()) {
+			return false;
+		}
+		while (true) {
+			final SessionAttributes current = this.attributes.get();
+			final String changed = current.getVersion() == base.getVersion() ? null
+					: changed(base, current, read);
+			if (changed != null) {
+				throw new SessionConflictException(changed
+						+ " changed by other request");
+			}
+			final SessionAttributes next = current.with(changes);
+			if (next == current) {
+				return false;
+			}
+			if (this.attributes.compareAndSet(current, next)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Finds read parameter which has different value in newer version.
+	 * 
+	 * @param base
+	 *            version from which parameters were read
+	 * @param current
+	 *            newer version
+	 * @param read
+	 *            names of read parameters, or null if all names were read
+	 * @return description of changed parameter, or null if read parameters
+	 *         are not changed
+	 */
+	private static String changed(SessionAttributes base,
+			SessionAttributes current, Set<String> read) {
+		if (read == null) {
+			return base.asMap().equals(current.asMap()) ? null
+					: "Parameters were";
+		}
+		for (final String name : read) {
+			if (!Objects.equals(base.get(name), current.get(name))) {
+				return "Parameter " + name + " was";
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Waits until no other request which changes parameters holds session.
+	 * Request which is known to change parameters takes session before it
+	 * reads them, so requests of same client are executed one after another
+	 * and none of them commits changes based on old values. Lock is
+	 * reentrant and must be released by {@link #unlock()}.
+	 */
+	public void lock() {
+		this.writers.lock();
+	}
+
+	/**
+	 * Releases session taken by {@link #lock()}.
+	 */
+	public void unlock() {
+		this.writers.unlock();
+	}
+}
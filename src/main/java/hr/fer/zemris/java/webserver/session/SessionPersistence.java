@@ -0,0 +1,60 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Storage in which sessions are kept while server is not running.
+ * {@link SessionStore} writes changed sessions to it in batches, from its
+ * own thread, and loads them when server starts. Each write contains whole
+ * session, and session written later replaces session with same ID written
+ * before.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public interface SessionPersistence extends Closeable {
+
+	/**
+	 * Loads sessions from storage. If same session was written more times,
+	 * only last version is returned.
+	 *
+	 * @return sessions from storage, including outdated sessions
+	 * @throws IOException
+	 *             if storage cannot be read
+	 */
+	public List<SessionMapEntry> load() throws IOException;
+
+	/**
+	 * Writes current state of sessions to storage.
+	 *
+	 * @param sessions
+	 *            changed sessions
+	 * @throws IOException
+	 *             if sessions cannot be written
+	 */
+	public void write(Collection<SessionMapEntry> sessions) throws IOException;
+
+	/**
+	 * Checks if storage contains much more data than live sessions, so it
+	 * should be compacted.
+	 *
+	 * @param liveSessions
+	 *            number of sessions in store
+	 * @return true if storage should be compacted
+	 */
+	public boolean shouldCompact(int liveSessions);
+
+	/**
+	 * Replaces content of storage with provided sessions.
+	 *
+	 * @param sessions
+	 *            all live sessions
+	 * @throws IOException
+	 *             if sessions cannot be written
+	 */
+	public void compact(Collection<SessionMapEntry> sessions)
+			throws IOException;
+}
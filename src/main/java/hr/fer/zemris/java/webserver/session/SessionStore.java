@@ -0,0 +1,420 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class SessionStore keeps sessions of server. Sessions are divided into
+ * shards by their ID, and each shard has index of sessions by time when they
+ * expire, so expired sessions are found without checking all sessions.
+ * <p>
+ * Session is put into index once, by time when it expires at that moment.
+ * When session is used, only its time of expiration is changed, without
+ * locking. When time from index comes, session which was used in the meantime
+ * is put into index again by its new time, and other sessions are removed.
+ * So eviction checks only sessions whose time from index has passed.
+ * </p>
+ * <p>
+ * If store has {@link SessionPersistence}, changed sessions are only marked
+ * on request path, and they are written in batches by {@link #flush()}, which
+ * is called periodically from background thread.
+ * </p>
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class SessionStore {
+
+	/**
+	 * Length of one interval of expiration index in milliseconds. Sessions
+	 * which expire in same interval are kept together.
+	 */
+	private static final long BUCKET_MILLIS = 1000;
+
+	/**
+	 * Session whose lifetime was extended by this number of milliseconds
+	 * since it was written is written again, so it does not expire too soon
+	 * after restart.
+	 */
+	private static final long TOUCH_WRITE_MILLIS = 60 * 1000;
+
+	/**
+	 * Shards of sessions
+	 */
+	private final Shard[] shards;
+
+	/**
+	 * Mask which selects shard from hash of ID
+	 */
+	private final int mask;
+
+	/**
+	 * Number of evicted sessions
+	 */
+	private final AtomicLong evicted = new AtomicLong();
+
+	/**
+	 * Storage of sessions, or null if sessions are kept only in memory
+	 */
+	private final SessionPersistence persistence;
+
+	/**
+	 * Sessions changed since last write to storage
+	 */
+	private final Set<SessionMapEntry> dirty = Collections
+			.newSetFromMap(new ConcurrentHashMap<SessionMapEntry, Boolean>());
+
+	/**
+	 * Number of sessions written to storage
+	 */
+	private final AtomicLong written = new AtomicLong();
+
+	/**
+	 * Constructor of store which keeps sessions only in memory.
+	 *
+	 * @param shards
+	 *            number of shards, it is rounded up to power of two
+	 * @throws IllegalArgumentException
+	 *             if number of shards is not positive
+	 */
+	public SessionStore(int shards) {
+		this(shards, null);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param shards
+	 *            number of shards, it is rounded up to power of two
+	 * @param persistence
+	 *            storage of sessions, or null
+	 * @throws IllegalArgumentException
+	 *             if number of shards is not positive
+	 */
+	public SessionStore(int shards, SessionPersistence persistence) {
+		if (shards < 1) {
+			throw new IllegalArgumentException(
+					"Number of shards must be positive!");
+		}
+
+		int size = 1;
+		while (size < shards) {
+			size <<= 1;
+		}
+		this.shards = new Shard[size];
+		for (int i = 0; i < size; i++) {
+			this.shards[i] = new Shard();
+		}
+		this.mask = size - 1;
+		this.persistence = persistence;
+	}
+
+	/**
+	 * Loads sessions from storage. Outdated sessions are skipped, and
+	 * storage is compacted, so it contains only loaded sessions.
+	 *
+	 * @param now
+	 *            current time in milliseconds
+	 * @return number of loaded sessions
+	 * @throws IOException
+	 *             if storage cannot be read or written
+	 */
+	public int recover(long now) throws IOException {
+		if (this.persistence == null) {
+			return 0;
+		}
+
+		final List<SessionMapEntry> live = new ArrayList<>();
+		for (final SessionMapEntry session : this.persistence.load()) {
+			if (!session.isExpired(now)) {
+				session.setWrittenUntil(session.getValidUntil());
+				final Shard shard = shard(session.getSid());
+				shard.sessions.put(session.getSid(), session);
+				shard.index(session);
+				live.add(session);
+			}
+		}
+		this.persistence.compact(live);
+		return live.size();
+	}
+
+	/**
+	 * Returns shard which contains session with provided ID.
+	 *
+	 * @param sid
+	 *            ID of session
+	 * @return shard of session
+	 */
+	private Shard shard(String sid) {
+		final int hash = sid.hashCode();
+		return this.shards[(hash ^ (hash >>> 16)) & this.mask];
+	}
+
+	/**
+	 * Returns session with provided ID. Outdated session is removed.
+	 *
+	 * @param sid
+	 *            ID of session
+	 * @param now
+	 *            current time in milliseconds
+	 * @return session, or null if it does not exist or it is outdated
+	 */
+	public SessionMapEntry get(String sid, long now) {
+		final Shard shard = shard(sid);
+		final SessionMapEntry session = shard.sessions.get(sid);
+		if (session == null) {
+			return null;
+		}
+		if (session.isExpired(now)) {
+			if (shard.sessions.remove(sid, session)) {
+				this.evicted.incrementAndGet();
+			}
+			return null;
+		}
+		return session;
+	}
+
+	/**
+	 * Adds session to store. Session with same ID is replaced.
+	 *
+	 * @param session
+	 *            new session
+	 */
+	public void put(SessionMapEntry session) {
+		final Shard shard = shard(session.getSid());
+		shard.sessions.put(session.getSid(), session);
+		shard.index(session);
+		markDirty(session);
+	}
+
+	/**
+	 * Extends lifetime of session. Session is written to storage again only
+	 * if its lifetime was extended a lot since last write.
+	 *
+	 * @param session
+	 *            session
+	 * @param validUntil
+	 *            new time after which session is outdated, in milliseconds
+	 */
+	public void touch(SessionMapEntry session, long validUntil) {
+		session.setValidUntil(validUntil);
+		if (validUntil - session.getWrittenUntil() >= TOUCH_WRITE_MILLIS) {
+			markDirty(session);
+		}
+	}
+
+	/**
+	 * Marks session whose parameters are changed, so it is written to
+	 * storage by next {@link #flush()}.
+	 *
+	 * @param session
+	 *            changed session
+	 */
+	public void markDirty(SessionMapEntry session) {
+		if (this.persistence != null) {
+			this.dirty.add(session);
+		}
+	}
+
+	/**
+	 * Writes changed sessions to storage in one batch. Sessions which were
+	 * removed in the meantime are not written. If storage has too many old
+	 * records, it is compacted.
+	 *
+	 * @throws IOException
+	 *             if sessions cannot be written. They stay marked, so they
+	 *             are written by next call.
+	 */
+	public void flush() throws IOException {
+		if (this.persistence == null) {
+			return;
+		}
+
+		final List<SessionMapEntry> batch = new ArrayList<>();
+		final Iterator<SessionMapEntry> iterator = this.dirty.iterator();
+		while (iterator.hasNext()) {
+			final SessionMapEntry session = iterator.next();
+			iterator.remove();
+			if (shard(session.getSid()).sessions.get(session.getSid()) == session) {
+				batch.add(session);
+			}
+		}
+
+		try {
+			final int size = size();
+			if (this.persistence.shouldCompact(size)) {
+				final List<SessionMapEntry> live = new ArrayList<>(size);
+				for (final Shard shard : this.shards) {
+					live.addAll(shard.sessions.values());
+				}
+				markWritten(live);
+				this.persistence.compact(live);
+			} else if (!batch.isEmpty()) {
+				markWritten(batch);
+				this.persistence.write(batch);
+			}
+		} catch (final IOException e) {
+			this.dirty.addAll(batch);
+			throw e;
+		}
+		this.written.addAndGet(batch.size());
+	}
+
+	/**
+	 * Remembers lifetime of sessions which are written to storage.
+	 *
+	 * @param sessions
+	 *            sessions which are written
+	 */
+	private static void markWritten(List<SessionMapEntry> sessions) {
+		for (final SessionMapEntry session : sessions) {
+			session.setWrittenUntil(session.getValidUntil());
+		}
+	}
+
+	/**
+	 * Writes all changed sessions and closes storage.
+	 *
+	 * @throws IOException
+	 *             if sessions cannot be written
+	 */
+	public void close() throws IOException {
+		if (this.persistence == null) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			this.persistence.close();
+		}
+	}
+
+	/**
+	 * Removes session from store.
+	 *
+	 * @param sid
+	 *            ID of session
+	 * @return removed session, or null if it did not exist
+	 */
+	public SessionMapEntry remove(String sid) {
+		return shard(sid).sessions.remove(sid);
+	}
+
+	/**
+	 * Removes sessions which are outdated. Only sessions whose time in index
+	 * has passed are checked.
+	 *
+	 * @param now
+	 *            current time in milliseconds
+	 * @return number of removed sessions
+	 */
+	public int evictExpired(long now) {
+		int removed = 0;
+		for (final Shard shard : this.shards) {
+			for (final SessionMapEntry session : shard.pollDue(now)) {
+				if (shard.sessions.get(session.getSid()) != session) {
+					// session was removed or replaced
+					continue;
+				}
+				if (session.isExpired(now)) {
+					if (shard.sessions.remove(session.getSid(), session)) {
+						removed++;
+					}
+				} else {
+					shard.index(session);
+				}
+			}
+		}
+		this.evicted.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * Returns number of sessions in store, including outdated sessions which
+	 * are not evicted yet.
+	 *
+	 * @return number of sessions
+	 */
+	public int size() {
+		int size = 0;
+		for (final Shard shard : this.shards) {
+			size += shard.sessions.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns short description of store.
+	 */
+	@Override
+	public String toString() {
+		String description = "size=" + size() + ", shards="
+				+ this.shards.length + ", evicted=" + this.evicted.get();
+		if (this.persistence != null) {
+			description += ", written=" + this.written.get() + ", dirty="
+					+ this.dirty.size() + ", " + this.persistence;
+		}
+		return description;
+	}
+
+	/**
+	 * Part of store with its own sessions and expiration index.
+	 *
+	 * @author Nikola Sekulić
+	 *
+	 */
+	private static class Shard {
+
+		/**
+		 * Sessions by ID
+		 */
+		private final Map<String, SessionMapEntry> sessions = new ConcurrentHashMap<>();
+
+		/**
+		 * Sessions by interval in which they expire. Session can be in index
+		 * with older time of expiration than its current time.
+		 */
+		private final TreeMap<Long, List<SessionMapEntry>> expiry = new TreeMap<>();
+
+		/**
+		 * Puts session into index by its current time of expiration.
+		 *
+		 * @param session
+		 *            session
+		 */
+		private synchronized void index(SessionMapEntry session) {
+			// session is checked at end of interval in which it expires
+			final long bucket = session.getValidUntil() / BUCKET_MILLIS + 1;
+			List<SessionMapEntry> list = this.expiry.get(bucket);
+			if (list == null) {
+				list = new ArrayList<>();
+				this.expiry.put(bucket, list);
+			}
+			list.add(session);
+		}
+
+		/**
+		 * Removes from index sessions whose time of expiration has passed.
+		 *
+		 * @param now
+		 *            current time in milliseconds
+		 * @return sessions which should be checked
+		 */
+		private synchronized List<SessionMapEntry> pollDue(long now) {
+			final long bucket = now / BUCKET_MILLIS;
+			final List<SessionMapEntry> due = new ArrayList<>();
+			while (!this.expiry.isEmpty() && this.expiry.firstKey() <= bucket) {
+				due.addAll(this.expiry.pollFirstEntry().getValue());
+			}
+			return due;
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * IWebWorker UploadInfo reads body of POST or PUT request and sends its
+ * length and CRC32 checksum to client as plain text. Body is read in small
+ * blocks, so uploads of any size are processed without keeping them in
+ * memory.
+ *
+ * @author Nikola Sekulić
+ *
+ */
+public class UploadInfo implements IWebWorker {
+
+	/**
+	 * Size of block in which body is read
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void processRequest(RequestContext context) {
+		context.setMimeType("text/plain");
+
+		final CRC32 crc = new CRC32();
+		long length = 0;
+		final byte[] buffer = new byte[BUFFER_SIZE];
+
+		try (InputStream body = context.getBody()) {
+			int read;
+			while ((read = body.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+				length += read;
+			}
+		} catch (final IOException e) {
+			context.setStatusCode(400);
+			context.setStatusText("INVALID REQUEST");
+			try {
+				context.write("Cannot read body: " + e.getMessage());
+			} catch (final IOException e1) {
+			}
+			return;
+		}
+
+		try {
+			context.write("method: " + context.getMethod() + "\r\nlength: "
+					+ length + "\r\ncrc32: "
+					+ Long.toHexString(crc.getValue()) + "\r\n");
+		} catch (final IOException e) {
+		}
+	}
+
+}
@@ -1,14 +1,26 @@
 package hr.fer.zemris.java.webserver;
 
 import hr.fer.zemris.java.webserver.RequestContext.RCCookie;
+import hr.fer.zemris.java.webserver.http.Compression;
+import hr.fer.zemris.java.webserver.http.TextEncoder;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Test;
 
@@ -368,4 +380,424 @@ public class RequestContextTest {
 		}
 	}
 
+	@Test
+	public void testKeepAliveWithContentLength() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setMimeType("image/png");
+		rc.setContentLength(3l);
+		rc.setKeepAlive(true);
+
+		rc.write(new byte[] { 'a', 'b', 'c' });
+		rc.finish();
+
+		String expected = "HTTP/1.1 200 OK\r\n" + "Content-Type: image/png\r\n"
+				+ "Content-Length: 3\r\n" + "Connection: keep-alive\r\n"
+				+ "\r\n" + "abc";
+
+		assertEquals(expected,
+				new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+		assertTrue(rc.isKeepAlive());
+	}
+
+	@Test
+	public void testKeepAliveWithoutContentLengthClosesConnection()
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setMimeType("image/png");
+		rc.setKeepAlive(true);
+
+		rc.write(new byte[] { 'a' });
+		rc.finish();
+
+		String actual = new String(baos.toByteArray(),
+				StandardCharsets.US_ASCII);
+		assertTrue(actual.contains("Connection: close\r\n"));
+		assertFalse(rc.isKeepAlive());
+	}
+
+	@Test
+	public void testFinishWithoutDataSendsEmptyResponse() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setMimeType("image/png");
+		rc.setKeepAlive(true);
+
+		rc.finish();
+
+		String expected = "HTTP/1.1 200 OK\r\n" + "Content-Type: image/png\r\n"
+				+ "Content-Length: 0\r\n" + "Connection: keep-alive\r\n"
+				+ "\r\n";
+
+		assertEquals(expected,
+				new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+		assertTrue(rc.isKeepAlive());
+	}
+
+	@Test
+	public void testIncompleteBodyClosesConnection() throws IOException {
+		RequestContext rc = new RequestContext(new ByteArrayOutputStream(),
+				null, null, null);
+		rc.setContentLength(10l);
+		rc.setKeepAlive(true);
+
+		rc.write(new byte[] { 1, 2, 3 });
+		rc.finish();
+
+		assertFalse(rc.isKeepAlive());
+	}
+
+	@Test
+	public void testChunkedResponse() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setMimeType("text/plain");
+		rc.setKeepAlive(true);
+		rc.setChunkedAllowed(true);
+		rc.setChunkBufferSize(4);
+
+		rc.write("abc").write("de").write("0123456789");
+		rc.finish();
+
+		String expected = "HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/plain; charset=UTF-8\r\n"
+				+ "Transfer-Encoding: chunked\r\n"
+				+ "Connection: keep-alive\r\n" + "\r\n" + "3\r\nabc\r\n"
+				+ "2\r\nde\r\n" + "a\r\n0123456789\r\n" + "0\r\n\r\n";
+
+		assertEquals(expected,
+				new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+		assertTrue(rc.isKeepAlive());
+	}
+
+	@Test
+	public void testContentLengthPreferredOverChunked() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setMimeType("image/png");
+		rc.setChunkedAllowed(true);
+		rc.setContentLength(2l);
+
+		rc.write(new byte[] { 'a', 'b' });
+		rc.finish();
+
+		String expected = "HTTP/1.1 200 OK\r\n" + "Content-Type: image/png\r\n"
+				+ "Content-Length: 2\r\n" + "\r\n" + "ab";
+
+		assertEquals(expected,
+				new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void testWriteFileThroughChannel() throws IOException {
+		Path file = Files.createTempFile("rc", ".txt");
+		try {
+			Files.write(file, "0123456789".getBytes(StandardCharsets.US_ASCII));
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			RequestContext rc = new RequestContext(baos, null, null, null);
+			rc.setOutputChannel(Channels.newChannel(baos));
+			rc.setMimeType("image/png");
+			rc.setContentLength(4l);
+
+			try (FileChannel channel = FileChannel.open(file)) {
+				rc.write(channel, 3, 4);
+			}
+
+			String expected = "HTTP/1.1 200 OK\r\n"
+					+ "Content-Type: image/png\r\n" + "Content-Length: 4\r\n"
+					+ "\r\n" + "3456";
+			assertEquals(expected,
+					new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testWriteFileToChunkedBody() throws IOException {
+		Path file = Files.createTempFile("rc", ".txt");
+		try {
+			Files.write(file, "0123456789".getBytes(StandardCharsets.US_ASCII));
+
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			RequestContext rc = new RequestContext(baos, null, null, null);
+			rc.setOutputChannel(Channels.newChannel(baos));
+			rc.setMimeType("image/png");
+			rc.setChunkedAllowed(true);
+
+			try (FileChannel channel = FileChannel.open(file)) {
+				rc.write(channel, 0, 10);
+			}
+			rc.finish();
+
+			String actual = new String(baos.toByteArray(),
+					StandardCharsets.US_ASCII);
+			assertTrue(actual.endsWith("\r\n\r\na\r\n0123456789\r\n0\r\n\r\n"));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testWriteBufferWithHeaderPrefix() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setMimeType("image/png");
+		rc.setContentLength(3l);
+		rc.setHeaderPrefix(("HTTP/1.1 200 OK\r\n" + "Content-Type: image/png\r\n"
+				+ "Content-Length: 3\r\n").getBytes(StandardCharsets.US_ASCII));
+		rc.addRCCookie(new RCCookie("name", "value", null, null, null));
+
+		ByteBuffer data = ByteBuffer.wrap(new byte[] { 'a', 'b', 'c' });
+		rc.write(data);
+
+		String expected = "HTTP/1.1 200 OK\r\n" + "Content-Type: image/png\r\n"
+				+ "Content-Length: 3\r\n"
+				+ "Set-Cookie: name=\"value\"; HttpOnly\r\n" + "\r\n" + "abc";
+		assertEquals(expected,
+				new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+		assertEquals("Position of buffer is not changed", 0, data.position());
+	}
+
+	@Test
+	public void testNotModifiedHasNoBody() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setMimeType("image/png");
+		rc.setStatusCode(304);
+		rc.setStatusText("Not Modified");
+		rc.setKeepAlive(true);
+		rc.setChunkedAllowed(true);
+		rc.addHeader("ETag", "\"1-2\"");
+
+		rc.finish();
+
+		String expected = "HTTP/1.1 304 Not Modified\r\n"
+				+ "Content-Type: image/png\r\n" + "ETag: \"1-2\"\r\n"
+				+ "Connection: keep-alive\r\n" + "\r\n";
+		assertEquals(expected,
+				new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+		assertTrue(rc.isKeepAlive());
+	}
+
+	@Test
+	public void testShortBodyIsNotCompressed() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setChunkedAllowed(true);
+		rc.setCompression(new Compression(100, Collections.singleton("text/*")),
+				Compression.GZIP);
+
+		rc.write("short");
+		rc.finish();
+
+		String expected = "HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/html; charset=UTF-8\r\n"
+				+ "Content-Length: 5\r\n" + "Vary: Accept-Encoding\r\n"
+				+ "\r\n" + "short";
+		assertEquals(expected,
+				new String(baos.toByteArray(), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void testLongBodyIsCompressed() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setChunkedAllowed(true);
+		rc.setCompression(new Compression(100, Collections.singleton("text/*")),
+				Compression.GZIP);
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			text.append("line ").append(i).append("\r\n");
+		}
+		rc.write(text.substring(0, 50));
+		rc.write(text.substring(50));
+		rc.finish();
+
+		byte[] response = baos.toByteArray();
+		String header = "HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/html; charset=UTF-8\r\n"
+				+ "Transfer-Encoding: chunked\r\n"
+				+ "Content-Encoding: gzip\r\n" + "Vary: Accept-Encoding\r\n"
+				+ "\r\n";
+		assertTrue(new String(response, StandardCharsets.US_ASCII)
+				.startsWith(header));
+
+		// decode chunks and decompress body
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int position = header.length();
+		while (true) {
+			int end = position;
+			while (response[end] != '\r') {
+				end++;
+			}
+			int size = Integer.parseInt(new String(response, position, end
+					- position, StandardCharsets.US_ASCII), 16);
+			if (size == 0) {
+				break;
+			}
+			body.write(response, end + 2, size);
+			position = end + 2 + size + 2;
+		}
+
+		ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+		try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(
+				body.toByteArray()))) {
+			byte[] buffer = new byte[1024];
+			int bytes;
+			while ((bytes = in.read(buffer)) != -1) {
+				decompressed.write(buffer, 0, bytes);
+			}
+		}
+		assertEquals(text.toString(), new String(decompressed.toByteArray(),
+				StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testSessionStarterAddsCookie() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final RequestContext rc = new RequestContext(baos, null, null, null);
+		final int[] started = new int[1];
+		rc.setSessionStarter(() -> {
+			started[0]++;
+			rc.addRCCookie(new RCCookie("sid", "sid", null, null, "/"));
+		});
+
+		rc.setPersistentParameter("a", "1");
+		rc.setPersistentParameter("b", "2");
+		rc.write("x");
+
+		assertEquals(1, started[0]);
+		String expected = "HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: text/html; charset=UTF-8\r\n"
+				+ "Set-Cookie: sid=\"sid\"; Path=/; HttpOnly\r\n" + "\r\n"
+				+ "x";
+		assertEquals(expected, new String(baos.toByteArray(),
+				StandardCharsets.ISO_8859_1));
+	}
+
+	@Test
+	public void testSessionCannotStartAfterHeader() throws IOException {
+		RequestContext rc = new RequestContext(new ByteArrayOutputStream(),
+				null, null, null);
+		rc.setSessionStarter(() -> {
+		});
+		assertFalse(rc.isHeaderGenerated());
+		rc.write("x");
+		assertTrue(rc.isHeaderGenerated());
+		try {
+			rc.setPersistentParameter("a", "1");
+			fail("Session cannot be started after header is generated");
+		} catch (RuntimeException e) {
+			assertEquals("Cannot start session after header is generated",
+					e.getMessage());
+		}
+		assertTrue(rc.getPersistentParameterChanges().isEmpty());
+	}
+
+	@Test
+	public void testSessionStartsBeforeHeader() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setSessionStarter(() -> rc.addRCCookie(new RCCookie("sid", "1",
+				null, null, "/")));
+		rc.setPersistentParameter("a", "1");
+		rc.write("x");
+		// started session is not started again
+		rc.setPersistentParameter("b", "2");
+
+		assertTrue(new String(baos.toByteArray(), StandardCharsets.ISO_8859_1)
+				.contains("Set-Cookie: sid=\"1\""));
+		assertEquals(2, rc.getPersistentParameterChanges().size());
+	}
+
+	@Test
+	public void testPersistentParameterChanges() {
+		Map<String, String> session = new HashMap<>();
+		session.put("a", "1");
+		session.put("b", "2");
+		RequestContext rc = new RequestContext(new ByteArrayOutputStream(),
+				null, null, null);
+		rc.setPersistentParameters(Collections.unmodifiableMap(session));
+
+		assertTrue(rc.getPersistentParameterChanges().isEmpty());
+		rc.setPersistentParameter("a", "3");
+		rc.removePersistentParameter("b");
+		rc.removePersistentParameter("c");
+
+		assertEquals("3", rc.getPersistentParameter("a"));
+		assertNull(rc.getPersistentParameter("b"));
+		assertEquals(Collections.singleton("a"),
+				rc.getPersistentParameterNames());
+		assertEquals(2, rc.getPersistentParameterChanges().size());
+		assertNull(rc.getPersistentParameterChanges().get("b"));
+		assertEquals("2", session.get("b"));
+	}
+
+	@Test
+	public void testPersistentParameterReads() {
+		Map<String, String> session = new HashMap<>();
+		session.put("a", "1");
+		session.put("b", "2");
+		RequestContext rc = new RequestContext(new ByteArrayOutputStream(),
+				null, null, null);
+		rc.setPersistentParameters(Collections.unmodifiableMap(session));
+
+		assertTrue(rc.getPersistentParameterReads().isEmpty());
+		rc.getPersistentParameter("a");
+		rc.setPersistentParameter("b", "3");
+		// value set by this request is not read from session
+		rc.getPersistentParameter("b");
+		assertEquals(Collections.singleton("a"),
+				rc.getPersistentParameterReads());
+
+		rc.getPersistentParameterNames();
+		assertNull(rc.getPersistentParameterReads());
+
+		rc.setPersistentParameters(session);
+		assertTrue(rc.getPersistentParameterReads().isEmpty());
+	}
+
+	@Test
+	public void testServerHeadersAndCustomStatus() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		RequestContext rc = new RequestContext(baos, null, null, null);
+		rc.setStatusCode(404);
+		rc.setStatusText("Nema");
+		rc.setServerHeaders(true);
+		rc.setContentLength(2);
+
+		rc.write("ok");
+
+		String[] lines = new String(baos.toByteArray(),
+				StandardCharsets.ISO_8859_1).split("\r\n");
+		assertEquals("HTTP/1.1 404 Nema", lines[0]);
+		assertEquals("Content-Length: 2", lines[2]);
+		assertTrue(lines[3].matches(
+				"Date: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT"));
+		assertEquals("Server: SmartHttpServer", lines[4]);
+	}
+
+	@Test
+	public void testTextEncodedAsGetBytes() throws IOException {
+		final String text = "Čćžšđ ab \u20ac \ud83d\ude00 \ud83d x";
+		for (final String encoding : new String[] { "UTF-8", "ISO-8859-1",
+				"US-ASCII", "ISO-8859-2", "windows-1250" }) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			RequestContext rc = new RequestContext(baos, null, null, null);
+			rc.setEncoding(encoding);
+			rc.setTextEncoder(new TextEncoder(4));
+
+			rc.append(text, 0, 6).append(text.substring(6)).append('!');
+
+			final byte[] expected = (text + "!").getBytes(Charset
+					.forName(encoding));
+			final byte[] written = baos.toByteArray();
+			assertArrayEquals(encoding, expected, Arrays.copyOfRange(written,
+					written.length - expected.length, written.length));
+		}
+	}
 }
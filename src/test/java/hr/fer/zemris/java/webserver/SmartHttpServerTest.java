@@ -0,0 +1,824 @@
+package hr.fer.zemris.java.webserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests which send raw HTTP requests to running server, once for each I/O
+ * model.
+ */
+@RunWith(Parameterized.class)
+public class SmartHttpServerTest {
+
+	/**
+	 * Size of file which is served from memory
+	 */
+	private static final int SMALL_SIZE = 1000;
+
+	/**
+	 * Size of file which is served from disk
+	 */
+	private static final int LARGE_SIZE = 5000;
+
+	/**
+	 * Time in seconds after which idle connection is closed by server
+	 */
+	private static final int KEEP_ALIVE_TIMEOUT = 1;
+
+	/**
+	 * Running servers by I/O model
+	 */
+	private static final Map<String, SmartHttpServer> SERVERS = new HashMap<>();
+
+	/**
+	 * Ports of running servers by I/O model
+	 */
+	private static final Map<String, Integer> PORTS = new HashMap<>();
+
+	/**
+	 * Document root of servers
+	 */
+	private static Path documentRoot;
+
+	/**
+	 * I/O model of server
+	 */
+	private final String ioModel;
+
+	/**
+	 * Port of server
+	 */
+	private int port;
+
+	/**
+	 * Constructor
+	 *
+	 * @param ioModel
+	 *            I/O model of server
+	 */
+	public SmartHttpServerTest(String ioModel) {
+		this.ioModel = ioModel;
+	}
+
+	/**
+	 * Returns I/O models of tested servers.
+	 *
+	 * @return I/O models
+	 */
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> ioModels() {
+		return Arrays.asList(new Object[][] { { "blocking" }, { "nio" } });
+	}
+
+	/**
+	 * Starts server for I/O model, if it is not started yet.
+	 *
+	 * @throws IOException
+	 *             if configuration cannot be written
+	 */
+	@Before
+	public void startServer() throws IOException {
+		synchronized (SERVERS) {
+			if (documentRoot == null) {
+				documentRoot = Files.createTempDirectory("webroot");
+				documentRoot.toFile().deleteOnExit();
+				writeFile("small.bin", bytes(SMALL_SIZE));
+				writeFile("large.bin", bytes(LARGE_SIZE));
+			}
+
+			if (!SERVERS.containsKey(this.ioModel)) {
+				final Properties properties = new Properties();
+				try (Reader reader = Files.newBufferedReader(
+						Paths.get("properties/server.properties"),
+						StandardCharsets.ISO_8859_1)) {
+					properties.load(reader);
+				}
+				final int port = freePort();
+				properties.setProperty("server.port", Integer.toString(port));
+				properties.setProperty("server.ioModel", this.ioModel);
+				properties.setProperty("server.documentRoot",
+						documentRoot.toString());
+				properties.setProperty("server.staticCacheMaxFileSize",
+						Integer.toString(LARGE_SIZE - 1));
+				properties.setProperty("server.workerThreads", "4");
+				// buffer returned twice fails instead of being shared
+				properties.setProperty("server.bufferPoolDebug", "true");
+				properties.setProperty("server.keepAliveTimeout",
+						Integer.toString(KEEP_ALIVE_TIMEOUT));
+				properties.remove("server.compressionConfig");
+				properties.remove("session.persistenceFile");
+
+				final Path config = Files.createTempFile("server", ".properties");
+				config.toFile().deleteOnExit();
+				try (Writer writer = Files.newBufferedWriter(config,
+						StandardCharsets.ISO_8859_1)) {
+					properties.store(writer, null);
+				}
+
+				final SmartHttpServer server = new SmartHttpServer(
+						config.toString());
+				server.start();
+				SERVERS.put(this.ioModel, server);
+				PORTS.put(this.ioModel, port);
+			}
+			this.port = PORTS.get(this.ioModel);
+		}
+	}
+
+	/**
+	 * Stops all servers.
+	 */
+	@AfterClass
+	public static void stopServers() {
+		for (final SmartHttpServer server : SERVERS.values()) {
+			server.stop();
+		}
+		SERVERS.clear();
+		PORTS.clear();
+	}
+
+	/**
+	 * Writes file into document root. File is deleted when tests end.
+	 *
+	 * @param name
+	 *            name of file
+	 * @param data
+	 *            content of file
+	 * @throws IOException
+	 *             if file cannot be written
+	 */
+	static void writeFile(String name, byte[] data) throws IOException {
+		final Path file = documentRoot.resolve(name);
+		Files.write(file, data);
+		file.toFile().deleteOnExit();
+	}
+
+	/**
+	 * Finds port on which nothing listens.
+	 *
+	 * @return free port
+	 * @throws IOException
+	 *             if socket cannot be opened
+	 */
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	/**
+	 * Creates array of bytes with values 0, 1, 2...
+	 *
+	 * @param length
+	 *            length of array
+	 * @return array
+	 */
+	static byte[] bytes(int length) {
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	/**
+	 * Opens connection to server.
+	 *
+	 * @return connected socket
+	 * @throws IOException
+	 *             if connection cannot be opened
+	 */
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket("127.0.0.1", this.port);
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	/**
+	 * Sends ASCII text.
+	 *
+	 * @param socket
+	 *            connection
+	 * @param text
+	 *            text to send
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private static void send(Socket socket, String text) throws IOException {
+		final OutputStream out = socket.getOutputStream();
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+		out.flush();
+	}
+
+	/**
+	 * Sends one request on new connection and reads response.
+	 *
+	 * @param request
+	 *            request, as ASCII text
+	 * @return response
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private Response request(String request) throws IOException {
+		try (Socket socket = this.connect()) {
+			send(socket, request);
+			return Response.read(socket.getInputStream());
+		}
+	}
+
+	/**
+	 * Response read from connection.
+	 */
+	static class Response {
+
+		/**
+		 * Status line
+		 */
+		final String status;
+
+		/**
+		 * Header fields, names in lower case
+		 */
+		final Map<String, String> headers;
+
+		/**
+		 * Body
+		 */
+		final byte[] body;
+
+		/**
+		 * Constructor
+		 *
+		 * @param status
+		 *            status line
+		 * @param headers
+		 *            header fields
+		 * @param body
+		 *            body
+		 */
+		private Response(String status, Map<String, String> headers, byte[] body) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		/**
+		 * Returns status code.
+		 *
+		 * @return status code
+		 */
+		int code() {
+			return Integer.parseInt(this.status.split(" ")[1]);
+		}
+
+		/**
+		 * Returns value of header field.
+		 *
+		 * @param name
+		 *            name of field
+		 * @return value, or null
+		 */
+		String header(String name) {
+			return this.headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * Returns body as text.
+		 *
+		 * @return body
+		 */
+		String text() {
+			return new String(this.body, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Reads interim or final response. Body is read by Content-Length or
+		 * chunked coding.
+		 *
+		 * @param in
+		 *            stream of connection
+		 * @return response
+		 * @throws IOException
+		 *             if IO error occurs or response is incomplete
+		 */
+		static Response read(InputStream in) throws IOException {
+			final String status = line(in);
+			final Map<String, String> headers = new LinkedHashMap<>();
+			String line;
+			while (!(line = line(in)).isEmpty()) {
+				final int colon = line.indexOf(':');
+				final String name = line.substring(0, colon).toLowerCase();
+				final String value = line.substring(colon + 1).trim();
+				headers.merge(name, value, (a, b) -> a + "\n" + b);
+			}
+
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			final int code = Integer.parseInt(status.split(" ")[1]);
+			if (code >= 200 && code != 204 && code != 304) {
+				final String length = headers.get("content-length");
+				if (length != null) {
+					readFully(in, body, Long.parseLong(length));
+				} else if ("chunked".equals(headers.get("transfer-encoding"))) {
+					long size;
+					while ((size = Long.parseLong(line(in).split(";")[0]
+							.trim(), 16)) > 0) {
+						readFully(in, body, size);
+						line(in);
+					}
+					while (!line(in).isEmpty()) {
+						// trailers
+					}
+				}
+			}
+			return new Response(status, headers, body.toByteArray());
+		}
+
+		/**
+		 * Reads line, without CRLF.
+		 *
+		 * @param in
+		 *            stream
+		 * @return line
+		 * @throws IOException
+		 *             if IO error occurs or stream ends
+		 */
+		private static String line(InputStream in) throws IOException {
+			final StringBuilder sb = new StringBuilder();
+			int b;
+			while ((b = in.read()) != '\n') {
+				if (b == -1) {
+					throw new IOException("Connection closed in line: " + sb);
+				}
+				if (b != '\r') {
+					sb.append((char) b);
+				}
+			}
+			return sb.toString();
+		}
+
+		/**
+		 * Reads exact number of bytes.
+		 *
+		 * @param in
+		 *            stream
+		 * @param out
+		 *            destination
+		 * @param length
+		 *            number of bytes
+		 * @throws IOException
+		 *             if IO error occurs or stream ends
+		 */
+		private static void readFully(InputStream in, OutputStream out,
+				long length) throws IOException {
+			final byte[] buffer = new byte[4096];
+			while (length > 0) {
+				final int read = in.read(buffer, 0,
+						(int) Math.min(buffer.length, length));
+				if (read == -1) {
+					throw new IOException("Connection closed in body");
+				}
+				out.write(buffer, 0, read);
+				length -= read;
+			}
+		}
+	}
+
+	@Test
+	public void testPipelinedRequests() throws IOException {
+		try (Socket socket = this.connect()) {
+			send(socket, "GET /small.bin HTTP/1.1\r\nHost: x\r\n\r\n"
+					+ "POST /ext/UploadInfo HTTP/1.1\r\nHost: x\r\n"
+					+ "Content-Type: application/octet-stream\r\n"
+					+ "Content-Length: 5\r\n\r\nhello"
+					+ "GET /missing.bin HTTP/1.1\r\nHost: x\r\n"
+					+ "Connection: close\r\n\r\n");
+
+			final InputStream in = socket.getInputStream();
+			final Response first = Response.read(in);
+			assertEquals(200, first.code());
+			assertArrayEquals(bytes(SMALL_SIZE), first.body);
+
+			final Response second = Response.read(in);
+			assertEquals(200, second.code());
+			assertTrue(second.text().contains("length: 5"));
+
+			final Response third = Response.read(in);
+			assertEquals(404, third.code());
+			assertEquals("close", third.header("Connection"));
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void testPipelinedChunkedBody() throws IOException {
+		try (Socket socket = this.connect()) {
+			send(socket, "POST /ext/UploadInfo HTTP/1.1\r\nHost: x\r\n"
+					+ "Content-Type: application/octet-stream\r\n"
+					+ "Transfer-Encoding: chunked\r\n\r\n"
+					+ "3;ext=1\r\nabc\r\n2\r\nde\r\n0\r\nTrailer: t\r\n\r\n"
+					+ "GET /small.bin HTTP/1.1\r\nHost: x\r\n\r\n");
+
+			final InputStream in = socket.getInputStream();
+			final CRC32 crc = new CRC32();
+			crc.update("abcde".getBytes(StandardCharsets.US_ASCII));
+			final Response upload = Response.read(in);
+			assertEquals(200, upload.code());
+			assertTrue(upload.text().contains("length: 5"));
+			assertTrue(upload.text().contains(
+					"crc32: " + Long.toHexString(crc.getValue())));
+
+			assertEquals(200, Response.read(in).code());
+		}
+	}
+
+	@Test
+	public void testContinueIsSentBeforeBody() throws IOException {
+		final byte[] data = bytes(20000);
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+
+		try (Socket socket = this.connect()) {
+			send(socket, "POST /ext/UploadInfo HTTP/1.1\r\nHost: x\r\n"
+					+ "Content-Type: application/octet-stream\r\n"
+					+ "Expect: 100-continue\r\n" + "Content-Length: "
+					+ data.length + "\r\n\r\n");
+
+			final InputStream in = socket.getInputStream();
+			final Response interim = Response.read(in);
+			assertEquals("HTTP/1.1 100 Continue", interim.status);
+
+			socket.getOutputStream().write(data);
+			final Response response = Response.read(in);
+			assertEquals(200, response.code());
+			assertTrue(response.text().contains(
+					"crc32: " + Long.toHexString(crc.getValue())));
+		}
+	}
+
+	@Test
+	public void testContinueIsNotSentForRejectedBody() throws IOException {
+		final Response response = this.request("POST /ext/UploadInfo HTTP/1.1\r\n"
+				+ "Host: x\r\n" + "Expect: 100-continue\r\n"
+				+ "Content-Length: 999999999\r\n\r\n");
+		assertEquals(413, response.code());
+	}
+
+	@Test
+	public void testInvalidRequestGets400() throws IOException {
+		assertEquals(400, this.request("NONSENSE\r\n\r\n").code());
+	}
+
+	/**
+	 * Checks parts of multipart/byteranges body against file.
+	 *
+	 * @param response
+	 *            response with multipart body
+	 * @param file
+	 *            content of file
+	 * @param ranges
+	 *            expected ranges, pairs of first and last byte
+	 */
+	private static void assertParts(Response response, byte[] file,
+			long... ranges) {
+		final String type = response.header("Content-Type");
+		assertTrue(type, type.startsWith("multipart/byteranges; boundary="));
+		final String boundary = type.substring(type.indexOf('=') + 1);
+		final byte[] body = response.body;
+
+		int position = 0;
+		for (int i = 0; i < ranges.length; i += 2) {
+			final String partHeader = "\r\n--" + boundary + "\r\n"
+					+ "Content-Type: application/octet-stream\r\n"
+					+ "Content-Range: bytes " + ranges[i] + "-" + ranges[i + 1]
+					+ "/" + file.length + "\r\n\r\n";
+			assertEquals(partHeader, new String(body, position,
+					partHeader.length(), StandardCharsets.US_ASCII));
+			position += partHeader.length();
+
+			final int length = (int) (ranges[i + 1] - ranges[i] + 1);
+			assertArrayEquals(
+					Arrays.copyOfRange(file, (int) ranges[i],
+							(int) ranges[i + 1] + 1),
+					Arrays.copyOfRange(body, position, position + length));
+			position += length;
+		}
+
+		final String end = "\r\n--" + boundary + "--\r\n";
+		assertEquals(end, new String(body, position, body.length - position,
+				StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void testSingleRange() throws IOException {
+		for (final String name : new String[] { "small.bin", "large.bin" }) {
+			final Response response = this.request("GET /" + name
+					+ " HTTP/1.1\r\nHost: x\r\nRange: bytes=10-19\r\n\r\n");
+			assertEquals(206, response.code());
+			assertTrue(response.header("Content-Range").startsWith(
+					"bytes 10-19/"));
+			assertEquals("10", response.header("Content-Length"));
+			assertArrayEquals(Arrays.copyOfRange(bytes(20), 10, 20),
+					response.body);
+		}
+	}
+
+	@Test
+	public void testSuffixRange() throws IOException {
+		final Response response = this.request("GET /large.bin HTTP/1.1\r\n"
+				+ "Host: x\r\nRange: bytes=-100\r\n\r\n");
+		assertEquals(206, response.code());
+		assertEquals("bytes " + (LARGE_SIZE - 100) + "-" + (LARGE_SIZE - 1)
+				+ "/" + LARGE_SIZE, response.header("Content-Range"));
+		assertArrayEquals(Arrays.copyOfRange(bytes(LARGE_SIZE),
+				LARGE_SIZE - 100, LARGE_SIZE), response.body);
+	}
+
+	@Test
+	public void testMultipartLengthMatchesBody() throws IOException {
+		for (final int size : new int[] { SMALL_SIZE, LARGE_SIZE }) {
+			final String name = size == SMALL_SIZE ? "small.bin" : "large.bin";
+			try (Socket socket = this.connect()) {
+				// overlapping ranges are sent as requested, and next request
+				// on connection shows that body had declared length
+				send(socket, "GET /" + name + " HTTP/1.1\r\nHost: x\r\n"
+						+ "Range: bytes=0-9, 5-14, -3\r\n\r\n"
+						+ "GET /" + name + " HTTP/1.1\r\nHost: x\r\n"
+						+ "Range: bytes=0-0\r\n\r\n");
+				final InputStream in = socket.getInputStream();
+
+				final Response response = Response.read(in);
+				assertEquals(206, response.code());
+				assertNull(response.header("Transfer-Encoding"));
+				assertEquals(
+						Integer.toString(response.body.length),
+						response.header("Content-Length"));
+				assertParts(response, bytes(size), 0, 9, 5, 14, size - 3,
+						size - 1);
+
+				final Response next = Response.read(in);
+				assertEquals(206, next.code());
+				assertArrayEquals(new byte[] { 0 }, next.body);
+			}
+		}
+	}
+
+	@Test
+	public void testTooManyRangesSendWholeFile() throws IOException {
+		final StringBuilder ranges = new StringBuilder("0-0");
+		for (int i = 1; i <= 16; i++) {
+			ranges.append(',').append(i * 2).append('-').append(i * 2);
+		}
+		final Response response = this.request("GET /small.bin HTTP/1.1\r\n"
+				+ "Host: x\r\nRange: bytes=" + ranges + "\r\n\r\n");
+		assertEquals(200, response.code());
+		assertArrayEquals(bytes(SMALL_SIZE), response.body);
+	}
+
+	@Test
+	public void testUnsatisfiableRange() throws IOException {
+		for (final String name : new String[] { "small.bin", "large.bin" }) {
+			final Response response = this.request("GET /" + name
+					+ " HTTP/1.1\r\nHost: x\r\nRange: bytes=99999-\r\n\r\n");
+			assertEquals(416, response.code());
+			assertTrue(response.header("Content-Range").startsWith("bytes */"));
+		}
+	}
+
+	@Test
+	public void testIfRangeWithOldETagSendsWholeFile() throws IOException {
+		final Response response = this.request("GET /small.bin HTTP/1.1\r\n"
+				+ "Host: x\r\nRange: bytes=0-9\r\nIf-Range: \"old\"\r\n\r\n");
+		assertEquals(200, response.code());
+		assertEquals(SMALL_SIZE, response.body.length);
+	}
+
+	@Test
+	public void testIfNoneMatch() throws IOException {
+		for (final String name : new String[] { "small.bin", "large.bin" }) {
+			final Response full = this.request("GET /" + name
+					+ " HTTP/1.1\r\nHost: x\r\n\r\n");
+			final String etag = full.header("ETag");
+			assertNotNull(etag);
+
+			final Response strong = this.request("GET /" + name
+					+ " HTTP/1.1\r\nHost: x\r\nIf-None-Match: " + etag
+					+ "\r\n\r\n");
+			assertEquals(304, strong.code());
+			assertEquals(etag, strong.header("ETag"));
+
+			final Response weak = this.request("GET /" + name
+					+ " HTTP/1.1\r\nHost: x\r\nIf-None-Match: \"x\", W/"
+					+ etag + "\r\n\r\n");
+			assertEquals(304, weak.code());
+
+			final Response changed = this.request("GET /" + name
+					+ " HTTP/1.1\r\nHost: x\r\nIf-None-Match: W/\"x\"\r\n"
+					+ "If-Modified-Since: " + full.header("Last-Modified")
+					+ "\r\n\r\n");
+			assertEquals(200, changed.code());
+		}
+	}
+
+	@Test
+	public void testNotModifiedKeepsConnection() throws IOException {
+		final String etag = this.request(
+				"GET /small.bin HTTP/1.1\r\nHost: x\r\n\r\n").header("ETag");
+		try (Socket socket = this.connect()) {
+			send(socket, "GET /small.bin HTTP/1.1\r\nHost: x\r\n"
+					+ "If-None-Match: W/" + etag + "\r\n\r\n"
+					+ "GET /small.bin HTTP/1.1\r\nHost: x\r\n\r\n");
+			final InputStream in = socket.getInputStream();
+			final Response notModified = Response.read(in);
+			assertEquals(304, notModified.code());
+			assertEquals(0, notModified.body.length);
+			assertArrayEquals(bytes(SMALL_SIZE), Response.read(in).body);
+		}
+	}
+
+	@Test
+	public void testOnlyChangingScriptStartsSession() throws IOException {
+		final String read = this.ioModel + "-read.smscr";
+		final String count = this.ioModel + "-count.smscr";
+		writeFile(read, ("{$= \"text/plain\" @setMimeType $}"
+				+ "{$= \"brojPoziva\" \"0\" @pparamGet $}")
+				.getBytes(StandardCharsets.US_ASCII));
+		writeFile(count, ("{$= \"text/plain\" @setMimeType $}"
+				+ "{$= \"brojPoziva\" \"0\" @pparamGet 1 + @dup "
+				+ "\"brojPoziva\" @pparamSet $}")
+				.getBytes(StandardCharsets.US_ASCII));
+
+		final Response reading = this.request("GET /" + read
+				+ " HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+		assertEquals(200, reading.code());
+		assertEquals("0", reading.text().trim());
+		assertNull(reading.header("Set-Cookie"));
+
+		final Response counting = this.request("GET /" + count
+				+ " HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n");
+		assertEquals("1", counting.text().trim());
+		final String setCookie = counting.header("Set-Cookie");
+		assertNotNull(setCookie);
+		final String cookie = setCookie.split(";")[0];
+
+		final Response again = this.request("GET /" + read
+				+ " HTTP/1.1\r\nHost: x\r\nCookie: " + cookie
+				+ "\r\nConnection: close\r\n\r\n");
+		assertEquals("1", again.text().trim());
+		assertNull(again.header("Set-Cookie"));
+	}
+
+	@Test
+	public void testConcurrentScriptsDoNotLoseChanges() throws Exception {
+		final String count = this.ioModel + "-concurrent.smscr";
+		writeFile(count, ("{$= \"text/plain\" @setMimeType $}"
+				+ "{$ FOR i 1 200 1 $}{$= i $}{$END$}="
+				+ "{$= \"brojPoziva\" \"0\" @pparamGet 1 + @dup "
+				+ "\"brojPoziva\" @pparamSet $}")
+				.getBytes(StandardCharsets.US_ASCII));
+		final String cookie = this.request("GET /" + count
+				+ " HTTP/1.1\r\nHost: x\r\nConnection: close\r\n\r\n")
+				.header("Set-Cookie").split(";")[0];
+
+		final ExecutorService clients = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<Response>> responses = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				responses.add(clients.submit(() -> this.request("GET /"
+						+ count + " HTTP/1.1\r\nHost: x\r\nCookie: " + cookie
+						+ "\r\nConnection: close\r\n\r\n")));
+			}
+			for (final Future<Response> response : responses) {
+				assertEquals(200, response.get().code());
+			}
+		} finally {
+			clients.shutdown();
+		}
+
+		final String last = this.request("GET /" + count
+				+ " HTTP/1.1\r\nHost: x\r\nCookie: " + cookie
+				+ "\r\nConnection: close\r\n\r\n").text();
+		assertTrue(last, last.trim().endsWith("=22"));
+	}
+
+	@Test
+	public void testWorkerDeclaresSessionBeforeOutput() throws IOException {
+		final Response first = this.request("GET /ext/CounterWorker HTTP/1.1"
+				+ "\r\nHost: x\r\nConnection: close\r\n\r\n");
+		assertEquals(200, first.code());
+		assertEquals("visits=1", first.text());
+		final String cookie = first.header("Set-Cookie").split(";")[0];
+
+		final Response second = this.request("GET /ext/CounterWorker HTTP/1.1"
+				+ "\r\nHost: x\r\nCookie: " + cookie
+				+ "\r\nConnection: close\r\n\r\n");
+		assertEquals("visits=2", second.text());
+		assertNull(second.header("Set-Cookie"));
+	}
+
+	@Test
+	public void testFailedWorker() throws IOException {
+		final Response failed = this.request("GET /ext/LateCounterWorker?fail=1"
+				+ " HTTP/1.1\r\nHost: x\r\n\r\n");
+		assertEquals(500, failed.code());
+		assertEquals("close", failed.header("Connection"));
+
+		// session cannot be started after header is generated, so response
+		// is incomplete
+		try {
+			this.request("GET /ext/LateCounterWorker HTTP/1.1\r\nHost: x"
+					+ "\r\n\r\n");
+			fail("Incomplete response must end with closed connection");
+		} catch (final IOException e) {
+			// connection is closed
+		}
+		assertEquals(200, this.request("GET /small.bin HTTP/1.1\r\nHost: x"
+				+ "\r\nConnection: close\r\n\r\n").code());
+	}
+
+	/**
+	 * Returns number of heap buffers which server has taken and not
+	 * returned.
+	 *
+	 * @return number of borrowed heap buffers
+	 */
+	private long borrowedHeapBuffers() {
+		final Matcher matcher = Pattern.compile("heap, .*borrowed=(-?\\d+)")
+				.matcher(SERVERS.get(this.ioModel).getStatistics());
+		assertTrue(matcher.find());
+		return Long.parseLong(matcher.group(1));
+	}
+
+	@Test
+	public void testClientClosesIdleConnection() throws Exception {
+		Assume.assumeTrue(this.ioModel.equals("nio"));
+
+		final Socket[] sockets = new Socket[12];
+		for (int i = 0; i < sockets.length; i++) {
+			sockets[i] = this.connect();
+			send(sockets[i], "GET /small.bin HTTP/1.1\r\nHost: x\r\n\r\n");
+			assertEquals(200, Response.read(sockets[i].getInputStream()).code());
+		}
+
+		// connections are closed before, around and after they expire, so
+		// end of stream or invalid header can meet check of idle connections
+		final long step = 2 * KEEP_ALIVE_TIMEOUT * 1000 / sockets.length;
+		for (int i = 0; i < sockets.length; i++) {
+			Thread.sleep(step);
+			if (i % 2 == 0) {
+				try {
+					send(sockets[i], "BAD\r\n\r\n");
+				} catch (final IOException e) {
+					// server already closed connection
+				}
+			}
+			sockets[i].close();
+		}
+		Thread.sleep(KEEP_ALIVE_TIMEOUT * 1000 + 1500);
+
+		// selector thread still accepts connections
+		final Response response = this.request("GET /small.bin HTTP/1.1\r\n"
+				+ "Host: x\r\nConnection: close\r\n\r\n");
+		assertEquals(200, response.code());
+		// worker returns buffers after response is sent
+		final long deadline = System.currentTimeMillis() + 2000;
+		while (borrowedHeapBuffers() != 0
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, borrowedHeapBuffers());
+	}
+}
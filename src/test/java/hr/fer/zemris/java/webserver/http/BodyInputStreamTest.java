@@ -0,0 +1,285 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BodyInputStreamTest {
+
+	/**
+	 * Socket stream which returns at most few bytes from each read.
+	 */
+	private static class SlowStream extends ByteArrayInputStream {
+
+		/**
+		 * Maximal number of bytes returned by one read
+		 */
+		private final int step;
+
+		/**
+		 * Constructor
+		 *
+		 * @param text
+		 *            bytes of stream, as ASCII text
+		 * @param step
+		 *            maximal number of bytes returned by one read
+		 */
+		private SlowStream(String text, int step) {
+			super(text.getBytes(StandardCharsets.US_ASCII));
+			this.step = step;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			return super.read(b, off, Math.min(len, this.step));
+		}
+	}
+
+	/**
+	 * Creates connection buffer in read mode, with bytes which were received
+	 * together with request header.
+	 *
+	 * @param capacity
+	 *            capacity of buffer
+	 * @param received
+	 *            received bytes, as ASCII text
+	 * @return buffer
+	 */
+	private static ByteBuffer buffer(int capacity, String received) {
+		final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+		buffer.put(received.getBytes(StandardCharsets.US_ASCII));
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Reads stream to end.
+	 *
+	 * @param in
+	 *            stream
+	 * @return read bytes, as ASCII text
+	 * @throws IOException
+	 *             if IO error occurs
+	 */
+	private static String readAll(InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte[] data = new byte[3];
+		int read;
+		while ((read = in.read(data)) != -1) {
+			out.write(data, 0, read);
+		}
+		return new String(out.toByteArray(), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Returns rest of buffer as text.
+	 *
+	 * @param buffer
+	 *            buffer in read mode
+	 * @return remaining bytes, as ASCII text
+	 */
+	private static String rest(ByteBuffer buffer) {
+		return new String(buffer.array(), buffer.arrayOffset()
+				+ buffer.position(), buffer.remaining(),
+				StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void testBodyWithLength() throws IOException {
+		final ByteBuffer buffer = buffer(16, "hel");
+		final BodyInputStream body = new BodyInputStream(buffer,
+				new SlowStream("lo world", 2), 11);
+
+		assertFalse(body.isChunked());
+		assertEquals(3, body.available());
+		assertEquals("hello world", readAll(body));
+		assertEquals(-1, body.read());
+	}
+
+	@Test
+	public void testBytesAfterBodyStayInBuffer() throws IOException {
+		final ByteBuffer buffer = buffer(64, "helloGET /next HTTP/1.1\r\n\r\n");
+		final BodyInputStream body = new BodyInputStream(buffer,
+				new SlowStream("", 1), 5);
+
+		assertEquals("hello", readAll(body));
+		assertEquals("GET /next HTTP/1.1\r\n\r\n", rest(buffer));
+	}
+
+	@Test
+	public void testTwoPipelinedRequestsWithBodies() throws IOException {
+		final ByteBuffer buffer = buffer(128, "POST /a HTTP/1.1\r\n"
+				+ "Content-Length: 3\r\n\r\n" + "abc" + "POST /b HTTP/1.1\r\n"
+				+ "Transfer-Encoding: chunked\r\n\r\n" + "2\r\nde\r\n0\r\n\r\n");
+		final InputStream socket = new SlowStream("", 1);
+		final HttpRequestParser parser = new HttpRequestParser();
+
+		assertTrue(parser.parse(buffer));
+		assertEquals("/a", parser.getPath());
+		assertEquals("abc", readAll(new BodyInputStream(buffer, socket, 3)));
+
+		parser.reset();
+		assertTrue(parser.parse(buffer));
+		assertEquals("/b", parser.getPath());
+		assertEquals("de", readAll(BodyInputStream.chunked(buffer, socket, 100)));
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void testChunkedBodyWithExtensionsAndTrailers() throws IOException {
+		final String chunked = "5;name=value\r\nhello\r\n"
+				+ "6 ; a=\"b\"\r\n world\r\n" + "0;last\r\n"
+				+ "Checksum: 1234\r\n" + "Expires: never\r\n\r\n" + "NEXT";
+		final ByteBuffer buffer = buffer(8, chunked.substring(0, 4));
+		final InputStream socket = new SlowStream(chunked.substring(4), 3);
+		final BodyInputStream body = BodyInputStream.chunked(buffer, socket,
+				100);
+
+		assertTrue(body.isChunked());
+		assertEquals("hello world", readAll(body));
+		// bytes after body are in buffer or still in socket
+		assertEquals("NEXT", rest(buffer) + readAll(socket));
+	}
+
+	@Test
+	public void testChunkedBodyWithoutCarriageReturns() throws IOException {
+		final ByteBuffer buffer = buffer(64, "3\nabc\nA\n0123456789\n0\n\n");
+		final BodyInputStream body = BodyInputStream.chunked(buffer,
+				new SlowStream("", 1), 100);
+		assertEquals("abc0123456789", readAll(body));
+	}
+
+	@Test
+	public void testTruncatedBody() throws IOException {
+		final ByteBuffer buffer = buffer(16, "abc");
+		final BodyInputStream body = new BodyInputStream(buffer,
+				new SlowStream("de", 1), 10);
+
+		final byte[] data = new byte[10];
+		assertEquals(3, body.read(data));
+		try {
+			readAll(body);
+			fail("Body shorter than its length must be rejected");
+		} catch (final IOException e) {
+			assertEquals("Connection closed before end of body!",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void testTruncatedChunkedBody() {
+		final ByteBuffer buffer = buffer(16, "5\r\nhel");
+		final BodyInputStream body = BodyInputStream.chunked(buffer,
+				new SlowStream("", 1), 100);
+		try {
+			readAll(body);
+			fail("Chunked body without last chunk must be rejected");
+		} catch (final IOException e) {
+			assertEquals("Connection closed before end of body!",
+					e.getMessage());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidChunkSize() throws IOException {
+		readAll(BodyInputStream.chunked(buffer(16, "xyz\r\nabc\r\n0\r\n\r\n"),
+				new SlowStream("", 1), 100));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMissingLineAfterChunk() throws IOException {
+		readAll(BodyInputStream.chunked(buffer(16, "2\r\nabc\r\n0\r\n\r\n"),
+				new SlowStream("", 1), 100));
+	}
+
+	@Test
+	public void testChunkedBodyOverLimit() {
+		final BodyInputStream body = BodyInputStream.chunked(
+				buffer(64, "4\r\nabcd\r\n4\r\nefgh\r\n0\r\n\r\n"),
+				new SlowStream("", 1), 6);
+		try {
+			readAll(body);
+			fail("Chunked body longer than limit must be rejected");
+		} catch (final IOException e) {
+			assertEquals("Request body is too large!", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testDrainBodyWithLength() throws IOException {
+		final ByteBuffer buffer = buffer(8, "abc");
+		final InputStream socket = new SlowStream("defghijGET", 2);
+		final BodyInputStream body = new BodyInputStream(buffer, socket, 10);
+
+		assertTrue(body.drain(10));
+		assertEquals(-1, body.read());
+		assertEquals("GET", rest(buffer) + readAll(socket));
+	}
+
+	@Test
+	public void testDrainRefusesLongBody() throws IOException {
+		final ByteBuffer buffer = buffer(8, "abc");
+		final BodyInputStream body = new BodyInputStream(buffer,
+				new SlowStream("defghij", 2), 10);
+
+		assertFalse(body.drain(9));
+		// nothing is discarded when length is known to be over limit
+		assertEquals("abc", rest(buffer));
+	}
+
+	@Test
+	public void testDrainChunkedBody() throws IOException {
+		final ByteBuffer buffer = buffer(8, "3\r\nabc");
+		final InputStream socket = new SlowStream(
+				"\r\n2;x\r\nde\r\n0\r\nA: b\r\n\r\nGET", 3);
+		final BodyInputStream body = BodyInputStream.chunked(buffer, socket,
+				100);
+
+		assertTrue(body.drain(5));
+		assertEquals("GET", rest(buffer) + readAll(socket));
+	}
+
+	@Test
+	public void testDrainRefusesLongChunkedBody() throws IOException {
+		final BodyInputStream body = BodyInputStream.chunked(
+				buffer(64, "3\r\nabc\r\n3\r\ndef\r\n0\r\n\r\n"), new SlowStream(
+						"", 1), 100);
+		assertFalse(body.drain(5));
+	}
+
+	@Test
+	public void testDrainTruncatedBody() throws IOException {
+		final BodyInputStream body = new BodyInputStream(buffer(8, "ab"),
+				new SlowStream("", 1), 5);
+		try {
+			body.drain(10);
+			fail("Body shorter than its length must be rejected");
+		} catch (final IOException e) {
+			assertEquals("Connection closed before end of body!",
+					e.getMessage());
+		}
+	}
+
+	@Test
+	public void testEmptyBody() throws IOException {
+		final ByteBuffer buffer = buffer(8, "GET");
+		final BodyInputStream body = new BodyInputStream(buffer,
+				new SlowStream("", 1), 0);
+		assertEquals(-1, body.read());
+		assertTrue(body.drain(0));
+		assertEquals("GET", rest(buffer));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDirectBufferIsRejected() {
+		new BodyInputStream(ByteBuffer.allocateDirect(8), new SlowStream("",
+				1), 0);
+	}
+}
@@ -0,0 +1,111 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClasses() {
+		final BufferPool pool = new BufferPool(false, false);
+
+		assertEquals(4096, pool.acquire(1).capacity());
+		assertEquals(4096, pool.acquire(4096).capacity());
+		assertEquals(8192, pool.acquire(4097).capacity());
+		assertEquals(65536, pool.acquire(65536).capacity());
+		assertEquals(65537, pool.acquire(65537).capacity());
+		assertEquals(5, pool.getBorrowed());
+	}
+
+	@Test
+	public void testAcquiredBufferIsCleared() {
+		final BufferPool pool = new BufferPool(true, false);
+		final ByteBuffer buffer = pool.acquire(100);
+		buffer.putInt(7).flip();
+		pool.release(buffer);
+
+		final ByteBuffer again = pool.acquire(100);
+		assertTrue(again.isDirect());
+		assertEquals(0, again.position());
+		assertEquals(again.capacity(), again.limit());
+	}
+
+	@Test
+	public void testReleasedBufferIsReused() {
+		final BufferPool pool = new BufferPool(false, 16 * 1024, 1, false);
+		final ByteBuffer first = pool.acquire(4096);
+		pool.release(first);
+
+		assertSame(first, pool.acquire(4096));
+		assertEquals(16 * 1024, pool.getAllocated());
+	}
+
+	@Test
+	public void testSlabIsCutIntoBuffers() {
+		final BufferPool pool = new BufferPool(false, 16 * 1024, 1, false);
+		for (int i = 0; i < 4; i++) {
+			pool.acquire(4096);
+		}
+		assertEquals(16 * 1024, pool.getAllocated());
+
+		pool.acquire(4096);
+		assertEquals(32 * 1024, pool.getAllocated());
+	}
+
+	@Test
+	public void testBuffersReleasedByOtherThreadAreReused() throws Exception {
+		final BufferPool pool = new BufferPool(false, 64 * 1024, 4, false);
+		final ExecutorService releaser = Executors.newSingleThreadExecutor();
+		try {
+			for (int i = 0; i < 1000; i++) {
+				final ByteBuffer buffer = pool.acquire(4096);
+				releaser.submit(() -> pool.release(buffer)).get();
+			}
+		} finally {
+			releaser.shutdown();
+		}
+
+		assertEquals(0, pool.getBorrowed());
+		assertEquals(64 * 1024, pool.getAllocated());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDoubleReleaseInDebugMode() {
+		final BufferPool pool = new BufferPool(false, true);
+		final ByteBuffer buffer = pool.acquire(4096);
+		pool.release(buffer);
+		pool.release(buffer);
+	}
+
+	@Test
+	public void testDoubleReleaseIsNotCheckedWithoutDebug() {
+		final BufferPool pool = new BufferPool(false, false);
+		pool.release(null);
+		assertEquals(0, pool.getBorrowed());
+		assertEquals(-1, pool.reportLeaks(System.err));
+	}
+
+	@Test
+	public void testReportLeaks() {
+		final BufferPool pool = new BufferPool(false, true);
+		final ByteBuffer returned = pool.acquire(4096);
+		pool.acquire(8192);
+		pool.release(returned);
+
+		final ByteArrayOutputStream report = new ByteArrayOutputStream();
+		assertEquals(1, pool.reportLeaks(new PrintStream(report, true)));
+		final String text = new String(report.toByteArray(),
+				StandardCharsets.UTF_8);
+		assertTrue(text.contains("Buffer of 8192 bytes taken here"));
+		assertTrue(text.contains("testReportLeaks"));
+		assertFalse(text.contains("4096"));
+	}
+}
@@ -0,0 +1,106 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+
+	/**
+	 * Checks first and last byte of range.
+	 *
+	 * @param range
+	 *            range
+	 * @param first
+	 *            expected first byte
+	 * @param last
+	 *            expected last byte
+	 */
+	private static void assertRange(ByteRange range, long first, long last) {
+		assertEquals(first, range.getFirst());
+		assertEquals(last, range.getLast());
+		assertEquals(last - first + 1, range.getLength());
+	}
+
+	@Test
+	public void testSimpleRanges() {
+		final List<ByteRange> ranges = ByteRange.parse(
+				"bytes=0-99, 200-, 950-2000", 1000);
+		assertEquals(3, ranges.size());
+		assertRange(ranges.get(0), 0, 99);
+		assertRange(ranges.get(1), 200, 999);
+		assertRange(ranges.get(2), 950, 999);
+		assertEquals("bytes 0-99/1000", ranges.get(0).toContentRange(1000));
+	}
+
+	@Test
+	public void testSuffixRanges() {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=-100,-5000",
+				1000);
+		assertEquals(2, ranges.size());
+		assertRange(ranges.get(0), 900, 999);
+		// suffix longer than file selects whole file
+		assertRange(ranges.get(1), 0, 999);
+	}
+
+	@Test
+	public void testEmptySuffixIsIgnored() {
+		final List<ByteRange> ranges = ByteRange.parse("bytes=-0,0-0", 1000);
+		assertEquals(1, ranges.size());
+		assertRange(ranges.get(0), 0, 0);
+	}
+
+	@Test
+	public void testOverlappingRangesAreKeptInOrder() {
+		final List<ByteRange> ranges = ByteRange.parse(
+				"bytes=500-599,0-999,550-", 1000);
+		assertEquals(3, ranges.size());
+		assertRange(ranges.get(0), 500, 599);
+		assertRange(ranges.get(1), 0, 999);
+		assertRange(ranges.get(2), 550, 999);
+	}
+
+	@Test
+	public void testRangeCap() {
+		final StringBuilder header = new StringBuilder("bytes=0-0");
+		for (int i = 1; i < ByteRange.MAX_RANGES; i++) {
+			header.append(',').append(i).append('-').append(i);
+		}
+		assertEquals(ByteRange.MAX_RANGES,
+				ByteRange.parse(header.toString(), 1000).size());
+
+		// more ranges than limit are ignored and whole file is sent
+		header.append(",100-200");
+		assertNull(ByteRange.parse(header.toString(), 1000));
+	}
+
+	@Test
+	public void testUnsatisfiableRanges() {
+		assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=1000-1100, 5000-", 1000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-10", 0).isEmpty());
+		assertEquals(1, ByteRange.parse("bytes=1000-,999-", 1000).size());
+	}
+
+	@Test
+	public void testInvalidHeadersAreIgnored() {
+		assertNull(ByteRange.parse(null, 1000));
+		assertNull(ByteRange.parse("items=0-1", 1000));
+		assertNull(ByteRange.parse("bytes=5", 1000));
+		assertNull(ByteRange.parse("bytes=5-1", 1000));
+		assertNull(ByteRange.parse("bytes=a-b", 1000));
+		assertNull(ByteRange.parse("bytes=-5-", 1000));
+	}
+
+	@Test
+	public void testUnitIsCaseInsensitive() {
+		assertEquals(1, ByteRange.parse(" Bytes=1-2 ", 1000).size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidRange() {
+		new ByteRange(5, 4);
+	}
+}
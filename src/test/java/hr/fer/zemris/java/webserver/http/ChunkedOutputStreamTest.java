@@ -0,0 +1,87 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChunkedOutputStreamTest {
+
+	/**
+	 * Creates array of ASCII letters.
+	 *
+	 * @param length
+	 *            length of array
+	 * @return array
+	 */
+	private static byte[] letters(int length) {
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) ('a' + i % 26);
+		}
+		return data;
+	}
+
+	/**
+	 * Returns chunk with provided data, as ASCII text.
+	 *
+	 * @param size
+	 *            size line of chunk
+	 * @param data
+	 *            data of chunk
+	 * @return chunk
+	 */
+	private static String chunk(String size, byte[] data) {
+		return size + "\r\n" + new String(data, StandardCharsets.US_ASCII)
+				+ "\r\n";
+	}
+
+	@Test
+	public void testChunkSizesInHexadecimalRadix() throws IOException {
+		final int[] sizes = { 1, 15, 16, 255, 4096, 0x12345 };
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(out, 1);
+		final StringBuilder expected = new StringBuilder();
+
+		for (final int size : sizes) {
+			final byte[] data = letters(size);
+			// data not shorter than buffer is sent as its own chunk
+			chunked.write(data, 0, size);
+			expected.append(chunk(Integer.toHexString(size), data));
+		}
+		chunked.finish();
+		expected.append("0\r\n\r\n");
+
+		assertEquals(expected.toString(),
+				new String(out.toByteArray(), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void testBufferedBytesAreOneChunk() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(out, 32);
+
+		chunked.write('a');
+		chunked.write("bcd".getBytes(StandardCharsets.US_ASCII));
+		chunked.flush();
+		chunked.write(letters(30));
+		chunked.write(letters(5));
+		chunked.close();
+
+		assertEquals(chunk("4", "abcd".getBytes(StandardCharsets.US_ASCII))
+				+ chunk("1e", letters(30)) + chunk("5", letters(5))
+				+ "0\r\n\r\n",
+				new String(out.toByteArray(), StandardCharsets.US_ASCII));
+	}
+
+	@Test(expected = IOException.class)
+	public void testWriteAfterFinish() throws IOException {
+		final ChunkedOutputStream chunked = new ChunkedOutputStream(
+				new ByteArrayOutputStream(), 16);
+		chunked.finish();
+		chunked.write('a');
+	}
+}
@@ -0,0 +1,196 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HttpRequestParserTest {
+
+	/**
+	 * Creates buffer in read mode with ASCII text.
+	 *
+	 * @param text
+	 *            text
+	 * @return buffer
+	 */
+	private static ByteBuffer buffer(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void testSimpleRequest() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		final ByteBuffer input = buffer("GET /index.html?a=1&b=2 HTTP/1.1\r\n"
+				+ "Host: localhost\r\n" + "Accept:  text/html \r\n\r\n");
+
+		assertTrue(parser.parse(input));
+		assertFalse(input.hasRemaining());
+		assertEquals("GET", parser.getMethod());
+		assertEquals("/index.html", parser.getPath());
+		assertEquals("a=1&b=2", parser.getQuery());
+		assertEquals("HTTP/1.1", parser.getVersion());
+		assertEquals(2, parser.getHeaderCount());
+		assertEquals("localhost", parser.getHeader("host"));
+		assertEquals("text/html", parser.getHeader("ACCEPT"));
+		assertNull(parser.getHeader("Cookie"));
+	}
+
+	@Test
+	public void testHeaderSplitAcrossReads() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		final String request = "\r\nPOST /upload HTTP/1.0\r\n"
+				+ "Content-Length: 3\r\n" + "Cookie: a=1\r\n"
+				+ "Cookie: b=2\r\n\r\n";
+
+		// every byte arrives in its own read
+		for (int i = 0; i < request.length() - 1; i++) {
+			assertFalse(parser.parse(buffer(request.substring(i, i + 1))));
+		}
+		assertTrue(parser.parse(buffer(request.substring(request.length() - 1))));
+
+		assertEquals("POST", parser.getMethod());
+		assertEquals("/upload", parser.getPath());
+		assertNull(parser.getQuery());
+		assertEquals("HTTP/1.0", parser.getVersion());
+		assertEquals("3", parser.getHeader("Content-Length"));
+		assertEquals("b=2", parser.getHeader("Cookie"));
+		assertEquals(Arrays.asList("a=1", "b=2"), parser.getHeaders("cookie"));
+		assertEquals(request.length() - 2, parser.getHeaderSize());
+	}
+
+	@Test
+	public void testLinesWithoutCarriageReturn() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		assertTrue(parser.parse(buffer("GET / HTTP/1.1\nHost: x\n\n")));
+		assertEquals("x", parser.getHeader("Host"));
+	}
+
+	@Test
+	public void testTwoPipelinedRequestsInOneBuffer() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		final ByteBuffer input = buffer("POST /a HTTP/1.1\r\n"
+				+ "Content-Length: 5\r\n\r\n" + "hello"
+				+ "GET /b HTTP/1.1\r\n\r\n");
+
+		assertTrue(parser.parse(input));
+		assertEquals("/a", parser.getPath());
+		// body stays in buffer
+		final byte[] body = new byte[5];
+		input.get(body);
+		assertEquals("hello", new String(body, StandardCharsets.US_ASCII));
+
+		parser.reset();
+		assertTrue(parser.parse(input));
+		assertFalse(input.hasRemaining());
+		assertEquals("GET", parser.getMethod());
+		assertEquals("/b", parser.getPath());
+		assertEquals(0, parser.getHeaderCount());
+	}
+
+	@Test
+	public void testParsingStopsAtEndOfHeader() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		final ByteBuffer input = buffer("GET / HTTP/1.1\r\n\r\nGET /next");
+
+		assertTrue(parser.parse(input));
+		assertEquals(18, input.position());
+		// complete parser does not consume more bytes
+		assertTrue(parser.parse(input));
+		assertEquals(18, input.position());
+	}
+
+	@Test(expected = HttpParseException.class)
+	public void testOversizeHeader() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		final char[] value = new char[HttpRequestParser.DEFAULT_MAX_HEADER_SIZE];
+		Arrays.fill(value, 'a');
+		parser.parse(buffer("GET / HTTP/1.1\r\nX-Long: " + new String(value)
+				+ "\r\n\r\n"));
+	}
+
+	@Test
+	public void testOversizeHeaderAcrossReads() {
+		final HttpRequestParser parser = new HttpRequestParser(32, 10);
+		assertFalse(parser.parse(buffer("GET / HTTP/1.1\r\nHost: ")));
+		try {
+			parser.parse(buffer("example.com\r\n\r\n"));
+			fail("Header larger than limit must be rejected");
+		} catch (final HttpParseException e) {
+			assertEquals("Request header too large", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testHeaderOfMaximalSize() {
+		final String request = "GET / HTTP/1.1\r\nHost: x\r\n\r\n";
+		final HttpRequestParser parser = new HttpRequestParser(
+				request.length(), 1);
+		assertTrue(parser.parse(buffer(request)));
+	}
+
+	@Test
+	public void testTooManyFields() {
+		final StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+		for (int i = 0; i < HttpRequestParser.DEFAULT_MAX_HEADER_COUNT; i++) {
+			request.append("X-Field-").append(i).append(": ").append(i)
+					.append("\r\n");
+		}
+
+		final HttpRequestParser parser = new HttpRequestParser();
+		assertFalse(parser.parse(buffer(request.toString())));
+		try {
+			parser.parse(buffer("X-One-Too-Many: 1\r\n\r\n"));
+			fail("Field beyond limit must be rejected");
+		} catch (final HttpParseException e) {
+			assertEquals("Too many header fields", e.getMessage());
+		}
+	}
+
+	@Test(expected = HttpParseException.class)
+	public void testInvalidRequestLine() {
+		new HttpRequestParser().parse(buffer("GET /\r\n\r\n"));
+	}
+
+	@Test(expected = HttpParseException.class)
+	public void testFieldWithoutColon() {
+		new HttpRequestParser().parse(buffer("GET / HTTP/1.1\r\nHost\r\n\r\n"));
+	}
+
+	@Test(expected = HttpParseException.class)
+	public void testWhitespaceBeforeColon() {
+		new HttpRequestParser()
+				.parse(buffer("GET / HTTP/1.1\r\nHost : x\r\n\r\n"));
+	}
+
+	@Test(expected = HttpParseException.class)
+	public void testFoldedField() {
+		new HttpRequestParser().parse(buffer("GET / HTTP/1.1\r\nA: 1\r\n"
+				+ " 2\r\n\r\n"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testIncompleteHeaderHasNoMethod() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		parser.parse(buffer("GET / HTTP/1.1\r\n"));
+		parser.getMethod();
+	}
+
+	@Test
+	public void testResetAllowsReuse() {
+		final HttpRequestParser parser = new HttpRequestParser();
+		assertTrue(parser.parse(buffer("GET /first HTTP/1.1\r\n\r\n")));
+		assertEquals("/first", parser.getPath());
+
+		parser.reset();
+		assertFalse(parser.isComplete());
+		assertTrue(parser.parse(buffer("HEAD /second HTTP/1.0\r\nA: b\r\n\r\n")));
+		assertEquals("HEAD", parser.getMethod());
+		assertEquals("/second", parser.getPath());
+		assertEquals("HTTP/1.0", parser.getVersion());
+		assertEquals("b", parser.getHeader("a"));
+	}
+}
@@ -0,0 +1,230 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResponseBufferTest {
+
+	/**
+	 * Stream which remembers size of each write.
+	 */
+	private static class RecordingStream extends OutputStream {
+
+		/**
+		 * Written bytes
+		 */
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		/**
+		 * Sizes of writes
+		 */
+		private final List<Integer> writes = new ArrayList<>();
+
+		/**
+		 * Number of flushes
+		 */
+		private int flushes;
+
+		@Override
+		public void write(int b) {
+			this.data.write(b);
+			this.writes.add(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.data.write(b, off, len);
+			this.writes.add(len);
+		}
+
+		@Override
+		public void flush() {
+			this.flushes++;
+		}
+	}
+
+	/**
+	 * Channel which remembers gathering writes. Each write takes at most
+	 * limited number of bytes, as socket channel can.
+	 */
+	private static class RecordingChannel implements GatheringByteChannel {
+
+		/**
+		 * Written bytes
+		 */
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+		/**
+		 * Number of buffers in each gathering write
+		 */
+		private final List<Integer> gathered = new ArrayList<>();
+
+		/**
+		 * Maximal number of bytes taken by one write
+		 */
+		private final int limit;
+
+		/**
+		 * Constructor
+		 *
+		 * @param limit
+		 *            maximal number of bytes taken by one write
+		 */
+		private RecordingChannel(int limit) {
+			this.limit = limit;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			final int length = Math.min(src.remaining(), this.limit);
+			for (int i = 0; i < length; i++) {
+				this.data.write(src.get());
+			}
+			return length;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			this.gathered.add(length);
+			long written = 0;
+			for (int i = offset; i < offset + length
+					&& written < this.limit; i++) {
+				final int part = Math.min(srcs[i].remaining(),
+						(int) (this.limit - written));
+				for (int j = 0; j < part; j++) {
+					this.data.write(srcs[i].get());
+				}
+				written += part;
+			}
+			return written;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) {
+			return write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Creates array of bytes with values 0, 1, 2...
+	 *
+	 * @param length
+	 *            length of array
+	 * @return array
+	 */
+	private static byte[] bytes(int length) {
+		final byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) i;
+		}
+		return data;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDirectBufferNeedsChannel() {
+		new ResponseBuffer(new ByteArrayOutputStream(), null,
+				ByteBuffer.allocateDirect(16));
+	}
+
+	@Test
+	public void testSmallWritesAreCoalesced() throws IOException {
+		final RecordingStream out = new RecordingStream();
+		final ResponseBuffer buffer = new ResponseBuffer(out, null,
+				ByteBuffer.allocate(16));
+
+		buffer.write(1);
+		buffer.write(new byte[] { 2, 3, 4 });
+		buffer.write(new byte[] { 5, 6 }, 0, 2);
+		assertTrue(out.writes.isEmpty());
+
+		buffer.flush();
+		assertEquals(Arrays.asList(6), out.writes);
+		assertEquals(1, out.flushes);
+		assertArrayEquals(new byte[] { 1, 2, 3, 4, 5, 6 },
+				out.data.toByteArray());
+	}
+
+	@Test
+	public void testWriteLargerThanRemainingIsSplit() throws IOException {
+		final RecordingStream out = new RecordingStream();
+		final ResponseBuffer buffer = new ResponseBuffer(out, null,
+				ByteBuffer.allocate(16));
+		final byte[] data = bytes(24);
+
+		buffer.write(data, 0, 10);
+		buffer.write(data, 10, 14);
+		// buffer is filled with first 6 bytes of second write
+		assertEquals(Arrays.asList(16), out.writes);
+
+		buffer.flush();
+		assertEquals(Arrays.asList(16, 8), out.writes);
+		assertArrayEquals(data, out.data.toByteArray());
+	}
+
+	@Test
+	public void testLargeWriteIsGathered() throws IOException {
+		final RecordingStream out = new RecordingStream();
+		final RecordingChannel channel = new RecordingChannel(7);
+		final ResponseBuffer buffer = new ResponseBuffer(out, channel,
+				ByteBuffer.allocateDirect(16));
+		final byte[] data = bytes(40);
+
+		buffer.write(data, 0, 4);
+		buffer.write(data, 4, 30);
+		assertEquals(34, channel.data.size());
+		assertTrue(channel.gathered.size() > 1);
+		for (final int buffers : channel.gathered) {
+			assertEquals(2, buffers);
+		}
+
+		buffer.write(data, 34, 6);
+		buffer.flush();
+		assertArrayEquals(data, channel.data.toByteArray());
+		assertTrue(out.writes.isEmpty());
+		assertEquals(1, out.flushes);
+	}
+
+	@Test
+	public void testLargeWriteWithoutChannel() throws IOException {
+		final RecordingStream out = new RecordingStream();
+		final ResponseBuffer buffer = new ResponseBuffer(out, null,
+				ByteBuffer.allocate(16));
+		final byte[] data = bytes(40);
+
+		buffer.write(data, 0, 4);
+		buffer.write(data, 4, 36);
+		assertEquals(Arrays.asList(4, 36), out.writes);
+		assertArrayEquals(data, out.data.toByteArray());
+	}
+
+	@Test
+	public void testFlushWithoutDataWritesNothing() throws IOException {
+		final RecordingStream out = new RecordingStream();
+		final ResponseBuffer buffer = new ResponseBuffer(out, null,
+				ByteBuffer.allocate(16));
+
+		buffer.flush();
+		buffer.close();
+		assertTrue(out.writes.isEmpty());
+		assertEquals(2, out.flushes);
+	}
+}
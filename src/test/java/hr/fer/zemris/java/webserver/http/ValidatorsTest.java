@@ -0,0 +1,112 @@
+package hr.fer.zemris.java.webserver.http;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import hr.fer.zemris.java.webserver.cache.ValidatorCache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ValidatorsTest {
+
+	/**
+	 * Time of last modification used in tests, with milliseconds
+	 */
+	private static final long MODIFIED = 1500000000123L;
+
+	@Test
+	public void testETagAndLastModified() {
+		final Validators validators = new Validators(MODIFIED, 1000);
+		assertEquals("\"" + Long.toHexString(MODIFIED) + "-3e8\"",
+				validators.getETag());
+		assertEquals(1500000000000L, validators.getLastModified());
+		assertEquals("Fri, 14 Jul 2017 02:40:00 GMT",
+				validators.getLastModifiedText());
+	}
+
+	@Test
+	public void testStrongETagMatches() {
+		final Validators validators = new Validators(MODIFIED, 1000);
+		assertTrue(validators.isNotModified(validators.getETag(), null));
+		assertFalse(validators.isNotModified("\"other\"", null));
+	}
+
+	@Test
+	public void testWeakETagMatches() {
+		final Validators validators = new Validators(MODIFIED, 1000);
+		assertTrue(validators.isNotModified("W/" + validators.getETag(), null));
+		assertTrue(validators.matches("\"a\", W/" + validators.getETag()
+				+ " , \"b\""));
+		assertTrue(validators.matches("*"));
+		assertFalse(validators.matches("W/\"a\", \"b\""));
+	}
+
+	@Test
+	public void testIfNoneMatchHasPriority() {
+		final Validators validators = new Validators(MODIFIED, 1000);
+		final String future = HttpDates.format(MODIFIED + 100000);
+		assertTrue(validators.isNotModified(null, future));
+		// modification date is ignored when entity tag does not match
+		assertFalse(validators.isNotModified("\"other\"", future));
+	}
+
+	@Test
+	public void testIfModifiedSince() {
+		final Validators validators = new Validators(MODIFIED, 1000);
+		assertTrue(validators.isNotModified(null,
+				validators.getLastModifiedText()));
+		assertFalse(validators.isNotModified(null,
+				HttpDates.format(MODIFIED - 1000)));
+		assertFalse(validators.isNotModified(null, "yesterday"));
+		assertFalse(validators.isNotModified(null, null));
+	}
+
+	@Test
+	public void testIfRangeUsesStrongComparison() {
+		final Validators validators = new Validators(MODIFIED, 1000);
+		assertTrue(validators.matchesIfRange(validators.getETag()));
+		assertFalse(validators.matchesIfRange("W/" + validators.getETag()));
+		assertTrue(validators.matchesIfRange(validators.getLastModifiedText()));
+		assertFalse(validators.matchesIfRange(HttpDates
+				.format(MODIFIED + 5000)));
+	}
+
+	@Test
+	public void testEncodedVersionHasOwnETag() {
+		final Validators validators = new Validators(MODIFIED, 1000);
+		final Validators gzip = validators.withCoding("gzip");
+		assertEquals(validators.getETag().replaceAll("\"$", "-gzip\""),
+				gzip.getETag());
+		assertEquals(validators.getLastModified(), gzip.getLastModified());
+		assertFalse(gzip.matches(validators.getETag()));
+	}
+
+	@Test
+	public void testCacheReturnsNewValidatorsWhenFileChanges()
+			throws Exception {
+		final Path file = Files.createTempFile("validators", ".txt");
+		try {
+			Files.write(file, new byte[10]);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED));
+			final ValidatorCache cache = new ValidatorCache(4);
+
+			final Validators first = cache.get(file,
+					Files.readAttributes(file, BasicFileAttributes.class));
+			assertSame(first, cache.get(file,
+					Files.readAttributes(file, BasicFileAttributes.class)));
+
+			Files.write(file, new byte[20]);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(MODIFIED));
+			final Validators second = cache.get(file,
+					Files.readAttributes(file, BasicFileAttributes.class));
+			assertNotSame(first, second);
+			assertFalse(second.matches(first.getETag()));
+		} finally {
+			Files.delete(file);
+		}
+	}
+}
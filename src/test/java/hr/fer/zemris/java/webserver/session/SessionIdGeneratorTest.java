@@ -0,0 +1,73 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionIdGeneratorTest {
+
+	@Test
+	public void testDefaultLengthAndAlphabet() {
+		final SessionIdGenerator generator = new SessionIdGenerator();
+		final Set<Character> used = new HashSet<>();
+		for (int i = 0; i < 1000; i++) {
+			final String id = generator.next();
+			assertEquals(SessionIdGenerator.DEFAULT_LENGTH, id.length());
+			assertTrue(id, id.matches("[A-Z2-7]+"));
+			for (final char c : id.toCharArray()) {
+				used.add(c);
+			}
+		}
+		// all 32 characters appear in 32000 random characters
+		assertEquals(32, used.size());
+	}
+
+	@Test
+	public void testCustomLength() {
+		final SessionIdGenerator generator = new SessionIdGenerator(7, 1);
+		// more IDs than one buffer of entropy holds
+		for (int i = 0; i < 200; i++) {
+			assertEquals(7, generator.next().length());
+		}
+	}
+
+	@Test
+	public void testIdsAreUniqueAcrossThreads() throws Exception {
+		final SessionIdGenerator generator = new SessionIdGenerator(32, 2);
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final Set<String> ids = new HashSet<>();
+			final Future<?>[] results = new Future<?>[4];
+			for (int i = 0; i < results.length; i++) {
+				results[i] = executor.submit(() -> {
+					final List<String> local = new ArrayList<>();
+					for (int j = 0; j < 2000; j++) {
+						local.add(generator.next());
+					}
+					return local;
+				});
+			}
+			for (final Future<?> result : results) {
+				for (final Object id : (List<?>) result.get()) {
+					assertTrue(ids.add((String) id));
+				}
+			}
+			assertEquals(8000, ids.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLengthMustBePositive() {
+		new SessionIdGenerator(0, 1);
+	}
+}
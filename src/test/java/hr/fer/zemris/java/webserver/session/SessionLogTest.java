@@ -0,0 +1,225 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class SessionLogTest {
+
+	/**
+	 * Directory of session files
+	 */
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Creates session with one parameter.
+	 *
+	 * @param sid
+	 *            ID of session
+	 * @param value
+	 *            value of parameter "p"
+	 * @return session
+	 */
+	private static SessionMapEntry session(String sid, String value) {
+		final Map<String, String> parameters = new HashMap<>();
+		parameters.put("p", value);
+		return new SessionMapEntry(sid, 1000L, parameters);
+	}
+
+	/**
+	 * Returns path of session file in temporary directory.
+	 *
+	 * @return path of file
+	 */
+	private Path file() {
+		return this.folder.getRoot().toPath().resolve("sessions")
+				.resolve("sessions.log");
+	}
+
+	@Test
+	public void testMissingFileIsEmpty() throws IOException {
+		assertTrue(new SessionLog(file()).load().isEmpty());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		final Map<String, String> parameters = new HashMap<>();
+		parameters.put("name", "Čaša");
+		parameters.put("empty", "");
+		final SessionLog log = new SessionLog(file());
+		log.write(Arrays.asList(new SessionMapEntry("A", 12345L, parameters),
+				session("B", "1")));
+		log.close();
+
+		final List<SessionMapEntry> loaded = new SessionLog(file()).load();
+		assertEquals(2, loaded.size());
+		assertEquals("A", loaded.get(0).getSid());
+		assertEquals(12345L, loaded.get(0).getValidUntil());
+		assertEquals(parameters, loaded.get(0).getAttributes().asMap());
+		assertEquals("1", loaded.get(1).getAttributes().get("p"));
+	}
+
+	@Test
+	public void testLaterRecordReplacesEarlier() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		log.write(Collections.singletonList(session("A", "1")));
+		log.write(Collections.singletonList(session("B", "1")));
+		log.write(Collections.singletonList(session("A", "2")));
+		log.close();
+
+		final SessionLog reopened = new SessionLog(file());
+		final List<SessionMapEntry> loaded = reopened.load();
+		assertEquals(2, loaded.size());
+		assertEquals("2", loaded.get(0).getAttributes().get("p"));
+		assertTrue(reopened.toString().endsWith("records=3"));
+	}
+
+	@Test
+	public void testDamagedRecordEndsRecovery() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		log.write(Collections.singletonList(session("A", "1")));
+		log.write(Collections.singletonList(session("B", "1")));
+		final long secondEnd = Files.size(file());
+		log.write(Collections.singletonList(session("C", "1")));
+		log.close();
+
+		// last byte of checksum of second record is changed
+		final byte[] data = Files.readAllBytes(file());
+		data[(int) secondEnd - 1] ^= 1;
+		Files.write(file(), data);
+
+		final List<SessionMapEntry> loaded = new SessionLog(file()).load();
+		assertEquals(1, loaded.size());
+		assertEquals("A", loaded.get(0).getSid());
+	}
+
+	@Test
+	public void testPartialRecordIsIgnored() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		log.write(Collections.singletonList(session("A", "1")));
+		final long firstEnd = Files.size(file());
+		log.write(Collections.singletonList(session("B", "1")));
+		log.close();
+
+		final byte[] data = Files.readAllBytes(file());
+		Files.write(file(), Arrays.copyOf(data, (int) firstEnd + 6));
+
+		final List<SessionMapEntry> loaded = new SessionLog(file()).load();
+		assertEquals(1, loaded.size());
+		assertEquals("A", loaded.get(0).getSid());
+	}
+
+	@Test
+	public void testAppendAfterLoad() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		log.write(Collections.singletonList(session("A", "1")));
+		log.close();
+
+		final SessionLog reopened = new SessionLog(file());
+		assertEquals(1, reopened.load().size());
+		reopened.write(Collections.singletonList(session("B", "1")));
+		reopened.close();
+
+		assertEquals(2, new SessionLog(file()).load().size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownFormat() throws IOException {
+		Files.createDirectories(file().getParent());
+		Files.write(file(), new byte[] { 1, 2, 3, 4, 5 });
+		new SessionLog(file()).load();
+	}
+
+	@Test
+	public void testCompact() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		for (int i = 0; i < 10; i++) {
+			log.write(Arrays.asList(session("A", Integer.toString(i)),
+					session("B", Integer.toString(i))));
+		}
+		final long before = Files.size(file());
+
+		log.compact(Collections.singletonList(session("A", "last")));
+		assertTrue(Files.size(file()) < before);
+		assertFalse(Files.exists(file().resolveSibling("sessions.log.tmp")));
+
+		// log can be appended after compaction
+		log.write(Collections.singletonList(session("C", "1")));
+		log.close();
+
+		final List<SessionMapEntry> loaded = new SessionLog(file()).load();
+		assertEquals(2, loaded.size());
+		assertEquals("last", loaded.get(0).getAttributes().get("p"));
+		assertEquals("C", loaded.get(1).getSid());
+	}
+
+	@Test
+	public void testShouldCompact() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		final SessionMapEntry[] sessions = new SessionMapEntry[1025];
+		for (int i = 0; i < sessions.length; i++) {
+			sessions[i] = session("S" + i, "1");
+		}
+		log.write(Arrays.asList(sessions).subList(0, 1024));
+		assertFalse(log.shouldCompact(1));
+
+		log.write(Collections.singletonList(sessions[1024]));
+		assertTrue(log.shouldCompact(1));
+		assertFalse(log.shouldCompact(600));
+		log.close();
+	}
+
+	@Test
+	public void testWriteAfterCloseIsRejected() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		log.write(Collections.singletonList(session("A", "1")));
+		log.close();
+
+		try {
+			log.write(Collections.singletonList(session("B", "1")));
+			fail("Closed log must not be opened again");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().startsWith("Session log is closed"));
+		}
+		try {
+			log.compact(Collections.singletonList(session("B", "1")));
+			fail("Closed log must not be compacted");
+		} catch (final IOException e) {
+			assertTrue(e.getMessage().startsWith("Session log is closed"));
+		}
+		assertEquals(1, new SessionLog(file()).load().size());
+	}
+
+	@Test
+	public void testChannelClosedByInterruptIsOpenedAgain() throws IOException {
+		final SessionLog log = new SessionLog(file());
+		log.write(Collections.singletonList(session("A", "1")));
+
+		Thread.currentThread().interrupt();
+		try {
+			log.write(Collections.singletonList(session("B", "1")));
+			fail("Interrupted write must fail");
+		} catch (final IOException e) {
+			// channel is closed by interrupt
+		} finally {
+			Thread.interrupted();
+		}
+
+		log.write(Collections.singletonList(session("C", "1")));
+		log.close();
+		final List<SessionMapEntry> loaded = new SessionLog(file()).load();
+		assertEquals("C", loaded.get(loaded.size() - 1).getSid());
+	}
+}
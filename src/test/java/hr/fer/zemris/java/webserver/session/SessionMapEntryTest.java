@@ -0,0 +1,124 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionMapEntryTest {
+
+	/**
+	 * Creates session with one counter.
+	 *
+	 * @return session
+	 */
+	private static SessionMapEntry session() {
+		return new SessionMapEntry("A", 1000,
+				Collections.singletonMap("brojPoziva", "1"));
+	}
+
+	/**
+	 * Creates changes with one parameter.
+	 *
+	 * @param name
+	 *            name of parameter
+	 * @param value
+	 *            value of parameter, null removes it
+	 * @return changes
+	 */
+	private static Map<String, String> change(String name, String value) {
+		final Map<String, String> changes = new HashMap<>();
+		changes.put(name, value);
+		return changes;
+	}
+
+	@Test
+	public void testCommitCreatesNextVersion() {
+		final SessionMapEntry session = session();
+		final SessionAttributes base = session.getAttributes();
+
+		assertTrue(session.commit(base, Collections.singleton("brojPoziva"),
+				change("brojPoziva", "2")));
+		assertEquals(base.getVersion() + 1, session.getAttributes()
+				.getVersion());
+		assertEquals("2", session.getAttributes().get("brojPoziva"));
+		assertEquals("1", base.get("brojPoziva"));
+	}
+
+	@Test
+	public void testCommitWithoutChanges() {
+		final SessionMapEntry session = session();
+		final SessionAttributes base = session.getAttributes();
+
+		assertFalse(session.commit(base, null,
+				Collections.<String, String> emptyMap()));
+		assertFalse(session.commit(base, null, change("brojPoziva", "1")));
+		assertSame(base, session.getAttributes());
+	}
+
+	@Test
+	public void testConcurrentIncrementsAreNotLost() {
+		final SessionMapEntry session = session();
+		final SessionAttributes base = session.getAttributes();
+		final int value = Integer.parseInt(base.get("brojPoziva"));
+
+		// both requests read same value and increase it
+		assertTrue(session.commit(base, Collections.singleton("brojPoziva"),
+				change("brojPoziva", Integer.toString(value + 1))));
+		try {
+			session.commit(base, Collections.singleton("brojPoziva"),
+					change("brojPoziva", Integer.toString(value + 1)));
+			fail("Increment based on old value must be rejected");
+		} catch (final SessionConflictException e) {
+			assertEquals("Parameter brojPoziva was changed by other request",
+					e.getMessage());
+			assertEquals("2", session.getAttributes().get("brojPoziva"));
+		}
+
+		// request which started from new version commits
+		final SessionAttributes next = session.getAttributes();
+		assertTrue(session.commit(next, Collections.singleton("brojPoziva"),
+				change("brojPoziva", "3")));
+		assertEquals("3", session.getAttributes().get("brojPoziva"));
+	}
+
+	@Test
+	public void testChangesOfOtherParametersAreMerged() {
+		final SessionMapEntry session = session();
+		final SessionAttributes base = session.getAttributes();
+
+		assertTrue(session.commit(base, Collections.<String> emptySet(),
+				change("a", "1")));
+		assertTrue(session.commit(base, Collections.singleton("brojPoziva"),
+				change("brojPoziva", "2")));
+
+		final SessionAttributes current = session.getAttributes();
+		assertEquals("1", current.get("a"));
+		assertEquals("2", current.get("brojPoziva"));
+		assertEquals(base.getVersion() + 2, current.getVersion());
+	}
+
+	@Test
+	public void testBlindWriteLastWriterWins() {
+		final SessionMapEntry session = session();
+		final SessionAttributes base = session.getAttributes();
+
+		assertTrue(session.commit(base, Collections.<String> emptySet(),
+				change("brojPoziva", "5")));
+		assertTrue(session.commit(base, Collections.<String> emptySet(),
+				change("brojPoziva", "7")));
+		assertEquals("7", session.getAttributes().get("brojPoziva"));
+	}
+
+	@Test(expected = SessionConflictException.class)
+	public void testReadingAllNamesConflictsWithAnyChange() {
+		final SessionMapEntry session = session();
+		final SessionAttributes base = session.getAttributes();
+
+		session.commit(base, Collections.<String> emptySet(), change("a", "1"));
+		session.commit(base, null, change("b", "1"));
+	}
+}
@@ -0,0 +1,267 @@
+package hr.fer.zemris.java.webserver.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionStoreTest {
+
+	/**
+	 * Persistence which remembers written sessions.
+	 */
+	private static class RecordingPersistence implements SessionPersistence {
+
+		/**
+		 * Sessions returned by load
+		 */
+		private final List<SessionMapEntry> stored = new ArrayList<>();
+
+		/**
+		 * IDs of sessions in each write
+		 */
+		private final List<List<String>> writes = new ArrayList<>();
+
+		/**
+		 * IDs of sessions in last compaction, or null
+		 */
+		private List<String> compacted;
+
+		/**
+		 * Flag that signals if compaction is requested by shouldCompact
+		 */
+		private boolean compact;
+
+		/**
+		 * Flag that signals if persistence is closed
+		 */
+		private boolean closed;
+
+		@Override
+		public List<SessionMapEntry> load() {
+			return this.stored;
+		}
+
+		@Override
+		public void write(Collection<SessionMapEntry> sessions) {
+			this.writes.add(ids(sessions));
+		}
+
+		@Override
+		public boolean shouldCompact(int liveSessions) {
+			return this.compact;
+		}
+
+		@Override
+		public void compact(Collection<SessionMapEntry> sessions) {
+			this.compacted = ids(sessions);
+		}
+
+		@Override
+		public void close() {
+			this.closed = true;
+		}
+
+		/**
+		 * Returns sorted IDs of sessions.
+		 *
+		 * @param sessions
+		 *            sessions
+		 * @return IDs
+		 */
+		private static List<String> ids(Collection<SessionMapEntry> sessions) {
+			final List<String> ids = new ArrayList<>();
+			for (final SessionMapEntry session : sessions) {
+				ids.add(session.getSid());
+			}
+			Collections.sort(ids);
+			return ids;
+		}
+	}
+
+	/**
+	 * Time used as current time in tests
+	 */
+	private static final long NOW = 1000000L;
+
+	/**
+	 * Creates session without parameters.
+	 *
+	 * @param sid
+	 *            ID of session
+	 * @param validUntil
+	 *            time after which session is outdated
+	 * @return session
+	 */
+	private static SessionMapEntry session(String sid, long validUntil) {
+		return new SessionMapEntry(sid, validUntil,
+				Collections.<String, String> emptyMap());
+	}
+
+	@Test
+	public void testGetReturnsLiveSession() {
+		final SessionStore store = new SessionStore(4);
+		final SessionMapEntry session = session("A", NOW + 1000);
+		store.put(session);
+
+		assertSame(session, store.get("A", NOW));
+		assertNull(store.get("B", NOW));
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	public void testGetRemovesExpiredSession() {
+		final SessionStore store = new SessionStore(4);
+		store.put(session("A", NOW));
+
+		assertNull(store.get("A", NOW + 1));
+		assertEquals(0, store.size());
+		assertTrue(store.toString().contains("evicted=1"));
+	}
+
+	@Test
+	public void testEvictionRemovesOnlyDueSessions() {
+		final SessionStore store = new SessionStore(2);
+		store.put(session("A", NOW));
+		store.put(session("B", NOW + 500));
+		store.put(session("C", NOW + 10000));
+
+		// sessions are checked only after their interval of index ends
+		assertEquals(0, store.evictExpired(NOW + 1));
+		assertEquals(3, store.size());
+
+		assertEquals(2, store.evictExpired(NOW + 2000));
+		assertEquals(1, store.size());
+		assertNotNull(store.get("C", NOW + 2000));
+
+		assertEquals(1, store.evictExpired(NOW + 20000));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testTouchedSessionIsIndexedAgain() {
+		final SessionStore store = new SessionStore(1);
+		final SessionMapEntry session = session("A", NOW);
+		store.put(session);
+		store.touch(session, NOW + 5000);
+
+		// old index entry is due, but session is still live
+		assertEquals(0, store.evictExpired(NOW + 2000));
+		assertSame(session, store.get("A", NOW + 2000));
+
+		assertEquals(1, store.evictExpired(NOW + 7000));
+		assertEquals(0, store.size());
+	}
+
+	@Test
+	public void testReplacedSessionIsNotEvictedByOldIndex() {
+		final SessionStore store = new SessionStore(1);
+		store.put(session("A", NOW));
+		final SessionMapEntry replacement = session("A", NOW + 10000);
+		store.put(replacement);
+
+		assertEquals(0, store.evictExpired(NOW + 2000));
+		assertSame(replacement, store.get("A", NOW + 2000));
+	}
+
+	@Test
+	public void testRemovedSessionIsNotCounted() {
+		final SessionStore store = new SessionStore(1);
+		store.put(session("A", NOW));
+		assertNotNull(store.remove("A"));
+
+		assertEquals(0, store.evictExpired(NOW + 2000));
+		assertNull(store.remove("A"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShardsMustBePositive() {
+		new SessionStore(0);
+	}
+
+	@Test
+	public void testTouchMarksSessionAfterThreshold() throws IOException {
+		final RecordingPersistence persistence = new RecordingPersistence();
+		final SessionStore store = new SessionStore(4, persistence);
+		final SessionMapEntry session = session("A", NOW);
+		store.put(session);
+		store.flush();
+		assertEquals(Arrays.asList(Arrays.asList("A")), persistence.writes);
+		assertEquals(NOW, session.getWrittenUntil());
+
+		// small extension of lifetime is not written
+		store.touch(session, NOW + 59999);
+		store.flush();
+		assertEquals(1, persistence.writes.size());
+		assertEquals(NOW + 59999, session.getValidUntil());
+
+		store.touch(session, NOW + 60000);
+		store.flush();
+		assertEquals(2, persistence.writes.size());
+		assertEquals(NOW + 60000, session.getWrittenUntil());
+
+		// threshold is measured from last written lifetime
+		store.touch(session, NOW + 119999);
+		store.flush();
+		assertEquals(2, persistence.writes.size());
+	}
+
+	@Test
+	public void testFlushSkipsRemovedSessions() throws IOException {
+		final RecordingPersistence persistence = new RecordingPersistence();
+		final SessionStore store = new SessionStore(4, persistence);
+		store.put(session("A", NOW));
+		store.put(session("B", NOW));
+		store.remove("A");
+
+		store.flush();
+		store.flush();
+		assertEquals(Arrays.asList(Arrays.asList("B")), persistence.writes);
+	}
+
+	@Test
+	public void testFlushCompactsWithAllSessions() throws IOException {
+		final RecordingPersistence persistence = new RecordingPersistence();
+		final SessionStore store = new SessionStore(4, persistence);
+		store.put(session("A", NOW));
+		store.flush();
+		store.put(session("B", NOW));
+		persistence.compact = true;
+
+		store.flush();
+		assertEquals(1, persistence.writes.size());
+		assertEquals(Arrays.asList("A", "B"), persistence.compacted);
+	}
+
+	@Test
+	public void testRecoverSkipsExpiredSessions() throws IOException {
+		final RecordingPersistence persistence = new RecordingPersistence();
+		persistence.stored.add(session("A", NOW - 1));
+		persistence.stored.add(session("B", NOW + 1000));
+		final SessionStore store = new SessionStore(4, persistence);
+
+		assertEquals(1, store.recover(NOW));
+		assertNull(store.get("A", NOW));
+		assertEquals(NOW + 1000, store.get("B", NOW).getWrittenUntil());
+		assertEquals(Arrays.asList("B"), persistence.compacted);
+		// recovered session is indexed
+		assertEquals(1, store.evictExpired(NOW + 5000));
+	}
+
+	@Test
+	public void testCloseFlushesAndClosesPersistence() throws IOException {
+		final RecordingPersistence persistence = new RecordingPersistence();
+		final SessionStore store = new SessionStore(4, persistence);
+		store.put(session("A", NOW));
+
+		store.close();
+		assertEquals(Arrays.asList(Arrays.asList("A")), persistence.writes);
+		assertTrue(persistence.closed);
+	}
+}
@@ -0,0 +1,37 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import java.io.IOException;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Worker which writes output and then counts visits in persistent parameter.
+ * It declares that it changes persistent parameters.
+ */
+public class CounterWorker implements IWebWorker {
+
+	/**
+	 * Writes number of visit and stores it.
+	 */
+	@Override
+	public void processRequest(RequestContext context) {
+		try {
+			context.write("visits=");
+			final String visits = context.getPersistentParameter("visits");
+			final int next = visits == null ? 1 : Integer.parseInt(visits) + 1;
+			context.setPersistentParameter("visits", Integer.toString(next));
+			context.write(Integer.toString(next));
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Worker sets parameters after output is written.
+	 */
+	@Override
+	public boolean changesPersistentParameters() {
+		return true;
+	}
+}
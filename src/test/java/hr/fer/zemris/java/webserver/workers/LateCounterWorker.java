@@ -0,0 +1,29 @@
+package hr.fer.zemris.java.webserver.workers;
+
+import java.io.IOException;
+
+import hr.fer.zemris.java.webserver.IWebWorker;
+import hr.fer.zemris.java.webserver.RequestContext;
+
+/**
+ * Worker which writes output and then sets persistent parameter, without
+ * declaring it. With parameter "fail", it fails before output is written.
+ */
+public class LateCounterWorker implements IWebWorker {
+
+	/**
+	 * Writes output and then sets parameter.
+	 */
+	@Override
+	public void processRequest(RequestContext context) {
+		if (context.getParameter("fail") != null) {
+			throw new IllegalStateException("Worker failed");
+		}
+		try {
+			context.write("visits=");
+			context.setPersistentParameter("visits", "1");
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}